@@ -33,8 +33,11 @@ public class ProfilingMethodInterceptor implements MethodInterceptor {
 
     @Override
     public Object invoke(final MethodInvocation invocation) throws Throwable {
+        if (!_timeKeeper.isEnabled()) {
+            return invocation.proceed();
+        }
         final Method method = invocation.getMethod();
-        final String key = _timeKeeper.isEnabled() ? method.getDeclaringClass().getSimpleName() + "." + method.getName() : null;
+        final String key = method.getDeclaringClass().getSimpleName() + "." + method.getName();
         _timeKeeper.begin(key);
         try {
             return invocation.proceed();
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
+import com.freiheit.fuava.ctprofiler.core.TimeKeeper;
+import com.freiheit.fuava.ctprofiler.core.impl.ProfilerFactory;
+
+/**
+ * Measures the cost of one nested begin/end sequence of the given depth, for an enabled and a disabled profiler.
+ *
+ * <p>The same timer names are used in each invocation, so after warm up the call tree does not grow anymore and
+ * the benchmark measures the recording hot path.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeginEndBenchmark {
+
+    @Param({ "1", "4", "16" })
+    public int depth;
+
+    @Param({ "true", "false" })
+    public boolean enabled;
+
+    private CallTreeProfiler _profiler;
+    private TimeKeeper _timeKeeper;
+    private String[] _names;
+
+    @Setup
+    public void setUp() {
+        _profiler = enabled ? ProfilerFactory.createProfiler() : ProfilerFactory.getDisabledProfiler();
+        _timeKeeper = enabled ? ProfilerFactory.createTimeKeeper(_profiler) : ProfilerFactory.getDisabledTimeKeeper();
+        _names = new String[depth];
+        for (int i = 0; i < depth; i++) {
+            _names[i] = "level" + i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        _profiler.clear();
+    }
+
+    @Benchmark
+    public void profiler() {
+        final String[] names = _names;
+        for (int i = 0; i < names.length; i++) {
+            _profiler.begin(names[i], System.nanoTime());
+        }
+        for (int i = names.length - 1; i >= 0; i--) {
+            _profiler.end(names[i], System.nanoTime());
+        }
+    }
+
+    @Benchmark
+    public void timeKeeper() {
+        final String[] names = _names;
+        for (int i = 0; i < names.length; i++) {
+            _timeKeeper.begin(names[i]);
+        }
+        for (int i = names.length - 1; i >= 0; i--) {
+            _timeKeeper.end(names[i]);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.benchmarks;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.freiheit.fuava.ctprofiler.aop.ProfilingMethodInterceptor;
+import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
+import com.freiheit.fuava.ctprofiler.core.impl.ProfilerFactory;
+
+/**
+ * Measures the overhead of {@link ProfilingMethodInterceptor} for an enabled and a disabled profiler,
+ * compared to proceeding the invocation without interceptor.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterceptorBenchmark {
+
+    private static final class Invocation implements MethodInvocation {
+        private static final Object[] NO_ARGUMENTS = new Object[0];
+
+        private final Method _method;
+
+        Invocation(final Method method) {
+            _method = method;
+        }
+
+        @Override
+        public Method getMethod() {
+            return _method;
+        }
+
+        @Override
+        public Object[] getArguments() {
+            return NO_ARGUMENTS;
+        }
+
+        @Override
+        public Object proceed() throws Throwable {
+            return this;
+        }
+
+        @Override
+        public Object getThis() {
+            return this;
+        }
+
+        @Override
+        public AccessibleObject getStaticPart() {
+            return _method;
+        }
+    }
+
+    private CallTreeProfiler _profiler;
+    private Invocation _invocation;
+    private ProfilingMethodInterceptor _enabled;
+    private ProfilingMethodInterceptor _disabled;
+
+    @Setup
+    public void setUp() throws NoSuchMethodException {
+        _profiler = ProfilerFactory.createProfiler();
+        _invocation = new Invocation(Object.class.getMethod("toString"));
+        _enabled = new ProfilingMethodInterceptor(ProfilerFactory.createTimeKeeper(_profiler));
+        _disabled = new ProfilingMethodInterceptor(ProfilerFactory.getDisabledTimeKeeper());
+    }
+
+    @TearDown
+    public void tearDown() {
+        _profiler.clear();
+    }
+
+    @Benchmark
+    public Object direct() throws Throwable {
+        return _invocation.proceed();
+    }
+
+    @Benchmark
+    public Object enabledInterceptor() throws Throwable {
+        return _enabled.invoke(_invocation);
+    }
+
+    @Benchmark
+    public Object disabledInterceptor() throws Throwable {
+        return _disabled.invoke(_invocation);
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
+import com.freiheit.fuava.ctprofiler.core.impl.ProfilerFactory;
+
+/**
+ * Compares a direct call to the calls through proxies created by {@link com.freiheit.fuava.ctprofiler.core.TimeKeeper#proxy(Class, Object)}
+ * of an enabled and a disabled profiler.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyBenchmark {
+
+    public interface Service {
+        int compute(int value);
+    }
+
+    static final class ServiceImpl implements Service {
+        @Override
+        public int compute(final int value) {
+            return value * 31 + 7;
+        }
+    }
+
+    private CallTreeProfiler _profiler;
+    private Service _direct;
+    private Service _enabledProxy;
+    private Service _disabledProxy;
+    private int _value;
+
+    @Setup
+    public void setUp() {
+        _profiler = ProfilerFactory.createProfiler();
+        _direct = new ServiceImpl();
+        _enabledProxy = ProfilerFactory.createTimeKeeper(_profiler).proxy(Service.class, _direct);
+        _disabledProxy = ProfilerFactory.getDisabledTimeKeeper().proxy(Service.class, _direct);
+    }
+
+    @TearDown
+    public void tearDown() {
+        _profiler.clear();
+    }
+
+    @Benchmark
+    public int direct() {
+        return _direct.compute(_value++);
+    }
+
+    @Benchmark
+    public int enabledProxy() {
+        return _enabledProxy.compute(_value++);
+    }
+
+    @Benchmark
+    public int disabledProxy() {
+        return _disabledProxy.compute(_value++);
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+import com.freiheit.fuava.ctprofiler.core.impl.ProfilerFactory;
+import com.freiheit.fuava.ctprofiler.core.rendering.StatisticsRenderer;
+import com.freiheit.fuava.ctprofiler.core.rendering.TxtRenderer;
+import com.freiheit.fuava.ctprofiler.core.rendering.XmlRenderer;
+
+/**
+ * Measures taking a snapshot of a synthetic call tree with {@link CallTreeProfiler#getStatistics()}
+ * and rendering the snapshot as text and xml.
+ *
+ * <p>The synthetic tree has <code>fanOut</code> children per node on each of <code>depth</code> levels.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatisticsBenchmark {
+
+    @Param({ "2", "8" })
+    public int fanOut;
+
+    @Param({ "3", "5" })
+    public int depth;
+
+    private CallTreeProfiler _profiler;
+    private Statistics _statistics;
+
+    @Setup
+    public void setUp() {
+        _profiler = ProfilerFactory.createProfiler();
+        _profiler.begin("root", System.nanoTime());
+        record(depth);
+        _profiler.end("root", System.nanoTime());
+        _statistics = _profiler.getStatistics();
+    }
+
+    private void record(final int remaining) {
+        if (remaining == 0) {
+            return;
+        }
+        for (int i = 0; i < fanOut; i++) {
+            final String name = "call" + i;
+            _profiler.begin(name, System.nanoTime());
+            record(remaining - 1);
+            _profiler.end(name, System.nanoTime());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        _profiler.clear();
+    }
+
+    @Benchmark
+    public Statistics getStatistics() {
+        return _profiler.getStatistics();
+    }
+
+    @Benchmark
+    public StringBuilder renderTxt() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        StatisticsRenderer.render(new TxtRenderer("", sb), _statistics);
+        return sb;
+    }
+
+    @Benchmark
+    public StringBuilder renderXml() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        StatisticsRenderer.render(new XmlRenderer("", sb), _statistics);
+        return sb;
+    }
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.cli;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+import com.freiheit.fuava.ctprofiler.core.aggregation.AggregatedStatistics;
+import com.freiheit.fuava.ctprofiler.core.aggregation.TopNodes;
+import com.freiheit.fuava.ctprofiler.core.diff.CallTreeDiff;
+import com.freiheit.fuava.ctprofiler.core.rendering.DiffTxtRenderer;
+import com.freiheit.fuava.ctprofiler.core.rendering.FoldedStacksRenderer;
+
+/**
+ * Command line tool to query the profile files written by a
+ * {@link com.freiheit.fuava.ctprofiler.core.persistence.ProfileStore}.
+ *
+ * <p>Each command merges the windows of the given files and directories, optionally restricted to one endpoint
+ * and a time range, and writes the result to standard out:</p>
+ * <ul>
+ * <li><code>top</code> lists the paths with the largest self time,</li>
+ * <li><code>diff</code> compares the merged windows of two time ranges, for example before and after a deploy,</li>
+ * <li><code>folded</code> exports the merged call trees as folded stacks for flame graph tools.</li>
+ * </ul>
+ */
+public final class Main {
+    private static final String USAGE =
+            "Usage: ctprofiler <command> [options] <file or directory>...\n"
+            + "\n"
+            + "Commands:\n"
+            + "  top     the paths with the largest self time\n"
+            + "  diff    compare the windows between --baseline-from and --baseline-to to those between --from and --to\n"
+            + "  folded  the call trees in folded stack format, for flame graph tools\n"
+            + "\n"
+            + "Options:\n"
+            + "  --endpoint <key>         only merge the aggregates of this endpoint, for example \"GET /search\"\n"
+            + "  --from <time>            only merge windows ending after this time\n"
+            + "  --to <time>              only merge windows starting before this time\n"
+            + "  --baseline-from <time>   diff: the start of the baseline\n"
+            + "  --baseline-to <time>     diff: the end of the baseline\n"
+            + "  --limit <n>              top: the number of paths, default 50\n"
+            + "  --max-nodes <n>          the maximum number of nodes per merged endpoint, default 100000\n"
+            + "  --threads <n>            the number of threads loading files, default the number of processors\n"
+            + "\n"
+            + "Times are milliseconds since the epoch or local times like 2015-06-30T14:00 or 2015-06-30T14:00:30.\n";
+
+    private static final String[] TIME_FORMATS = {"yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd'T'HH:mm", "yyyy-MM-dd"};
+
+    private String _command;
+    private String _endpoint;
+    private long _fromMillis = Long.MIN_VALUE;
+    private long _toMillis = Long.MAX_VALUE;
+    private long _baselineFromMillis = Long.MIN_VALUE;
+    private long _baselineToMillis = Long.MAX_VALUE;
+    private int _limit = 50;
+    private int _maxNodes = 100000;
+    private int _threads = Runtime.getRuntime().availableProcessors();
+    private final List<File> _paths = new ArrayList<>();
+
+    private Main() {
+        // created by main
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final Main main = new Main();
+        try {
+            main.parse(args);
+        } catch (final IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        final boolean ok = main.run(out);
+        out.flush();
+        System.exit(ok ? 0 : 1);
+    }
+
+    private void parse(final String[] args) {
+        if (args.length == 0) {
+            throw new IllegalArgumentException("Missing command");
+        }
+        _command = args[0];
+        if (!"top".equals(_command) && !"diff".equals(_command) && !"folded".equals(_command)) {
+            throw new IllegalArgumentException("Unknown command: " + _command);
+        }
+        for (int i = 1; i < args.length; i++) {
+            final String arg = args[i];
+            if (!arg.startsWith("--")) {
+                _paths.add(new File(arg));
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value of " + arg);
+            }
+            final String value = args[++i];
+            switch (arg) {
+            case "--endpoint":
+                _endpoint = value;
+                break;
+            case "--from":
+                _fromMillis = parseTime(value);
+                break;
+            case "--to":
+                _toMillis = parseTime(value);
+                break;
+            case "--baseline-from":
+                _baselineFromMillis = parseTime(value);
+                break;
+            case "--baseline-to":
+                _baselineToMillis = parseTime(value);
+                break;
+            case "--limit":
+                _limit = parseInt(arg, value);
+                break;
+            case "--max-nodes":
+                _maxNodes = parseInt(arg, value);
+                break;
+            case "--threads":
+                _threads = parseInt(arg, value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (_paths.isEmpty()) {
+            throw new IllegalArgumentException("Missing file or directory");
+        }
+        if ("diff".equals(_command) && _baselineFromMillis == Long.MIN_VALUE && _baselineToMillis == Long.MAX_VALUE) {
+            throw new IllegalArgumentException("Missing --baseline-from or --baseline-to");
+        }
+    }
+
+    private static int parseInt(final String option, final String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number for " + option + ": " + value);
+        }
+    }
+
+    private static long parseTime(final String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (final NumberFormatException e) {
+            // try the date formats
+        }
+        for (final String format : TIME_FORMATS) {
+            try {
+                final SimpleDateFormat f = new SimpleDateFormat(format);
+                f.setLenient(false);
+                return f.parse(value).getTime();
+            } catch (final ParseException e) {
+                // try the next format
+            }
+        }
+        throw new IllegalArgumentException("Not a time: " + value);
+    }
+
+    private boolean run(final Writer out) throws IOException {
+        final ForkJoinPool pool = new ForkJoinPool(Math.max(1, _threads));
+        try {
+            final ProfileMerger.Result current = new ProfileMerger(pool, _maxNodes, _endpoint, _fromMillis, _toMillis).merge(_paths);
+            boolean ok = reportErrors(current);
+            switch (_command) {
+            case "top":
+                top(out, current);
+                break;
+            case "folded":
+                folded(out, current);
+                break;
+            default:
+                final ProfileMerger.Result baseline =
+                        new ProfileMerger(pool, _maxNodes, _endpoint, _baselineFromMillis, _baselineToMillis).merge(_paths);
+                ok &= reportErrors(baseline);
+                diff(out, baseline, current);
+                break;
+            }
+            return ok;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static boolean reportErrors(final ProfileMerger.Result result) {
+        for (final String error : result.getErrors()) {
+            System.err.println("Skipped " + error);
+        }
+        return result.getErrors().isEmpty();
+    }
+
+    private void top(final Writer out, final ProfileMerger.Result result) throws IOException {
+        appendSummary(out, result);
+        final TopNodes top = new TopNodes(_limit);
+        for (final Map.Entry<String, AggregatedStatistics> e : result.getAggregates().entrySet()) {
+            top.add(e.getKey(), e.getValue());
+        }
+        for (final TopNodes.Entry entry : top.getEntries()) {
+            out.append(entry.toString()).append('\n');
+        }
+    }
+
+    private static void folded(final Writer out, final ProfileMerger.Result result) throws IOException {
+        final FoldedStacksRenderer renderer = new FoldedStacksRenderer(out);
+        for (final Map.Entry<String, AggregatedStatistics> e : result.getAggregates().entrySet()) {
+            renderer.render(e.getKey(), e.getValue());
+        }
+    }
+
+    private void diff(final Writer out, final ProfileMerger.Result baseline, final ProfileMerger.Result current) throws IOException {
+        out.append("Baseline: ");
+        appendSummary(out, baseline);
+        out.append("Current:  ");
+        appendSummary(out, current);
+        final Map<String, AggregatedStatistics> b = baseline.getAggregates();
+        final Map<String, AggregatedStatistics> c = current.getAggregates();
+        final TreeSet<String> keys = new TreeSet<>(b.keySet());
+        keys.addAll(c.keySet());
+        for (final String key : keys) {
+            out.append('\n').append(key).append(": ")
+            .append(Long.toString(baseline.getNumberOfRequests(key))).append(" -> ")
+            .append(Long.toString(current.getNumberOfRequests(key))).append(" requests\n");
+            new DiffTxtRenderer(out).render(CallTreeDiff.diff(orEmpty(key, b), orEmpty(key, c)));
+        }
+    }
+
+    private Statistics orEmpty(final String key, final Map<String, AggregatedStatistics> aggregates) {
+        final AggregatedStatistics s = aggregates.get(key);
+        return s == null ? new AggregatedStatistics(key, 0) : s;
+    }
+
+    private static void appendSummary(final Writer out, final ProfileMerger.Result result) throws IOException {
+        if (result.getNumberOfWindows() == 0) {
+            out.append("no matching windows\n");
+            return;
+        }
+        final SimpleDateFormat f = new SimpleDateFormat(TIME_FORMATS[0]);
+        long requests = 0;
+        for (final String key : result.getAggregates().keySet()) {
+            requests += result.getNumberOfRequests(key);
+        }
+        out.append(Long.toString(result.getNumberOfWindows())).append(" windows with ")
+        .append(Long.toString(requests)).append(" requests from ")
+        .append(f.format(new Date(result.getStartMillis()))).append(" to ")
+        .append(f.format(new Date(result.getEndMillis()))).append('\n');
+    }
+}
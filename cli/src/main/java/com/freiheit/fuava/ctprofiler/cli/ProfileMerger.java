@@ -0,0 +1,269 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.freiheit.fuava.ctprofiler.core.aggregation.AggregatedStatistics;
+import com.freiheit.fuava.ctprofiler.core.persistence.ProfileStore;
+import com.freiheit.fuava.ctprofiler.core.persistence.StoredStatistics;
+import com.freiheit.fuava.ctprofiler.core.persistence.StoredWindow;
+
+/**
+ * Merges the windows of many profile files into one aggregate per key.
+ *
+ * <p>Files are selected by the start and end of their window, which {@link ProfileStore} encodes in the file name,
+ * so files outside of the time range are never read. The remaining files are split in halves recursively and
+ * loaded by the threads of a fork/join pool. Each file is mapped, merged into the shared aggregates and dropped
+ * again, so only the merged aggregates are held in memory, no matter how many files are read.</p>
+ */
+final class ProfileMerger {
+
+    /**
+     * The merged aggregates of all matching windows.
+     */
+    static final class Result {
+        private final ConcurrentHashMap<String, AggregatedStatistics> aggregates = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, AtomicLong> requests = new ConcurrentHashMap<>();
+        private final AtomicLong numberOfWindows = new AtomicLong();
+        private final AtomicLong startMillis = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong endMillis = new AtomicLong(Long.MIN_VALUE);
+        private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The merged aggregates by key, sorted by key.
+         */
+        Map<String, AggregatedStatistics> getAggregates() {
+            return new TreeMap<>(aggregates);
+        }
+
+        /**
+         * The number of requests merged into the aggregate of the given key.
+         */
+        long getNumberOfRequests(final String key) {
+            final AtomicLong n = requests.get(key);
+            return n == null ? 0 : n.get();
+        }
+
+        long getNumberOfWindows() {
+            return numberOfWindows.get();
+        }
+
+        /**
+         * The start of the earliest merged window, {@link Long#MAX_VALUE} if no window was merged.
+         */
+        long getStartMillis() {
+            return startMillis.get();
+        }
+
+        /**
+         * The end of the latest merged window, {@link Long#MIN_VALUE} if no window was merged.
+         */
+        long getEndMillis() {
+            return endMillis.get();
+        }
+
+        /**
+         * The files that could not be read, with the reason.
+         */
+        List<String> getErrors() {
+            return new ArrayList<>(errors);
+        }
+
+        private void add(final StoredWindow window, final String endpoint, final int maxNodes) {
+            boolean merged = false;
+            for (final Map.Entry<String, StoredStatistics> e : window.getAggregates().entrySet()) {
+                if (endpoint != null && !endpoint.equals(e.getKey())) {
+                    continue;
+                }
+                getAggregate(e.getKey(), maxNodes).add(e.getValue());
+                getRequests(e.getKey()).addAndGet(e.getValue().getNumberOfMerges());
+                merged = true;
+            }
+            if (merged) {
+                numberOfWindows.incrementAndGet();
+                min(startMillis, window.getStartMillis());
+                max(endMillis, window.getEndMillis());
+            }
+        }
+
+        private AggregatedStatistics getAggregate(final String key, final int maxNodes) {
+            final AggregatedStatistics existing = aggregates.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            final AggregatedStatistics created = new AggregatedStatistics(key, maxNodes);
+            final AggregatedStatistics raced = aggregates.putIfAbsent(key, created);
+            return raced == null ? created : raced;
+        }
+
+        private AtomicLong getRequests(final String key) {
+            final AtomicLong existing = requests.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            final AtomicLong created = new AtomicLong();
+            final AtomicLong raced = requests.putIfAbsent(key, created);
+            return raced == null ? created : raced;
+        }
+
+        private static void min(final AtomicLong a, final long value) {
+            long v;
+            while ((v = a.get()) > value && !a.compareAndSet(v, value)) {
+                // retry
+            }
+        }
+
+        private static void max(final AtomicLong a, final long value) {
+            long v;
+            while ((v = a.get()) < value && !a.compareAndSet(v, value)) {
+                // retry
+            }
+        }
+    }
+
+    private final class MergeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<File> files;
+        private final Result result;
+
+        MergeTask(final List<File> files, final Result result) {
+            this.files = files;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            if (files.size() == 1) {
+                merge(files.get(0), result);
+                return;
+            }
+            final int half = files.size() / 2;
+            invokeAll(new MergeTask(files.subList(0, half), result), new MergeTask(files.subList(half, files.size()), result));
+        }
+    }
+
+    private final ForkJoinPool _pool;
+    private final int _maxNodes;
+    private final String _endpoint;
+    private final long _fromMillis;
+    private final long _toMillis;
+
+    /**
+     * Create a merger.
+     *
+     * @param pool the pool to load the files with
+     * @param maxNodes the maximum number of nodes of each merged aggregate
+     * @param endpoint the only key to merge, null to merge all keys
+     * @param fromMillis only merge windows ending after this time
+     * @param toMillis only merge windows starting before this time
+     */
+    ProfileMerger(final ForkJoinPool pool, final int maxNodes, final String endpoint, final long fromMillis, final long toMillis) {
+        _pool = pool;
+        _maxNodes = maxNodes;
+        _endpoint = endpoint;
+        _fromMillis = fromMillis;
+        _toMillis = toMillis;
+    }
+
+    /**
+     * Merge the given profile files, and the profile files in the given directories.
+     */
+    Result merge(final List<File> paths) {
+        final List<File> candidates = new ArrayList<>();
+        for (final File path : paths) {
+            addFiles(candidates, path);
+        }
+        final List<File> files = new ArrayList<>(candidates.size());
+        for (final File file : candidates) {
+            if (mayOverlap(file)) {
+                files.add(file);
+            }
+        }
+        final Result result = new Result();
+        if (!files.isEmpty()) {
+            _pool.invoke(new MergeTask(files, result));
+        }
+        return result;
+    }
+
+    private static void addFiles(final List<File> files, final File path) {
+        if (!path.isDirectory()) {
+            files.add(path);
+            return;
+        }
+        final File[] children = path.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (final File child : children) {
+            if (child.isFile() && child.getName().endsWith(ProfileStore.SUFFIX)) {
+                files.add(child);
+            }
+        }
+    }
+
+    /**
+     * Whether the window of the file may overlap the time range, judged by its name
+     * <code>&lt;prefix&gt;-&lt;start millis&gt;-&lt;end millis&gt;.ctp</code>.
+     * Files with other names are loaded and checked by the window they contain.
+     */
+    private boolean mayOverlap(final File file) {
+        final String name = file.getName();
+        if (!name.endsWith(ProfileStore.SUFFIX)) {
+            return true;
+        }
+        final String stem = name.substring(0, name.length() - ProfileStore.SUFFIX.length());
+        final int endSeparator = stem.lastIndexOf('-');
+        final int startSeparator = endSeparator <= 0 ? -1 : stem.lastIndexOf('-', endSeparator - 1);
+        if (startSeparator < 0) {
+            return true;
+        }
+        try {
+            final long startMillis = Long.parseLong(stem.substring(startSeparator + 1, endSeparator));
+            final long endMillis = Long.parseLong(stem.substring(endSeparator + 1));
+            return endMillis > _fromMillis && startMillis < _toMillis;
+        } catch (final NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private void merge(final File file, final Result result) {
+        final StoredWindow window;
+        try {
+            window = ProfileStore.load(file);
+        } catch (final IOException e) {
+            result.errors.add(e.getMessage());
+            return;
+        }
+        if (window.getEndMillis() > _fromMillis && window.getStartMillis() < _toMillis) {
+            result.add(window, _endpoint, _maxNodes);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Suitable baseclass for custom implementations of {@link Statistics}.
+ *
+ * <p>Implements the methods which were added to the interface after its first release, with values meaning
+ * "not measured", so implementations written against the first release keep compiling when they extend this class.</p>
+ */
+public abstract class AbstractStatistics implements Statistics {
+    /**
+     * The overhead is not estimated.
+     * {@inheritDoc}
+     *
+     * @return 0
+     */
+    @Override
+    public long getEstimatedOverheadNanos() {
+        return 0;
+    }
+
+    /**
+     * The self time is not measured per layer.
+     * {@inheritDoc}
+     *
+     * @return an empty map
+     */
+    @Override
+    public Map<Layer, Long> getSelfNanosByLayer() {
+        return Collections.emptyMap();
+    }
+}
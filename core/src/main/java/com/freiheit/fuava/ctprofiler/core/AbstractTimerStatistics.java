@@ -0,0 +1,97 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core;
+
+/**
+ * Suitable baseclass for custom implementations of {@link TimerStatistics}.
+ *
+ * <p>Implements the methods which were added to the interface after its first release, with values meaning
+ * "not measured", so implementations written against the first release keep compiling when they extend this class.</p>
+ */
+public abstract class AbstractTimerStatistics implements TimerStatistics {
+    /**
+     * Nested measurements are not counted.
+     * {@inheritDoc}
+     *
+     * @return 0
+     */
+    @Override
+    public long getNumberOfNestedMeasurements() {
+        return 0;
+    }
+
+    /**
+     * Without nested measurements, there is nothing to compensate.
+     * {@inheritDoc}
+     *
+     * @return {@link #getTotalNanos()}
+     */
+    @Override
+    public long getCompensatedTotalNanos() {
+        return getTotalNanos();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return -1, not measured
+     */
+    @Override
+    public long getCpuNanos() {
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return -1, not measured
+     */
+    @Override
+    public long getAllocatedBytes() {
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return -1, not measured
+     */
+    @Override
+    public long getBlockedMillis() {
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return -1, not measured
+     */
+    @Override
+    public long getWaitedMillis() {
+        return -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return 0
+     */
+    @Override
+    public long getGcPauseNanos() {
+        return 0;
+    }
+}
@@ -27,8 +27,10 @@ import java.util.concurrent.ConcurrentHashMap;
 public final class Layers {
     private static final class LayerImpl implements Layer {
         private final String name;
-        public LayerImpl(final String name) {
+        private final int id;
+        public LayerImpl(final String name, final int id) {
             this.name = name;
+            this.id = id;
         }
         @Override
         public String getName() {
@@ -52,6 +54,7 @@ public final class Layers {
         }
     }
     private static final Map<String, Layer> registeredLayers = new ConcurrentHashMap<String, Layer>();
+    private static volatile Layer[] layersById = new Layer[0];
 
     /**
      * The Layer used if no layer was specified.
@@ -61,6 +64,10 @@ public final class Layers {
     public static Layer BUSINESS = forName("business");
     public static Layer INTEGRATION = forName("integration");
     public static Layer PRESENTATION = forName("presentation");
+    /**
+     * The Layer of time spent waiting, for example for an asynchronous task to be started.
+     */
+    public static Layer WAITING = forName("waiting");
 
     private Layers() {
         // utility class constructor
@@ -71,14 +78,46 @@ public final class Layers {
      */
     public static Layer forName(final String name) {
         final String key = name.toLowerCase();
+        final Layer r = registeredLayers.get(key);
+        return r == null ? register(key, name) : r;
+    }
+
+    private static synchronized Layer register(final String key, final String name) {
         Layer r = registeredLayers.get(key);
         if (r == null) {
-            r = new LayerImpl(name);
+            final Layer[] old = layersById;
+            final Layer[] layers = new Layer[old.length + 1];
+            System.arraycopy(old, 0, layers, 0, old.length);
+            r = new LayerImpl(name, old.length);
+            layers[old.length] = r;
+            layersById = layers;
             registeredLayers.put(key, r);
         }
         return r;
     }
 
+    /**
+     * Get the small integer id of the given layer, to index arrays with data per layer.
+     *
+     * <p>The ids are assigned in the order in which the layers are created, starting with 0. Layers
+     * which were not created by this class get the id of the layer of the same name.</p>
+     */
+    public static int getId(final Layer layer) {
+        if (layer instanceof LayerImpl) {
+            return ((LayerImpl) layer).id;
+        }
+        return ((LayerImpl) forName(layer.getName())).id;
+    }
+
+    /**
+     * Get the layer with the given id, see {@link #getId(Layer)}.
+     *
+     * @throws IndexOutOfBoundsException if no layer has the given id
+     */
+    public static Layer forId(final int id) {
+        return layersById[id];
+    }
+
     public static Layer inherit() {
         return INHERIT;
     }
@@ -20,6 +20,9 @@ import java.util.Collection;
 
 /**
  * Represents a Node in the CallTree
+ *
+ * <p>Custom implementations should extend {@link AbstractNode}, which implements the methods added
+ * after the first release.</p>
  * @author Klas Kalass (klas.kalass@freiheit.com) (initial creation)
  */
 public interface Node {
@@ -50,4 +53,11 @@ public interface Node {
      * @return never null
      */
     Collection<Node> getChildren();
+
+    /**
+     * The id of the path to this node, to compare nodes of different call trees without comparing names.
+     *
+     * @return the id in {@link PathIds}, or {@link PathIds#UNKNOWN} if the dictionary is full
+     */
+    int getPathId();
 }
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Process wide dictionary of the paths of call tree nodes, which maps a path to a compact integer id.
+ *
+ * <p>A path is identified by the id of its parent path, its layer and its timer name, so the id of a
+ * path is known as soon as the id of its parent is known. Call trees which carry the path id in each
+ * {@link Node#getPathId()} can be merged and compared by comparing integers instead of names.</p>
+ *
+ * <p>Looking up and adding paths is lock free and does not allocate. The number of ids is bounded
+ * by the system property "fdc.fuava.ctprofiler.maxPathIds" (default 100000): ids are never evicted,
+ * because aggregates keep referring to them. Once all ids are taken, new paths get {@link #UNKNOWN}
+ * and users fall back to comparing the names, while known paths keep their id.</p>
+ */
+public final class PathIds {
+    /**
+     * The id of the empty path, the parent of the toplevel measurements.
+     */
+    public static final int ROOT = 0;
+
+    /**
+     * The id of a path which is not in the dictionary, because it is full.
+     */
+    public static final int UNKNOWN = -1;
+
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    /**
+     * The entries of {@link #CHUNK_SIZE} consecutive ids, allocated when the first of these ids is assigned.
+     */
+    private static final class Chunk {
+        private final int[] parentIds = new int[CHUNK_SIZE];
+        private final int[] layerIds = new int[CHUNK_SIZE];
+        private final String[] names = new String[CHUNK_SIZE];
+    }
+
+    private static final int MAX_IDS = Math.max(1, Integer.getInteger("fdc.fuava.ctprofiler.maxPathIds", 100000).intValue());
+    private static final AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<Chunk>((MAX_IDS >> CHUNK_BITS) + 1);
+    // the id plus one per slot, 0 for an empty slot. At most half full, so lookups end quickly.
+    private static final AtomicIntegerArray table = new AtomicIntegerArray(Integer.highestOneBit(MAX_IDS) << 2);
+    private static final int mask = table.length() - 1;
+    private static final AtomicInteger nextId = new AtomicInteger(ROOT + 1);
+    private static final AtomicLong numberOfOverflows = new AtomicLong();
+
+    static {
+        final Chunk first = new Chunk();
+        first.parentIds[ROOT] = UNKNOWN;
+        first.layerIds[ROOT] = Layers.getId(Layers.DEFAULT);
+        first.names[ROOT] = "";
+        chunks.set(0, first);
+    }
+
+    private PathIds() {
+        // utility class constructor
+    }
+
+    /**
+     * Get the id of the path with the given layer and timer name below the given parent path, adding it if it is new.
+     *
+     * @param parentId the id of the parent path, {@link #ROOT} for a toplevel measurement
+     * @return the id of the path, or {@link #UNKNOWN} if the parent is unknown or the dictionary is full
+     */
+    public static int getId(final int parentId, final Layer layer, final String name) {
+        if (parentId == UNKNOWN) {
+            return UNKNOWN;
+        }
+        final int layerId = Layers.getId(layer);
+        int slot = hash(parentId, layerId, name) & mask;
+        while (true) {
+            final int entry = table.get(slot);
+            if (entry == 0) {
+                final int id = nextId.get();
+                if (id >= MAX_IDS) {
+                    numberOfOverflows.incrementAndGet();
+                    return UNKNOWN;
+                }
+                if (!nextId.compareAndSet(id, id + 1)) {
+                    // another thread took the id, look at the slot again
+                    continue;
+                }
+                final Chunk chunk = getOrCreateChunk(id >> CHUNK_BITS);
+                final int i = id & (CHUNK_SIZE - 1);
+                chunk.parentIds[i] = parentId;
+                chunk.layerIds[i] = layerId;
+                chunk.names[i] = name;
+                // publishes the entry written above
+                if (table.compareAndSet(slot, 0, id + 1)) {
+                    return id;
+                }
+                // another thread filled the slot first, the id stays unused
+                continue;
+            }
+            final int id = entry - 1;
+            final Chunk chunk = chunks.get(id >> CHUNK_BITS);
+            final int i = id & (CHUNK_SIZE - 1);
+            if (chunk.parentIds[i] == parentId && chunk.layerIds[i] == layerId && name.equals(chunk.names[i])) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static Chunk getOrCreateChunk(final int index) {
+        final Chunk existing = chunks.get(index);
+        if (existing != null) {
+            return existing;
+        }
+        chunks.compareAndSet(index, null, new Chunk());
+        return chunks.get(index);
+    }
+
+    private static int hash(final int parentId, final int layerId, final String name) {
+        final int h = (name.hashCode() * 31 + parentId) * 31 + layerId;
+        // spread the bits, the table is indexed by the lower bits
+        return h ^ (h >>> 16) ^ (h >>> 7);
+    }
+
+    /**
+     * The id of the parent path of the given path.
+     *
+     * @return the id of the parent, {@link #UNKNOWN} for {@link #ROOT}
+     */
+    public static int getParentId(final int id) {
+        return getChunk(id).parentIds[id & (CHUNK_SIZE - 1)];
+    }
+
+    /**
+     * The layer of the last measurement of the given path.
+     */
+    public static Layer getLayer(final int id) {
+        return Layers.forId(getChunk(id).layerIds[id & (CHUNK_SIZE - 1)]);
+    }
+
+    /**
+     * The timer name of the last measurement of the given path.
+     */
+    public static String getName(final int id) {
+        return getChunk(id).names[id & (CHUNK_SIZE - 1)];
+    }
+
+    private static Chunk getChunk(final int id) {
+        final Chunk chunk = id < 0 || id >= nextId.get() ? null : chunks.get(id >> CHUNK_BITS);
+        if (chunk == null) {
+            throw new IndexOutOfBoundsException("Unknown path id " + id);
+        }
+        return chunk;
+    }
+
+    /**
+     * The number of ids assigned so far.
+     */
+    public static int size() {
+        return Math.min(nextId.get(), MAX_IDS);
+    }
+
+    /**
+     * The maximum number of ids.
+     */
+    public static int getMaxSize() {
+        return MAX_IDS;
+    }
+
+    /**
+     * The number of lookups of new paths which got {@link #UNKNOWN}, because all ids were taken.
+     */
+    public static long getNumberOfOverflows() {
+        return numberOfOverflows.get();
+    }
+}
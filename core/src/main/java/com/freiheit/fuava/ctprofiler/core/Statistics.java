@@ -17,11 +17,15 @@
 package com.freiheit.fuava.ctprofiler.core;
 
 import java.util.Collection;
+import java.util.Map;
 
 
 /**
  * Simple Statistical information about the calls done within a thread.
  *
+ * <p>Custom implementations should extend {@link AbstractStatistics}, which implements the methods added
+ * after the first release.</p>
+ *
  * @author klas
  */
 public interface Statistics {
@@ -42,4 +46,19 @@ public interface Statistics {
     Collection<Node> getRoots();
 
     long getTotalNanos();
+
+    /**
+     * The estimated time the profiler itself needed for all measurements of this call tree,
+     * not including the measurements of sub-tasks.
+     */
+    long getEstimatedOverheadNanos();
+
+    /**
+     * The self time of all measurements by layer: the time of each measurement not spent in nested measurements
+     * is added to the layer of the measurement. Measurements which inherit their layer count for the layer of their
+     * parent. The values add up to the total time, not including sub-tasks.
+     *
+     * @return the self time in nanos of each layer in which time was spent
+     */
+    Map<Layer, Long> getSelfNanosByLayer();
 }
@@ -21,6 +21,9 @@ import java.util.Collection;
 /**
  * Statistical information about the calls to a nested timer.
  *
+ * <p>Custom implementations should extend {@link AbstractTimerStatistics}, which implements the methods added
+ * after the first release.</p>
+ *
  * @author klas
  */
 public interface TimerStatistics {
@@ -34,6 +37,62 @@ public interface TimerStatistics {
      */
     long getTotalNanos();
 
+    /**
+     * The number of measurements nested within all calls on this path, in the same thread.
+     */
+    long getNumberOfNestedMeasurements();
+
+    /**
+     * The total time of nanoseconds spent for all Calls on this path, without the
+     * estimated overhead of the profiler for the nested measurements.
+     *
+     * <p>In deep trees with many small nested calls, the profilers own cost can make up
+     * a relevant part of the total time, so compare this to {@link #getTotalNanos()}
+     * to see whether the measurement distorts the numbers.</p>
+     */
+    long getCompensatedTotalNanos();
+
+    /**
+     * The CPU time in nanoseconds the thread spent for all Calls on this path. Compared to
+     * {@link #getTotalNanos()}, it tells whether the calls were computing or waiting.
+     *
+     * @return the CPU time, or -1 if it was not measured, see
+     *  {@link com.freiheit.fuava.ctprofiler.core.impl.Configuration#isCpuTimeMeasured(Layer)}
+     */
+    long getCpuNanos();
+
+    /**
+     * The number of bytes the thread allocated for all Calls on this path, including the allocations of
+     * the profiler for the nested measurements.
+     *
+     * @return the allocated bytes, or -1 if they were not measured, see
+     *  {@link com.freiheit.fuava.ctprofiler.core.impl.Configuration#isAllocatedBytesMeasured(Layer)}
+     */
+    long getAllocatedBytes();
+
+    /**
+     * The time in milliseconds the thread was blocked entering or reentering a monitor for all Calls on this path.
+     *
+     * @return the blocked time, or -1 if it was not measured, see
+     *  {@link com.freiheit.fuava.ctprofiler.core.impl.Configuration#isContentionMeasured(Layer)}
+     */
+    long getBlockedMillis();
+
+    /**
+     * The time in milliseconds the thread was waiting (in {@link Object#wait()}, {@link Thread#join()},
+     * {@link java.util.concurrent.locks.LockSupport#park()} and the like) for all Calls on this path.
+     *
+     * @return the waited time, or -1 if it was not measured, see
+     *  {@link com.freiheit.fuava.ctprofiler.core.impl.Configuration#isContentionMeasured(Layer)}
+     */
+    long getWaitedMillis();
+
+    /**
+     * The time in nanoseconds all Calls on this path were stopped by garbage collection pauses. This time is
+     * contained in {@link #getTotalNanos()}, but was not caused by the calls themselves.
+     */
+    long getGcPauseNanos();
+
     /**
      * The Call Trees associated with bits of work executed for this path,
      * but in a different thread (thus not necessarily increasing call duration of our own thread)
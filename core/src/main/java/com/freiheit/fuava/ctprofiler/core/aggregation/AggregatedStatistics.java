@@ -0,0 +1,519 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.aggregation;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.freiheit.fuava.ctprofiler.core.Layer;
+import com.freiheit.fuava.ctprofiler.core.NestedTimerPath;
+import com.freiheit.fuava.ctprofiler.core.Node;
+import com.freiheit.fuava.ctprofiler.core.PathIds;
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+import com.freiheit.fuava.ctprofiler.core.TimerStatistics;
+
+/**
+ * A thread safe aggregate of many {@link Statistics} call trees.
+ *
+ * <p>Nodes are identified by their layer and timer name below their parent node, so merging the
+ * trees of many requests to the same endpoint yields one tree with the summed up number of calls
+ * and durations. Nodes are looked up by their {@link Node#getPathId() path id}, by name only for
+ * paths without id. Merging is lock free and may be done concurrently by any number of threads,
+ * readers see a weakly consistent view of the counters.</p>
+ *
+ * <p>The number of nodes is bounded: if a merge would exceed the maximum number of nodes,
+ * the new paths are dropped and only counted in {@link #getNumberOfDroppedNodes()}.</p>
+ */
+public final class AggregatedStatistics implements Statistics {
+
+    private static final class ChildKey {
+        private final Layer layer;
+        private final String name;
+
+        ChildKey(final Layer layer, final String name) {
+            this.layer = layer;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof ChildKey) {
+                final ChildKey k = (ChildKey)obj;
+                return name.equals(k.name) && layer.equals(k.layer);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() * 31 + layer.hashCode();
+        }
+    }
+
+    private static final class AggregatedPath implements NestedTimerPath {
+        private final AggregatedPath parent;
+        private final String name;
+        private final int level;
+
+        AggregatedPath(final AggregatedPath parent, final String name) {
+            this.parent = parent;
+            this.name = name;
+            this.level = parent == null ? 0 : parent.level + 1;
+        }
+
+        @Override
+        public String getLeafTimerName() {
+            return name;
+        }
+
+        @Override
+        public int getLevel() {
+            return level;
+        }
+
+        @Override
+        public NestedTimerPath getParent() {
+            return parent;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof AggregatedPath) {
+                final AggregatedPath p = (AggregatedPath)obj;
+                return level == p.level && name.equals(p.name)
+                        && (parent == null ? p.parent == null : parent.equals(p.parent));
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return (parent == null ? 0 : parent.hashCode() * 31) + name.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return parent == null || parent.level == 0 ? name : parent + "/" + name;
+        }
+    }
+
+    private final class AggregatedNode implements Node, TimerStatistics {
+        private final Layer layer;
+        private final AggregatedPath path;
+        private final int pathId;
+        private final AtomicInteger numberOfCalls = new AtomicInteger();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong nestedMeasurements = new AtomicLong();
+        private final AtomicLong compensatedTotalNanos = new AtomicLong();
+        private final AtomicLong cpuNanos = new AtomicLong(-1);
+        private final AtomicLong allocatedBytes = new AtomicLong(-1);
+        private final AtomicLong blockedMillis = new AtomicLong(-1);
+        private final AtomicLong waitedMillis = new AtomicLong(-1);
+        private final AtomicLong gcPauseNanos = new AtomicLong();
+        // only created for children without path id
+        private volatile ConcurrentHashMap<ChildKey, AggregatedNode> childrenByKey;
+        private final ConcurrentLinkedQueue<Node> children = new ConcurrentLinkedQueue<Node>();
+        private volatile AggregatedStatistics subStatistics;
+
+        AggregatedNode(final Layer layer, final AggregatedPath path, final int pathId) {
+            this.layer = layer;
+            this.path = path;
+            this.pathId = pathId;
+        }
+
+        AggregatedNode getOrCreateChild(final Layer childLayer, final String name, final int childPathId) {
+            if (childPathId == PathIds.UNKNOWN) {
+                return getOrCreateChildByKey(childLayer, name);
+            }
+            final Integer key = Integer.valueOf(childPathId);
+            final AggregatedNode existing = _nodesByPathId.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            if (_nodeCount.incrementAndGet() > _maxNodes) {
+                _nodeCount.decrementAndGet();
+                return null;
+            }
+            final AggregatedNode created = new AggregatedNode(childLayer, new AggregatedPath(path, name), childPathId);
+            final AggregatedNode raced = _nodesByPathId.putIfAbsent(key, created);
+            if (raced != null) {
+                _nodeCount.decrementAndGet();
+                return raced;
+            }
+            children.add(created);
+            return created;
+        }
+
+        private AggregatedNode getOrCreateChildByKey(final Layer childLayer, final String name) {
+            ConcurrentHashMap<ChildKey, AggregatedNode> byKey = childrenByKey;
+            if (byKey == null) {
+                synchronized (this) {
+                    byKey = childrenByKey;
+                    if (byKey == null) {
+                        byKey = new ConcurrentHashMap<ChildKey, AggregatedNode>(4, 0.75f, 1);
+                        childrenByKey = byKey;
+                    }
+                }
+            }
+            final ChildKey key = new ChildKey(childLayer, name);
+            final AggregatedNode existing = byKey.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            if (_nodeCount.incrementAndGet() > _maxNodes) {
+                _nodeCount.decrementAndGet();
+                return null;
+            }
+            final AggregatedNode created = new AggregatedNode(childLayer, new AggregatedPath(path, name), PathIds.UNKNOWN);
+            final AggregatedNode raced = byKey.putIfAbsent(key, created);
+            if (raced != null) {
+                _nodeCount.decrementAndGet();
+                return raced;
+            }
+            children.add(created);
+            return created;
+        }
+
+        AggregatedStatistics getOrCreateSubStatistics() {
+            AggregatedStatistics s = subStatistics;
+            if (s == null) {
+                synchronized (this) {
+                    s = subStatistics;
+                    if (s == null) {
+                        s = new AggregatedStatistics(AggregatedStatistics.this, SUBTASKS_NAME);
+                        subStatistics = s;
+                    }
+                }
+            }
+            return s;
+        }
+
+        @Override
+        public Layer getLayer() {
+            return layer;
+        }
+
+        @Override
+        public NestedTimerPath getPath() {
+            return path;
+        }
+
+        @Override
+        public TimerStatistics getTimerStatistics() {
+            return this;
+        }
+
+        @Override
+        public Collection<Node> getChildren() {
+            return Collections.unmodifiableCollection(children);
+        }
+
+        @Override
+        public int getPathId() {
+            return pathId;
+        }
+
+        @Override
+        public int getNumberOfCalls() {
+            return numberOfCalls.get();
+        }
+
+        @Override
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        @Override
+        public long getNumberOfNestedMeasurements() {
+            return nestedMeasurements.get();
+        }
+
+        @Override
+        public long getCompensatedTotalNanos() {
+            return compensatedTotalNanos.get();
+        }
+
+        @Override
+        public long getCpuNanos() {
+            return cpuNanos.get();
+        }
+
+        @Override
+        public long getAllocatedBytes() {
+            return allocatedBytes.get();
+        }
+
+        @Override
+        public long getBlockedMillis() {
+            return blockedMillis.get();
+        }
+
+        @Override
+        public long getWaitedMillis() {
+            return waitedMillis.get();
+        }
+
+        @Override
+        public long getGcPauseNanos() {
+            return gcPauseNanos.get();
+        }
+
+        @Override
+        public Collection<Statistics> getSubStatistics() {
+            final AggregatedStatistics s = subStatistics;
+            return s == null ? Collections.<Statistics>emptyList() : Collections.<Statistics>singletonList(s);
+        }
+
+        @Override
+        public String toString() {
+            return path + "[" + layer + "]";
+        }
+    }
+
+    private static final String SUBTASKS_NAME = "subtasks";
+
+    private static final long[] DURATION_BUCKET_BOUNDS_NANOS = {
+        1000000L, 5000000L, 10000000L, 25000000L, 50000000L, 100000000L, 250000000L,
+        500000000L, 1000000000L, 2500000000L, 5000000000L, 10000000000L
+    };
+
+    private final String _name;
+    private final long _id;
+    private final int _maxNodes;
+    private final AtomicInteger _nodeCount;
+    private final AtomicLong _numberOfMerges = new AtomicLong();
+    private final AtomicLong _numberOfDroppedNodes = new AtomicLong();
+    private final AtomicLong _estimatedOverheadNanos = new AtomicLong();
+    private final ConcurrentHashMap<Layer, AtomicLong> _selfNanosByLayer = new ConcurrentHashMap<Layer, AtomicLong>();
+    private final AtomicLongArray _durationBuckets = new AtomicLongArray(DURATION_BUCKET_BOUNDS_NANOS.length + 1);
+    // the nodes with path id of this aggregate, not including the nodes of sub-tasks
+    private final ConcurrentHashMap<Integer, AggregatedNode> _nodesByPathId = new ConcurrentHashMap<Integer, AggregatedNode>();
+    private final AggregatedNode _root;
+
+    /**
+     * Create an empty aggregate.
+     *
+     * @param name the name of the aggregate, for example an endpoint name. Reported as thread name.
+     * @param maxNodes the maximum number of nodes this aggregate will hold, including the nodes of aggregated sub-tasks
+     */
+    public AggregatedStatistics(final String name, final int maxNodes) {
+        if (name == null) {
+            throw new NullPointerException("name must not be null");
+        }
+        _name = name;
+        _id = -1;
+        _maxNodes = maxNodes;
+        _nodeCount = new AtomicInteger();
+        _root = new AggregatedNode(null, new AggregatedPath(null, ""), PathIds.ROOT);
+    }
+
+    /**
+     * Constructor for the aggregate of sub-tasks, sharing the node limit with its parent.
+     */
+    private AggregatedStatistics(final AggregatedStatistics parent, final String name) {
+        _name = name;
+        // a distinct id per nesting level, so renderers do not mistake sub-tasks for the parents own thread
+        _id = parent._id - 1;
+        _maxNodes = parent._maxNodes;
+        _nodeCount = parent._nodeCount;
+        _root = new AggregatedNode(null, new AggregatedPath(null, ""), PathIds.ROOT);
+    }
+
+    /**
+     * Merge the given call tree into this aggregate.
+     *
+     * <p>Sub-statistics that were measured in other threads are merged into one aggregate per node.</p>
+     *
+     * @param statistics the call tree to add
+     */
+    public void add(final Statistics statistics) {
+        _numberOfMerges.incrementAndGet();
+        _estimatedOverheadNanos.addAndGet(statistics.getEstimatedOverheadNanos());
+        _durationBuckets.incrementAndGet(getDurationBucket(statistics.getTotalNanos()));
+        for (final Map.Entry<Layer, Long> e : statistics.getSelfNanosByLayer().entrySet()) {
+            AtomicLong nanos = _selfNanosByLayer.get(e.getKey());
+            if (nanos == null) {
+                final AtomicLong created = new AtomicLong();
+                nanos = _selfNanosByLayer.putIfAbsent(e.getKey(), created);
+                if (nanos == null) {
+                    nanos = created;
+                }
+            }
+            nanos.addAndGet(e.getValue().longValue());
+        }
+        mergeChildren(_root, statistics, statistics.getRoots());
+    }
+
+    private void mergeChildren(final AggregatedNode target, final Statistics statistics, final Collection<Node> nodes) {
+        for (final Node node : nodes) {
+            final AggregatedNode child = target.getOrCreateChild(node.getLayer(), node.getPath().getLeafTimerName(), node.getPathId());
+            if (child == null) {
+                _numberOfDroppedNodes.incrementAndGet();
+                continue;
+            }
+            final TimerStatistics s = node.getTimerStatistics();
+            child.numberOfCalls.addAndGet(s.getNumberOfCalls());
+            child.totalNanos.addAndGet(s.getTotalNanos());
+            child.nestedMeasurements.addAndGet(s.getNumberOfNestedMeasurements());
+            child.compensatedTotalNanos.addAndGet(s.getCompensatedTotalNanos());
+            addMeasured(child.cpuNanos, s.getCpuNanos());
+            addMeasured(child.allocatedBytes, s.getAllocatedBytes());
+            addMeasured(child.blockedMillis, s.getBlockedMillis());
+            addMeasured(child.waitedMillis, s.getWaitedMillis());
+            child.gcPauseNanos.addAndGet(s.getGcPauseNanos());
+            for (final Statistics subState : s.getSubStatistics()) {
+                // substates of the same thread are already contained in the call tree
+                if (subState.getThreadId() != statistics.getThreadId()) {
+                    child.getOrCreateSubStatistics().add(subState);
+                }
+            }
+            mergeChildren(child, statistics, node.getChildren());
+        }
+    }
+
+    /**
+     * Add a value which is -1 if it was not measured, to a sum which is -1 until a measured value is added.
+     */
+    private static void addMeasured(final AtomicLong sum, final long value) {
+        if (value < 0) {
+            return;
+        }
+        long current;
+        do {
+            current = sum.get();
+        } while (!sum.compareAndSet(current, Math.max(0, current) + value));
+    }
+
+    private static int getDurationBucket(final long totalNanos) {
+        int i = 0;
+        while (i < DURATION_BUCKET_BOUNDS_NANOS.length && totalNanos > DURATION_BUCKET_BOUNDS_NANOS[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * The inclusive upper bounds of the buckets of the duration histogram, in nanoseconds. The last
+     * bucket of {@link #getDurationBucketCounts()} has no upper bound.
+     */
+    public static long[] getDurationBucketBoundsNanos() {
+        return DURATION_BUCKET_BOUNDS_NANOS.clone();
+    }
+
+    /**
+     * The histogram of the total durations of the merged call trees: the number of call trees per bucket,
+     * with one more bucket than {@link #getDurationBucketBoundsNanos()} for the durations above the last bound.
+     */
+    public long[] getDurationBucketCounts() {
+        final long[] r = new long[_durationBuckets.length()];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = _durationBuckets.get(i);
+        }
+        return r;
+    }
+
+    /**
+     * The name of this aggregate.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * The number of call trees merged into this aggregate.
+     */
+    public long getNumberOfMerges() {
+        return _numberOfMerges.get();
+    }
+
+    /**
+     * The number of nodes currently held by this aggregate, including the nodes of aggregated sub-tasks.
+     */
+    public int getNumberOfNodes() {
+        return _nodeCount.get();
+    }
+
+    /**
+     * The number of nodes that were not merged, because the maximum number of nodes was reached.
+     */
+    public long getNumberOfDroppedNodes() {
+        return _numberOfDroppedNodes.get();
+    }
+
+    /**
+     * Aggregates do not belong to a thread, this is a negative number that is distinct between
+     * an aggregate and the aggregates of its sub-tasks.
+     */
+    @Override
+    public long getThreadId() {
+        return _id;
+    }
+
+    /**
+     * The name of the aggregate.
+     */
+    @Override
+    public String getThreadName() {
+        return _name;
+    }
+
+    @Override
+    public Collection<Node> getRoots() {
+        return _root.getChildren();
+    }
+
+    @Override
+    public long getTotalNanos() {
+        long r = 0;
+        for (final Node n : _root.children) {
+            r += n.getTimerStatistics().getTotalNanos();
+        }
+        return r;
+    }
+
+    /**
+     * The summed up estimated overhead of all merged call trees.
+     */
+    @Override
+    public long getEstimatedOverheadNanos() {
+        return _estimatedOverheadNanos.get();
+    }
+
+    /**
+     * The summed up self time by layer of all merged call trees.
+     */
+    @Override
+    public Map<Layer, Long> getSelfNanosByLayer() {
+        final Map<Layer, Long> r = new HashMap<Layer, Long>();
+        for (final Map.Entry<Layer, AtomicLong> e : _selfNanosByLayer.entrySet()) {
+            r.put(e.getKey(), Long.valueOf(e.getValue().get()));
+        }
+        return r;
+    }
+
+    @Override
+    public String toString() {
+        return "AggregatedStatistics[" + _name + ", merges: " + _numberOfMerges.get() + ", nodes: " + _nodeCount.get() + "]";
+    }
+}
@@ -0,0 +1,531 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.aggregation;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.freiheit.fuava.ctprofiler.core.Layer;
+import com.freiheit.fuava.ctprofiler.core.Layers;
+import com.freiheit.fuava.ctprofiler.core.NestedTimerPath;
+import com.freiheit.fuava.ctprofiler.core.Node;
+import com.freiheit.fuava.ctprofiler.core.PathIds;
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+import com.freiheit.fuava.ctprofiler.core.TimerStatistics;
+
+/**
+ * Like {@link AggregatedStatistics}, merges call trees into one tree with one node per path, but keeps the nodes
+ * outside of the Java heap.
+ *
+ * <p>Meant for aggregates which live for a long time and have many nodes, for example the aggregate of all
+ * requests of several days: the nodes do not add to the objects the garbage collector has to mark. Each node is a
+ * fixed size record in a direct {@link ByteBuffer}, the children of a node are found through an open addressing
+ * hash table in a second direct buffer. Only the distinct timer names are kept on the heap.</p>
+ *
+ * <p>The counters of a node are updated under one of several locks, chosen by the index of the node.
+ * New nodes are added under one lock for the structure, looking up existing nodes does not lock. The path id
+ * and the level of a node are stored in its record when it is added. Both buffers are allocated with the maximum
+ * number of nodes when the aggregate is created, further paths are dropped and counted in
+ * {@link #getNumberOfDroppedNodes()}.</p>
+ *
+ * <p>Reading returns lightweight views of the records, which are created while traversing. A view copies all
+ * counters of its node under the lock of the node when the first counter is read, so the counters of one view
+ * are consistent with each other. The call trees of sub-tasks are not kept.</p>
+ */
+public final class OffHeapAggregatedStatistics implements Statistics {
+    // the layout of a node record
+    private static final int PARENT = 0;
+    private static final int LAYER = 4;
+    private static final int NAME = 8;
+    private static final int FIRST_CHILD = 12;
+    private static final int LAST_CHILD = 16;
+    private static final int NEXT_SIBLING = 20;
+    private static final int PATH_ID = 24;
+    private static final int LEVEL = 28;
+    private static final int CALLS = 32;
+    private static final int TOTAL_NANOS = 40;
+    private static final int NESTED_MEASUREMENTS = 48;
+    private static final int COMPENSATED_TOTAL_NANOS = 56;
+    private static final int CPU_NANOS = 64;
+    private static final int ALLOCATED_BYTES = 72;
+    private static final int BLOCKED_MILLIS = 80;
+    private static final int WAITED_MILLIS = 88;
+    private static final int GC_PAUSE_NANOS = 96;
+    private static final int RECORD_SIZE = 104;
+    private static final int NUMBER_OF_COUNTERS = (RECORD_SIZE - CALLS) / 8;
+
+    private static final int NONE = -1;
+    private static final int ROOT = 0;
+    private static final int NUMBER_OF_LOCKS = 16;
+
+    private final String _name;
+    private final int _maxNodes;
+    private final ByteBuffer _nodes;
+    // the index of a node plus one per slot, 0 for an empty slot
+    private final ByteBuffer _childTable;
+    private final int _childTableMask;
+    private final Object[] _locks = new Object[NUMBER_OF_LOCKS];
+    private final Object _structureLock = new Object();
+
+    // written under the structure lock
+    private final ConcurrentHashMap<String, Integer> _nameIds = new ConcurrentHashMap<String, Integer>();
+    private volatile String[] _names = new String[64];
+    private int _numberOfNames;
+    private volatile int _numberOfNodes;
+
+    private final AtomicLong _numberOfMerges = new AtomicLong();
+    private final AtomicLong _numberOfDroppedNodes = new AtomicLong();
+    private final AtomicLong _estimatedOverheadNanos = new AtomicLong();
+    private final ConcurrentHashMap<Layer, AtomicLong> _selfNanosByLayer = new ConcurrentHashMap<Layer, AtomicLong>();
+
+    /**
+     * Create an empty aggregate, allocating the memory for all nodes.
+     *
+     * @param name the name of the aggregate, for example an endpoint name. Reported as thread name.
+     * @param maxNodes the maximum number of nodes this aggregate will hold
+     */
+    public OffHeapAggregatedStatistics(final String name, final int maxNodes) {
+        if (name == null) {
+            throw new NullPointerException("name must not be null");
+        }
+        _name = name;
+        _maxNodes = maxNodes;
+        // the synthetic root is the first record, it is never looked up by name
+        _nodes = ByteBuffer.allocateDirect((maxNodes + 1) * RECORD_SIZE);
+        final int childTableSize = Integer.highestOneBit(Math.max(2, maxNodes) * 2 - 1) << 1;
+        _childTable = ByteBuffer.allocateDirect(childTableSize * 4);
+        _childTableMask = childTableSize - 1;
+        for (int i = 0; i < _locks.length; i++) {
+            _locks[i] = new Object();
+        }
+        // name id 0 is the name of the root, so zeroed records never match a lookup
+        _names[0] = "";
+        _nameIds.put("", Integer.valueOf(0));
+        _numberOfNames = 1;
+        initRecord(ROOT, NONE, Layers.getId(Layers.DEFAULT), 0, PathIds.ROOT, 0);
+        _numberOfNodes = 1;
+    }
+
+    /**
+     * Merge the given call tree into this aggregate.
+     *
+     * @param statistics the call tree to add
+     */
+    public void add(final Statistics statistics) {
+        _numberOfMerges.incrementAndGet();
+        _estimatedOverheadNanos.addAndGet(statistics.getEstimatedOverheadNanos());
+        for (final Map.Entry<Layer, Long> e : statistics.getSelfNanosByLayer().entrySet()) {
+            AtomicLong nanos = _selfNanosByLayer.get(e.getKey());
+            if (nanos == null) {
+                final AtomicLong created = new AtomicLong();
+                nanos = _selfNanosByLayer.putIfAbsent(e.getKey(), created);
+                if (nanos == null) {
+                    nanos = created;
+                }
+            }
+            nanos.addAndGet(e.getValue().longValue());
+        }
+        mergeChildren(ROOT, statistics.getRoots());
+    }
+
+    private void mergeChildren(final int parent, final Collection<Node> nodes) {
+        for (final Node node : nodes) {
+            final Layer layer = node.getLayer();
+            final int child = getOrCreateChild(parent, layer, node.getPath().getLeafTimerName());
+            if (child == NONE) {
+                _numberOfDroppedNodes.incrementAndGet();
+                continue;
+            }
+            final TimerStatistics s = node.getTimerStatistics();
+            final int offset = child * RECORD_SIZE;
+            synchronized (_locks[child % NUMBER_OF_LOCKS]) {
+                add(offset + CALLS, s.getNumberOfCalls());
+                add(offset + TOTAL_NANOS, s.getTotalNanos());
+                add(offset + NESTED_MEASUREMENTS, s.getNumberOfNestedMeasurements());
+                add(offset + COMPENSATED_TOTAL_NANOS, s.getCompensatedTotalNanos());
+                addMeasured(offset + CPU_NANOS, s.getCpuNanos());
+                addMeasured(offset + ALLOCATED_BYTES, s.getAllocatedBytes());
+                addMeasured(offset + BLOCKED_MILLIS, s.getBlockedMillis());
+                addMeasured(offset + WAITED_MILLIS, s.getWaitedMillis());
+                add(offset + GC_PAUSE_NANOS, s.getGcPauseNanos());
+            }
+            mergeChildren(child, node.getChildren());
+        }
+    }
+
+    private void add(final int position, final long value) {
+        _nodes.putLong(position, _nodes.getLong(position) + value);
+    }
+
+    /**
+     * Add a value which is -1 if it was not measured, to a sum which is -1 until a measured value is added.
+     */
+    private void addMeasured(final int position, final long value) {
+        if (value >= 0) {
+            _nodes.putLong(position, Math.max(0, _nodes.getLong(position)) + value);
+        }
+    }
+
+    private int getOrCreateChild(final int parent, final Layer layer, final String name) {
+        final int layerId = Layers.getId(layer);
+        // reading the number of nodes makes all nodes added before visible
+        final int numberOfNodes = _numberOfNodes;
+        final Integer nameId = _nameIds.get(name);
+        if (nameId != null) {
+            final int found = findChild(parent, layerId, nameId.intValue(), numberOfNodes);
+            if (found != NONE) {
+                return found;
+            }
+        }
+        synchronized (_structureLock) {
+            final int id = nameId != null ? nameId.intValue() : getOrCreateNameId(name);
+            final int found = findChild(parent, layerId, id, _numberOfNodes);
+            if (found != NONE) {
+                return found;
+            }
+            if (_numberOfNodes > _maxNodes) {
+                return NONE;
+            }
+            final int child = _numberOfNodes;
+            final int parentOffset = parent * RECORD_SIZE;
+            final int pathId = PathIds.getId(_nodes.getInt(parentOffset + PATH_ID), layer, name);
+            initRecord(child, parent, layerId, id, pathId, _nodes.getInt(parentOffset + LEVEL) + 1);
+            final int last = _nodes.getInt(parentOffset + LAST_CHILD);
+            if (last == NONE) {
+                _nodes.putInt(parentOffset + FIRST_CHILD, child);
+            } else {
+                _nodes.putInt(last * RECORD_SIZE + NEXT_SIBLING, child);
+            }
+            _nodes.putInt(parentOffset + LAST_CHILD, child);
+            int slot = hash(parent, layerId, id) & _childTableMask;
+            while (_childTable.getInt(slot * 4) != 0) {
+                slot = (slot + 1) & _childTableMask;
+            }
+            _childTable.putInt(slot * 4, child + 1);
+            _numberOfNodes = child + 1;
+            return child;
+        }
+    }
+
+    /**
+     * Look up a child in the hash table, only considering the given number of published nodes.
+     */
+    private int findChild(final int parent, final int layerId, final int nameId, final int numberOfNodes) {
+        int slot = hash(parent, layerId, nameId) & _childTableMask;
+        int entry;
+        while ((entry = _childTable.getInt(slot * 4)) != 0) {
+            final int node = entry - 1;
+            final int offset = node * RECORD_SIZE;
+            if (node < numberOfNodes
+                    && _nodes.getInt(offset + NAME) == nameId
+                    && _nodes.getInt(offset + PARENT) == parent
+                    && _nodes.getInt(offset + LAYER) == layerId) {
+                return node;
+            }
+            slot = (slot + 1) & _childTableMask;
+        }
+        return NONE;
+    }
+
+    private static int hash(final int parent, final int layerId, final int nameId) {
+        final int h = (parent * 31 + nameId) * 31 + layerId;
+        // spread the bits, the table is indexed by the lower bits
+        return h ^ (h >>> 16) ^ (h >>> 7);
+    }
+
+    private int getOrCreateNameId(final String name) {
+        final Integer existing = _nameIds.get(name);
+        if (existing != null) {
+            return existing.intValue();
+        }
+        final int id = _numberOfNames++;
+        String[] names = _names;
+        if (id == names.length) {
+            names = Arrays.copyOf(names, names.length * 2);
+        }
+        names[id] = name;
+        // publish the name before its id
+        _names = names;
+        _nameIds.put(name, Integer.valueOf(id));
+        return id;
+    }
+
+    private void initRecord(final int node, final int parent, final int layerId, final int nameId, final int pathId, final int level) {
+        final int offset = node * RECORD_SIZE;
+        _nodes.putInt(offset + PARENT, parent);
+        _nodes.putInt(offset + LAYER, layerId);
+        _nodes.putInt(offset + NAME, nameId);
+        _nodes.putInt(offset + FIRST_CHILD, NONE);
+        _nodes.putInt(offset + LAST_CHILD, NONE);
+        _nodes.putInt(offset + NEXT_SIBLING, NONE);
+        _nodes.putInt(offset + PATH_ID, pathId);
+        _nodes.putInt(offset + LEVEL, level);
+        _nodes.putLong(offset + CPU_NANOS, -1);
+        _nodes.putLong(offset + ALLOCATED_BYTES, -1);
+        _nodes.putLong(offset + BLOCKED_MILLIS, -1);
+        _nodes.putLong(offset + WAITED_MILLIS, -1);
+    }
+
+    private long[] getCounters(final int node) {
+        final long[] counters = new long[NUMBER_OF_COUNTERS];
+        final int offset = node * RECORD_SIZE + CALLS;
+        synchronized (_locks[node % NUMBER_OF_LOCKS]) {
+            for (int i = 0; i < counters.length; i++) {
+                counters[i] = _nodes.getLong(offset + i * 8);
+            }
+        }
+        return counters;
+    }
+
+    private Collection<Node> getChildren(final int parent) {
+        // reading the number of nodes makes all nodes added before visible
+        final int numberOfNodes = _numberOfNodes;
+        final List<Node> children = new ArrayList<Node>();
+        for (int c = _nodes.getInt(parent * RECORD_SIZE + FIRST_CHILD); c != NONE && c < numberOfNodes; c = _nodes.getInt(c * RECORD_SIZE + NEXT_SIBLING)) {
+            children.add(new NodeView(c));
+        }
+        return Collections.unmodifiableList(children);
+    }
+
+    /**
+     * A view of one node record, used as node, path and statistics.
+     */
+    private final class NodeView implements Node, NestedTimerPath, TimerStatistics {
+        private final int index;
+        // copied when the first counter is read
+        private long[] counters;
+
+        NodeView(final int index) {
+            this.index = index;
+        }
+
+        private long getCounter(final int field) {
+            if (counters == null) {
+                counters = getCounters(index);
+            }
+            return counters[(field - CALLS) / 8];
+        }
+
+        @Override
+        public Layer getLayer() {
+            return Layers.forId(_nodes.getInt(index * RECORD_SIZE + LAYER));
+        }
+
+        @Override
+        public NestedTimerPath getPath() {
+            return this;
+        }
+
+        @Override
+        public TimerStatistics getTimerStatistics() {
+            return this;
+        }
+
+        @Override
+        public Collection<Node> getChildren() {
+            return OffHeapAggregatedStatistics.this.getChildren(index);
+        }
+
+        @Override
+        public int getPathId() {
+            return _nodes.getInt(index * RECORD_SIZE + PATH_ID);
+        }
+
+        @Override
+        public String getLeafTimerName() {
+            return _names[_nodes.getInt(index * RECORD_SIZE + NAME)];
+        }
+
+        @Override
+        public int getLevel() {
+            return _nodes.getInt(index * RECORD_SIZE + LEVEL);
+        }
+
+        @Override
+        public NestedTimerPath getParent() {
+            final int parent = _nodes.getInt(index * RECORD_SIZE + PARENT);
+            return parent == NONE ? null : new NodeView(parent);
+        }
+
+        @Override
+        public int getNumberOfCalls() {
+            return (int) getCounter(CALLS);
+        }
+
+        @Override
+        public long getTotalNanos() {
+            return getCounter(TOTAL_NANOS);
+        }
+
+        @Override
+        public long getNumberOfNestedMeasurements() {
+            return getCounter(NESTED_MEASUREMENTS);
+        }
+
+        @Override
+        public long getCompensatedTotalNanos() {
+            return getCounter(COMPENSATED_TOTAL_NANOS);
+        }
+
+        @Override
+        public long getCpuNanos() {
+            return getCounter(CPU_NANOS);
+        }
+
+        @Override
+        public long getAllocatedBytes() {
+            return getCounter(ALLOCATED_BYTES);
+        }
+
+        @Override
+        public long getBlockedMillis() {
+            return getCounter(BLOCKED_MILLIS);
+        }
+
+        @Override
+        public long getWaitedMillis() {
+            return getCounter(WAITED_MILLIS);
+        }
+
+        @Override
+        public long getGcPauseNanos() {
+            return getCounter(GC_PAUSE_NANOS);
+        }
+
+        @Override
+        public Collection<Statistics> getSubStatistics() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof NodeView) {
+                final NodeView v = (NodeView) obj;
+                return index == v.index && getOwner() == v.getOwner();
+            }
+            return false;
+        }
+
+        private OffHeapAggregatedStatistics getOwner() {
+            return OffHeapAggregatedStatistics.this;
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
+        }
+
+        @Override
+        public String toString() {
+            final NestedTimerPath parent = getParent();
+            return parent == null || parent.getLevel() == 0 ? getLeafTimerName() : parent + "/" + getLeafTimerName();
+        }
+    }
+
+    /**
+     * The number of call trees merged into this aggregate.
+     */
+    public long getNumberOfMerges() {
+        return _numberOfMerges.get();
+    }
+
+    /**
+     * The number of nodes held by this aggregate.
+     */
+    public int getNumberOfNodes() {
+        return _numberOfNodes - 1;
+    }
+
+    /**
+     * The number of nodes that were not merged, because the maximum number of nodes was reached.
+     */
+    public long getNumberOfDroppedNodes() {
+        return _numberOfDroppedNodes.get();
+    }
+
+    /**
+     * The number of bytes allocated outside of the heap for the nodes.
+     */
+    public long getOffHeapBytes() {
+        return _nodes.capacity() + (long) _childTable.capacity();
+    }
+
+    /**
+     * Aggregates do not belong to a thread.
+     *
+     * @return -1
+     */
+    @Override
+    public long getThreadId() {
+        return -1;
+    }
+
+    /**
+     * The name of the aggregate.
+     */
+    @Override
+    public String getThreadName() {
+        return _name;
+    }
+
+    @Override
+    public Collection<Node> getRoots() {
+        return getChildren(ROOT);
+    }
+
+    @Override
+    public long getTotalNanos() {
+        long r = 0;
+        for (final Node n : getRoots()) {
+            r += n.getTimerStatistics().getTotalNanos();
+        }
+        return r;
+    }
+
+    /**
+     * The summed up estimated overhead of all merged call trees.
+     */
+    @Override
+    public long getEstimatedOverheadNanos() {
+        return _estimatedOverheadNanos.get();
+    }
+
+    /**
+     * The summed up self time by layer of all merged call trees.
+     */
+    @Override
+    public Map<Layer, Long> getSelfNanosByLayer() {
+        final Map<Layer, Long> r = new HashMap<Layer, Long>();
+        for (final Map.Entry<Layer, AtomicLong> e : _selfNanosByLayer.entrySet()) {
+            r.put(e.getKey(), Long.valueOf(e.getValue().get()));
+        }
+        return r;
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapAggregatedStatistics[" + _name + ", merges: " + _numberOfMerges.get() + ", nodes: " + getNumberOfNodes() + "]";
+    }
+}
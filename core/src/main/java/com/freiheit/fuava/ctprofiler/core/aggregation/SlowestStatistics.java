@@ -0,0 +1,141 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.aggregation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+
+/**
+ * Retains the slowest of the call trees added to it.
+ *
+ * <p>The call trees are kept in a min-heap of bounded size. Once the heap is full, a call tree which is
+ * not slower than the fastest retained one is rejected after reading a single volatile field, without
+ * locking. Only call trees which make it into the heap take the lock.</p>
+ *
+ * <p>The call trees are retained as given, so only add immutable statistics, like the ones returned by
+ * {@link com.freiheit.fuava.ctprofiler.core.CallTreeProfiler#getStatistics()}.</p>
+ */
+public final class SlowestStatistics {
+
+    /**
+     * One retained call tree.
+     */
+    public static final class Entry {
+        private final long endMillis;
+        private final long totalNanos;
+        private final Statistics statistics;
+
+        Entry(final long endMillis, final Statistics statistics) {
+            this.endMillis = endMillis;
+            this.totalNanos = statistics.getTotalNanos();
+            this.statistics = statistics;
+        }
+
+        /**
+         * The time (as in {@link System#currentTimeMillis()}) when the call tree was added.
+         */
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public Statistics getStatistics() {
+            return statistics;
+        }
+    }
+
+    private static final Comparator<Entry> FASTEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry o1, final Entry o2) {
+            final long n1 = o1.getTotalNanos();
+            final long n2 = o2.getTotalNanos();
+            return n1 < n2 ? -1 : (n1 > n2 ? 1 : 0);
+        }
+    };
+
+    private final int _maxEntries;
+    private final PriorityQueue<Entry> _heap;
+    // the duration of the fastest retained call tree once the heap is full, -1 before
+    private volatile long _minNanos = -1;
+
+    /**
+     * Create an empty retention.
+     *
+     * @param maxEntries the number of call trees to retain
+     */
+    public SlowestStatistics(final int maxEntries) {
+        _maxEntries = maxEntries;
+        _heap = new PriorityQueue<Entry>(Math.max(1, maxEntries), FASTEST_FIRST);
+    }
+
+    /**
+     * Check whether a call tree of the given duration would currently be retained, to avoid creating
+     * statistics which would be rejected anyway.
+     */
+    public boolean isCandidate(final long totalNanos) {
+        return _maxEntries > 0 && totalNanos > _minNanos;
+    }
+
+    /**
+     * Retain the given call tree if it is among the slowest.
+     *
+     * @return true if the call tree was retained
+     */
+    public boolean add(final Statistics statistics) {
+        if (!isCandidate(statistics.getTotalNanos())) {
+            return false;
+        }
+        final Entry entry = new Entry(System.currentTimeMillis(), statistics);
+        synchronized (_heap) {
+            if (_heap.size() >= _maxEntries) {
+                if (_heap.peek().getTotalNanos() >= entry.getTotalNanos()) {
+                    return false;
+                }
+                _heap.poll();
+            }
+            _heap.add(entry);
+            if (_heap.size() >= _maxEntries) {
+                _minNanos = _heap.peek().getTotalNanos();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The retained call trees, the slowest first.
+     */
+    public List<Entry> getEntries() {
+        final List<Entry> l;
+        synchronized (_heap) {
+            l = new ArrayList<Entry>(_heap);
+        }
+        Collections.sort(l, Collections.reverseOrder(FASTEST_FIRST));
+        return l;
+    }
+
+    public int getMaxEntries() {
+        return _maxEntries;
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.aggregation;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+
+/**
+ * Aggregates call trees by a key (for example the endpoint of a request) in rolling time windows.
+ *
+ * <p>The number of keys is bounded: once the maximum number of keys is reached, call trees for
+ * further keys are merged into the aggregate named {@link #OVERFLOW_KEY}. Each aggregate
+ * is bounded in its number of nodes as well, see {@link AggregatedStatistics}.</p>
+ *
+ * <p>Optionally, the slowest call trees of each key are retained as they are, see {@link SlowestStatistics}.</p>
+ *
+ * <p>All methods may be called concurrently. {@link #rotate()} starts a new window and returns
+ * the previous one, merges that are running concurrently to the rotation may still end up in the
+ * returned window.</p>
+ */
+public final class StatisticsAggregator {
+    /**
+     * The key of the aggregate that collects the call trees of all keys exceeding the maximum number of keys.
+     */
+    public static final String OVERFLOW_KEY = "(other)";
+
+    /**
+     * All aggregates collected during one time window.
+     */
+    public static final class Window {
+        private final long startMillis;
+        private volatile long endMillis;
+        private final ConcurrentHashMap<String, AggregatedStatistics> aggregates = new ConcurrentHashMap<String, AggregatedStatistics>();
+        private final ConcurrentHashMap<String, SlowestStatistics> slowest = new ConcurrentHashMap<String, SlowestStatistics>();
+
+        Window(final long startMillis) {
+            this.startMillis = startMillis;
+        }
+
+        /**
+         * The time (as in {@link System#currentTimeMillis()}) when this window was started.
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * The time (as in {@link System#currentTimeMillis()}) when this window was closed, or 0 if it still is the current window.
+         */
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        /**
+         * The aggregates of this window by key.
+         */
+        public Map<String, AggregatedStatistics> getAggregates() {
+            return Collections.unmodifiableMap(aggregates);
+        }
+
+        /**
+         * The slowest call trees of this window by key, empty if the aggregator does not retain call trees.
+         */
+        public Map<String, SlowestStatistics> getSlowest() {
+            return Collections.unmodifiableMap(slowest);
+        }
+    }
+
+    private final int _maxKeys;
+    private final int _maxNodesPerKey;
+    private final int _maxSlowestPerKey;
+    private final AtomicReference<Window> _window;
+
+    /**
+     * Create an aggregator.
+     *
+     * @param maxKeys the maximum number of distinct keys per window
+     * @param maxNodesPerKey the maximum number of nodes of each aggregated call tree
+     */
+    public StatisticsAggregator(final int maxKeys, final int maxNodesPerKey) {
+        this(maxKeys, maxNodesPerKey, 0);
+    }
+
+    /**
+     * Create an aggregator which also retains the slowest call trees of each key.
+     *
+     * @param maxKeys the maximum number of distinct keys per window
+     * @param maxNodesPerKey the maximum number of nodes of each aggregated call tree
+     * @param maxSlowestPerKey the number of call trees to retain per key and window, 0 to retain none
+     */
+    public StatisticsAggregator(final int maxKeys, final int maxNodesPerKey, final int maxSlowestPerKey) {
+        _maxKeys = maxKeys;
+        _maxNodesPerKey = maxNodesPerKey;
+        _maxSlowestPerKey = maxSlowestPerKey;
+        _window = new AtomicReference<Window>(new Window(System.currentTimeMillis()));
+    }
+
+    /**
+     * Merge the given call tree into the aggregate for the given key in the current window.
+     *
+     * @param key the key to aggregate by, typically the name of the endpoint
+     * @param statistics the call tree to merge
+     */
+    public void add(final String key, final Statistics statistics) {
+        final Window window = _window.get();
+        final AggregatedStatistics aggregate = getAggregate(window, key);
+        aggregate.add(statistics);
+        if (_maxSlowestPerKey > 0) {
+            getSlowest(window, aggregate.getName()).add(statistics);
+        }
+    }
+
+    private SlowestStatistics getSlowest(final Window window, final String key) {
+        final SlowestStatistics existing = window.slowest.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        final SlowestStatistics created = new SlowestStatistics(_maxSlowestPerKey);
+        final SlowestStatistics raced = window.slowest.putIfAbsent(key, created);
+        return raced == null ? created : raced;
+    }
+
+    private AggregatedStatistics getAggregate(final Window window, final String key) {
+        final ConcurrentHashMap<String, AggregatedStatistics> aggregates = window.aggregates;
+        final AggregatedStatistics existing = aggregates.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        final String k = aggregates.size() < _maxKeys ? key : OVERFLOW_KEY;
+        final AggregatedStatistics created = new AggregatedStatistics(k, _maxNodesPerKey);
+        final AggregatedStatistics raced = aggregates.putIfAbsent(k, created);
+        return raced == null ? created : raced;
+    }
+
+    /**
+     * The window currently collecting call trees.
+     */
+    public Window getCurrentWindow() {
+        return _window.get();
+    }
+
+    /**
+     * Close the current window and start a new one.
+     *
+     * @return the window that was closed
+     */
+    public Window rotate() {
+        final long now = System.currentTimeMillis();
+        final Window closed = _window.getAndSet(new Window(now));
+        closed.endMillis = now;
+        return closed;
+    }
+
+    public int getMaxKeys() {
+        return _maxKeys;
+    }
+
+    public int getMaxNodesPerKey() {
+        return _maxNodesPerKey;
+    }
+
+    public int getMaxSlowestPerKey() {
+        return _maxSlowestPerKey;
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.aggregation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.freiheit.fuava.ctprofiler.core.Layer;
+import com.freiheit.fuava.ctprofiler.core.Node;
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+import com.freiheit.fuava.ctprofiler.core.TimerStatistics;
+
+/**
+ * Finds the nodes of call trees in which the most time was spent, not counting the time of their children.
+ *
+ * <p>Typically used on {@link AggregatedStatistics}, to see where an endpoint spends its time. Uses a bounded
+ * heap, so ranking a large tree only keeps the requested number of nodes.</p>
+ */
+public final class TopNodes {
+
+    /**
+     * One ranked node.
+     */
+    public static final class Entry {
+        private final String source;
+        private final String path;
+        private final Layer layer;
+        private final int numberOfCalls;
+        private final long totalNanos;
+        private final long selfNanos;
+
+        Entry(final String source, final String path, final Layer layer, final int numberOfCalls, final long totalNanos, final long selfNanos) {
+            this.source = source;
+            this.path = path;
+            this.layer = layer;
+            this.numberOfCalls = numberOfCalls;
+            this.totalNanos = totalNanos;
+            this.selfNanos = selfNanos;
+        }
+
+        /**
+         * The name of the call tree containing the node, for example an endpoint.
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * The timer names from the root to the node, separated by '/'.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public Layer getLayer() {
+            return layer;
+        }
+
+        public int getNumberOfCalls() {
+            return numberOfCalls;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * The total time minus the total time of the children.
+         */
+        public long getSelfNanos() {
+            return selfNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[%7d] %12.2fms self %12.2fms %s: %s [%s]",
+                    Long.valueOf(numberOfCalls),
+                    Double.valueOf(totalNanos / 1000000.0),
+                    Double.valueOf(selfNanos / 1000000.0),
+                    source, path, layer.getName());
+        }
+    }
+
+    private static final Comparator<Entry> SMALLEST_SELF_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry o1, final Entry o2) {
+            final long n1 = o1.getSelfNanos();
+            final long n2 = o2.getSelfNanos();
+            return n1 < n2 ? -1 : (n1 > n2 ? 1 : 0);
+        }
+    };
+
+    private final int _maxEntries;
+    private final PriorityQueue<Entry> _heap;
+
+    /**
+     * Create an empty ranking.
+     *
+     * @param maxEntries the number of nodes to keep
+     */
+    public TopNodes(final int maxEntries) {
+        _maxEntries = maxEntries;
+        _heap = new PriorityQueue<Entry>(Math.max(1, maxEntries), SMALLEST_SELF_FIRST);
+    }
+
+    /**
+     * Rank all nodes of the given call tree, not including sub-tasks.
+     *
+     * @param source the name of the call tree, reported by {@link Entry#getSource()}
+     */
+    public TopNodes add(final String source, final Statistics statistics) {
+        addNodes(source, "", statistics.getRoots());
+        return this;
+    }
+
+    private void addNodes(final String source, final String parentPath, final Collection<Node> nodes) {
+        for (final Node node : nodes) {
+            final TimerStatistics s = node.getTimerStatistics();
+            long childNanos = 0;
+            for (final Node child : node.getChildren()) {
+                childNanos += child.getTimerStatistics().getTotalNanos();
+            }
+            final long selfNanos = s.getTotalNanos() - childNanos;
+            final String name = node.getPath().getLeafTimerName();
+            final String path = parentPath.length() == 0 ? name : parentPath + "/" + name;
+            if (_heap.size() < _maxEntries) {
+                _heap.add(new Entry(source, path, node.getLayer(), s.getNumberOfCalls(), s.getTotalNanos(), selfNanos));
+            } else if (_maxEntries > 0 && _heap.peek().getSelfNanos() < selfNanos) {
+                _heap.poll();
+                _heap.add(new Entry(source, path, node.getLayer(), s.getNumberOfCalls(), s.getTotalNanos(), selfNanos));
+            }
+            addNodes(source, path, node.getChildren());
+        }
+    }
+
+    /**
+     * The ranked nodes, the node with the largest self time first.
+     */
+    public List<Entry> getEntries() {
+        final List<Entry> l = new ArrayList<Entry>(_heap);
+        Collections.sort(l, Collections.reverseOrder(SMALLEST_SELF_FIRST));
+        return l;
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.diff;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.freiheit.fuava.ctprofiler.core.Layer;
+import com.freiheit.fuava.ctprofiler.core.Node;
+import com.freiheit.fuava.ctprofiler.core.PathIds;
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+import com.freiheit.fuava.ctprofiler.core.TimerStatistics;
+
+/**
+ * Computes the difference between two call trees, for example the aggregates of an
+ * endpoint before and after a release.
+ *
+ * <p>Nodes are aligned by their path and layer. Each node of the resulting tree knows the
+ * number of calls, the total time and the self time (time not spent in child nodes) of both
+ * call trees, nodes which only exist in one of the call trees are marked as added or removed.
+ * The children of each pair of aligned nodes are matched by hashing their {@link Node#getPathId() path id},
+ * or their layer and name if they have none, so the diff is computed in time linear to the size of both
+ * call trees. Siblings with the same key, for example a measurement in an inherited layer next to a measurement
+ * with the same name in the layer of the parent, are matched in the order in which they were recorded.</p>
+ *
+ * <p>Sub-statistics of other threads are not part of the diff, aggregate them into the call tree
+ * first if you need to compare them.</p>
+ */
+public final class CallTreeDiff {
+
+    private static final class Key {
+        private final Layer layer;
+        private final String name;
+
+        Key(final Layer layer, final String name) {
+            this.layer = layer;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof Key) {
+                final Key k = (Key)obj;
+                return name.equals(k.name) && layer.equals(k.layer);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() * 31 + layer.hashCode();
+        }
+    }
+
+    /**
+     * The key of a sibling which has the same key as one of its earlier siblings.
+     */
+    private static final class Occurrence {
+        private final Object key;
+        private final int index;
+
+        Occurrence(final Object key, final int index) {
+            this.key = key;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof Occurrence) {
+                final Occurrence o = (Occurrence)obj;
+                return index == o.index && key.equals(o.key);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() * 31 + index;
+        }
+    }
+
+    private static final Collection<Node> NO_NODES = Collections.emptyList();
+
+    private CallTreeDiff() {
+        // utility class constructor
+    }
+
+    /**
+     * Compute the difference of the current call tree in relation to the baseline.
+     *
+     * @param baseline the call tree to compare to, for example of the previous release
+     * @param current the call tree to compare
+     * @return the root of the difference tree, its children are the roots of both call trees
+     */
+    public static DiffNode diff(final Statistics baseline, final Statistics current) {
+        final long baselineTotal = baseline.getTotalNanos();
+        final long currentTotal = current.getTotalNanos();
+        final DiffNode root = new DiffNode(null, "", 0, DiffNode.Status.CHANGED,
+                0, baselineTotal, 0,
+                0, currentTotal, 0);
+        diffChildren(root, baseline.getRoots(), current.getRoots());
+        return root;
+    }
+
+    private static void diffChildren(final DiffNode parent, final Collection<Node> baseline, final Collection<Node> current) {
+        final int level = parent.getLevel() + 1;
+        final Map<Object, Node> unmatched = new LinkedHashMap<Object, Node>(capacity(baseline.size()));
+        final Map<Object, int[]> baselineOccurrences = new HashMap<Object, int[]>(capacity(baseline.size()));
+        for (final Node b : baseline) {
+            unmatched.put(uniqueKey(baselineOccurrences, key(b)), b);
+        }
+        final Map<Object, int[]> currentOccurrences = new HashMap<Object, int[]>(capacity(current.size()));
+        for (final Node c : current) {
+            final Node b = unmatched.remove(uniqueKey(currentOccurrences, key(c)));
+            final TimerStatistics cs = c.getTimerStatistics();
+            final DiffNode child;
+            if (b == null) {
+                child = new DiffNode(c.getLayer(), c.getPath().getLeafTimerName(), level, DiffNode.Status.ADDED,
+                        0, 0, 0,
+                        cs.getNumberOfCalls(), cs.getTotalNanos(), selfNanos(c));
+                diffChildren(child, NO_NODES, c.getChildren());
+            } else {
+                final TimerStatistics bs = b.getTimerStatistics();
+                child = new DiffNode(c.getLayer(), c.getPath().getLeafTimerName(), level, DiffNode.Status.CHANGED,
+                        bs.getNumberOfCalls(), bs.getTotalNanos(), selfNanos(b),
+                        cs.getNumberOfCalls(), cs.getTotalNanos(), selfNanos(c));
+                diffChildren(child, b.getChildren(), c.getChildren());
+            }
+            parent.addChild(child);
+        }
+        for (final Node b : unmatched.values()) {
+            final TimerStatistics bs = b.getTimerStatistics();
+            final DiffNode child = new DiffNode(b.getLayer(), b.getPath().getLeafTimerName(), level, DiffNode.Status.REMOVED,
+                    bs.getNumberOfCalls(), bs.getTotalNanos(), selfNanos(b),
+                    0, 0, 0);
+            diffChildren(child, b.getChildren(), NO_NODES);
+            parent.addChild(child);
+        }
+    }
+
+    private static Object key(final Node n) {
+        final int pathId = n.getPathId();
+        return pathId == PathIds.UNKNOWN ? new Key(n.getLayer(), n.getPath().getLeafTimerName()) : Integer.valueOf(pathId);
+    }
+
+    /**
+     * The key of a sibling, counting the siblings with the same key seen so far.
+     */
+    private static Object uniqueKey(final Map<Object, int[]> occurrences, final Object key) {
+        final int[] seen = occurrences.get(key);
+        if (seen == null) {
+            occurrences.put(key, new int[] {1});
+            return key;
+        }
+        return new Occurrence(key, seen[0]++);
+    }
+
+    private static int capacity(final int size) {
+        return size < 3 ? 4 : (size * 4) / 3 + 1;
+    }
+
+    private static long selfNanos(final Node n) {
+        long children = 0;
+        for (final Node c : n.getChildren()) {
+            children += c.getTimerStatistics().getTotalNanos();
+        }
+        return n.getTimerStatistics().getTotalNanos() - children;
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.diff;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.freiheit.fuava.ctprofiler.core.Layer;
+
+/**
+ * One node of the difference between two call trees, see {@link CallTreeDiff}.
+ */
+public final class DiffNode {
+
+    /**
+     * How a node of the current call tree relates to the baseline call tree.
+     */
+    public enum Status {
+        /**
+         * The node exists in both call trees.
+         */
+        CHANGED,
+        /**
+         * The node only exists in the current call tree.
+         */
+        ADDED,
+        /**
+         * The node only exists in the baseline call tree.
+         */
+        REMOVED
+    }
+
+    private final Layer layer;
+    private final String name;
+    private final int level;
+    private final Status status;
+    private final long baselineCalls;
+    private final long baselineTotalNanos;
+    private final long baselineSelfNanos;
+    private final long currentCalls;
+    private final long currentTotalNanos;
+    private final long currentSelfNanos;
+    private final List<DiffNode> children = new ArrayList<DiffNode>();
+
+    DiffNode(
+            final Layer layer, final String name, final int level, final Status status,
+            final long baselineCalls, final long baselineTotalNanos, final long baselineSelfNanos,
+            final long currentCalls, final long currentTotalNanos, final long currentSelfNanos
+    ) {
+        this.layer = layer;
+        this.name = name;
+        this.level = level;
+        this.status = status;
+        this.baselineCalls = baselineCalls;
+        this.baselineTotalNanos = baselineTotalNanos;
+        this.baselineSelfNanos = baselineSelfNanos;
+        this.currentCalls = currentCalls;
+        this.currentTotalNanos = currentTotalNanos;
+        this.currentSelfNanos = currentSelfNanos;
+    }
+
+    void addChild(final DiffNode child) {
+        children.add(child);
+    }
+
+    /**
+     * The layer of the node, null for the root of the diff.
+     */
+    public Layer getLayer() {
+        return layer;
+    }
+
+    /**
+     * The timer name of the node, empty for the root of the diff.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The nesting level, 0 for the root of the diff.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public long getBaselineCalls() {
+        return baselineCalls;
+    }
+
+    public long getBaselineTotalNanos() {
+        return baselineTotalNanos;
+    }
+
+    /**
+     * The time spent in this node of the baseline, but not in any of its children.
+     */
+    public long getBaselineSelfNanos() {
+        return baselineSelfNanos;
+    }
+
+    public long getCurrentCalls() {
+        return currentCalls;
+    }
+
+    public long getCurrentTotalNanos() {
+        return currentTotalNanos;
+    }
+
+    /**
+     * The time spent in this node of the current call tree, but not in any of its children.
+     */
+    public long getCurrentSelfNanos() {
+        return currentSelfNanos;
+    }
+
+    public long getCallsDelta() {
+        return currentCalls - baselineCalls;
+    }
+
+    /**
+     * The change of the total time, positive values are regressions.
+     */
+    public long getTotalNanosDelta() {
+        return currentTotalNanos - baselineTotalNanos;
+    }
+
+    /**
+     * The change of the self time, positive values are regressions.
+     */
+    public long getSelfNanosDelta() {
+        return currentSelfNanos - baselineSelfNanos;
+    }
+
+    /**
+     * The child nodes, in the order of the current call tree followed by removed nodes.
+     *
+     * @return never null
+     */
+    public List<DiffNode> getChildren() {
+        return Collections.unmodifiableList(children);
+    }
+
+    @Override
+    public String toString() {
+        return "DiffNode[" + name + ", " + status + ", totalNanosDelta: " + getTotalNanosDelta() + "]";
+    }
+}
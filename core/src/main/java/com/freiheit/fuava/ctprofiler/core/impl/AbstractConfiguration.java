@@ -16,6 +16,8 @@
  */
 package com.freiheit.fuava.ctprofiler.core.impl;
 
+import com.freiheit.fuava.ctprofiler.core.Layer;
+import com.freiheit.fuava.ctprofiler.core.Layers;
 
 /**
  * Suitable baseclass for custom Configurations of the CallTreeProfiler.
@@ -45,4 +47,104 @@ public abstract class AbstractConfiguration implements Configuration {
     public boolean sortCallStacksByDuration() {
         return false;
     }
+
+    /**
+     * The call trees of all sub-tasks are retained.
+     * {@inheritDoc}
+     *
+     * @return {@link SubStatisticsRetention#keepAll()}
+     */
+    @Override
+    public SubStatisticsRetention getSubStatisticsRetention() {
+        return SubStatisticsRetention.keepAll();
+    }
+
+    /**
+     * Only wall time is measured.
+     * {@inheritDoc}
+     *
+     * @return false
+     */
+    @Override
+    public boolean isCpuTimeMeasured(final Layer layer) {
+        return false;
+    }
+
+    /**
+     * Allocations are not measured.
+     * {@inheritDoc}
+     *
+     * @return false
+     */
+    @Override
+    public boolean isAllocatedBytesMeasured(final Layer layer) {
+        return false;
+    }
+
+    /**
+     * Blocked and waited time is measured for the integration layer, where waiting for connections and
+     * remote systems typically happens.
+     * {@inheritDoc}
+     *
+     * @return true for {@link Layers#INTEGRATION}
+     */
+    @Override
+    public boolean isContentionMeasured(final Layer layer) {
+        return Layers.INTEGRATION.equals(layer);
+    }
+
+    /**
+     * All call trees are recorded.
+     * {@inheritDoc}
+     *
+     * @return 1
+     */
+    @Override
+    public double getSamplingRate() {
+        return 1;
+    }
+
+    /**
+     * The depth is not limited.
+     * {@inheritDoc}
+     *
+     * @return {@link Integer#MAX_VALUE}
+     */
+    @Override
+    public int getMaxDepth() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * The number of nodes is not limited.
+     * {@inheritDoc}
+     *
+     * @return {@link Integer#MAX_VALUE}
+     */
+    @Override
+    public int getMaxNodes() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * All layers are recorded.
+     * {@inheritDoc}
+     *
+     * @return true
+     */
+    @Override
+    public boolean isLayerEnabled(final Layer layer) {
+        return true;
+    }
+
+    /**
+     * Fast calls are not merged.
+     * {@inheritDoc}
+     *
+     * @return 0
+     */
+    @Override
+    public long getFastCallThresholdNanos() {
+        return 0;
+    }
 }
\ No newline at end of file
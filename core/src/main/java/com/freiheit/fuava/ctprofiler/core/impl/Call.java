@@ -16,7 +16,6 @@
  */
 package com.freiheit.fuava.ctprofiler.core.impl;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 
@@ -33,50 +32,45 @@ import com.freiheit.fuava.ctprofiler.core.TimerStatistics;
 final class Call implements TimerStatistics {
     private final int _num;
     private final long _totalNanos;
-    private final Collection<Statistics> _subStates;
+    private final long _nestedMeasurements;
+    private final long _compensatedTotalNanos;
+    private final long _cpuNanos;
+    private final long _allocatedBytes;
+    private final long _blockedMillis;
+    private final long _waitedMillis;
+    private final long _gcPauseNanos;
+    private final SubStates _subStates;
 
     /**
-     * Creates an empty call.
-     */
-    public Call() {
-        this._num = 0;
-        this._totalNanos = 0;
-        this._subStates = Collections.emptyList();
-    }
-
-    /**
-     * Private constructor for use by {@link #add(long)}.
+     * Creates a call.
      * @param num the number of calls
      * @param totalNanos the current total execution time for this type of call
-     * @param subStates all substates separately for this kind of call
+     * @param nestedMeasurements the number of measurements nested in these calls
+     * @param compensatedTotalNanos the total execution time without the estimated overhead of the nested measurements
+     * @param cpuNanos the CPU time of these calls, -1 if not measured
+     * @param allocatedBytes the bytes allocated by these calls, -1 if not measured
+     * @param blockedMillis the time these calls were blocked on monitors, -1 if not measured
+     * @param waitedMillis the time these calls were waiting, -1 if not measured
+     * @param gcPauseNanos the time these calls were stopped by garbage collection pauses
+     * @param subStates all substates separately for this kind of call, shared with the recording call tree, may be null
      */
-    private Call(final int num, final long totalNanos, final Collection<Statistics> subStates) {
-        assert subStates != null;
+    Call(final int num, final long totalNanos, final long nestedMeasurements, final long compensatedTotalNanos, final long cpuNanos, final long allocatedBytes,
+            final long blockedMillis, final long waitedMillis, final long gcPauseNanos, final SubStates subStates) {
         this._num = num;
         this._totalNanos = totalNanos;
+        this._nestedMeasurements = nestedMeasurements;
+        this._compensatedTotalNanos = compensatedTotalNanos;
+        this._cpuNanos = cpuNanos;
+        this._allocatedBytes = allocatedBytes;
+        this._blockedMillis = blockedMillis;
+        this._waitedMillis = waitedMillis;
+        this._gcPauseNanos = gcPauseNanos;
         this._subStates = subStates;
     }
 
-    /**
-     * Add a call.
-     * @param durationNanos the duration of the current call
-     * @param subState the Call Tree of a sub-task that was executed in a different thread.
-     * @return a new call instance with the result of the addition
-     */
-    public Call add(final long durationNanos, final Statistics subState) {
-        final Collection<Statistics> subStates;
-        if (subState == null) {
-            subStates = _subStates;
-        } else {
-            subStates = new ArrayList<Statistics>(_subStates);
-            subStates.add(subState);
-        }
-        return new Call(this._num + 1, this._totalNanos + durationNanos, subStates);
-    }
-
     @Override
     public Collection<Statistics> getSubStatistics() {
-        return _subStates;
+        return _subStates == null ? Collections.<Statistics>emptyList() : _subStates.getStatistics();
     }
 
     @Override
@@ -84,6 +78,41 @@ final class Call implements TimerStatistics {
         return this._totalNanos;
     }
 
+    @Override
+    public long getNumberOfNestedMeasurements() {
+        return this._nestedMeasurements;
+    }
+
+    @Override
+    public long getCompensatedTotalNanos() {
+        return this._compensatedTotalNanos;
+    }
+
+    @Override
+    public long getCpuNanos() {
+        return this._cpuNanos;
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return this._allocatedBytes;
+    }
+
+    @Override
+    public long getBlockedMillis() {
+        return this._blockedMillis;
+    }
+
+    @Override
+    public long getWaitedMillis() {
+        return this._waitedMillis;
+    }
+
+    @Override
+    public long getGcPauseNanos() {
+        return this._gcPauseNanos;
+    }
+
     @Override
     public String toString() {
         return "Calls[num: " + _num + ", totalNanos: " + _totalNanos + "]";
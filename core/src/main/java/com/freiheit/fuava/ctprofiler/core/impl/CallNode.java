@@ -0,0 +1,240 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.freiheit.fuava.ctprofiler.core.Layer;
+
+/**
+ * A mutable node of the call tree recorded by one {@link CallTreeState}.
+ *
+ * <p>Nodes are identified by the layer and the timer name below their parent. Children are kept in a
+ * linked list in the order of their first call, with a name index for nodes with many children.
+ * Nodes are recycled when the state is reset, so all fields are mutable.</p>
+ */
+final class CallNode {
+    private static final int INDEX_THRESHOLD = 8;
+
+    Layer layer;
+    String name;
+    CallNode parent;
+
+    private CallNode firstChild;
+    private CallNode lastChild;
+    private CallNode nextSibling;
+    private CallNode lastHit;
+    private CallNode nextWithSameName;
+    private Map<String, CallNode> index;
+    private int numChildren;
+
+    int num;
+    long totalNanos;
+    long nestedMeasurements;
+    // -1 while no call of this node was measured with CPU time
+    long cpuNanos = -1;
+    long allocatedBytes = -1;
+    long blockedMillis = -1;
+    long waitedMillis = -1;
+    long gcPauseNanos;
+    SubStates subStates;
+
+    void init(final CallNode parent, final Layer layer, final String name) {
+        this.parent = parent;
+        this.layer = layer;
+        this.name = name;
+    }
+
+    /**
+     * Find the child with the given layer and name.
+     * @return the child or null if there is none
+     */
+    CallNode findChild(final Layer childLayer, final String childName) {
+        final CallNode h = lastHit;
+        if (h != null && h.matches(childLayer, childName)) {
+            return h;
+        }
+        final CallNode first = index == null ? firstChild : index.get(childName);
+        for (CallNode c = first; c != null; c = index == null ? c.nextSibling : c.nextWithSameName) {
+            if (c.matches(childLayer, childName)) {
+                lastHit = c;
+                return c;
+            }
+        }
+        return null;
+    }
+
+    private boolean matches(final Layer l, final String n) {
+        return (name == n || name.equals(n)) && (layer == l || layer.equals(l));
+    }
+
+    void addChild(final CallNode child) {
+        if (lastChild == null) {
+            firstChild = child;
+        } else {
+            lastChild.nextSibling = child;
+        }
+        lastChild = child;
+        lastHit = child;
+        numChildren++;
+        if (index != null) {
+            addToIndex(child);
+        } else if (numChildren > INDEX_THRESHOLD) {
+            index = new HashMap<String, CallNode>();
+            for (CallNode c = firstChild; c != null; c = c.nextSibling) {
+                addToIndex(c);
+            }
+        }
+    }
+
+    private void addToIndex(final CallNode child) {
+        child.nextWithSameName = index.put(child.name, child);
+    }
+
+    CallNode getFirstChild() {
+        return firstChild;
+    }
+
+    CallNode getNextSibling() {
+        return nextSibling;
+    }
+
+    int getNumberOfChildren() {
+        return numChildren;
+    }
+
+    /**
+     * Remove the children whose total time is below the given threshold and which retain no sub-task call trees.
+     * A single such child is only removed if there is a child to keep, as merging it would not save a node.
+     *
+     * @param thresholdNanos the total time of the children to keep
+     * @param keep a child to keep regardless of its time, may be null
+     * @return the removed children, linked through their next sibling, or null if none was removed
+     */
+    CallNode removeFastChildren(final long thresholdNanos, final CallNode keep) {
+        int numFast = 0;
+        for (CallNode c = firstChild; c != null; c = c.nextSibling) {
+            if (c != keep && c.totalNanos < thresholdNanos && c.subStates == null) {
+                numFast++;
+            }
+        }
+        if (numFast == 0 || numFast == 1 && keep == null) {
+            return null;
+        }
+        CallNode removed = null;
+        CallNode prev = null;
+        for (CallNode c = firstChild; c != null;) {
+            final CallNode next = c.nextSibling;
+            if (c != keep && c.totalNanos < thresholdNanos && c.subStates == null) {
+                if (prev == null) {
+                    firstChild = next;
+                } else {
+                    prev.nextSibling = next;
+                }
+                c.nextSibling = removed;
+                removed = c;
+                numChildren--;
+            } else {
+                prev = c;
+            }
+            c = next;
+        }
+        if (removed != null) {
+            lastChild = prev;
+            lastHit = null;
+            if (index != null) {
+                index = null;
+                if (numChildren > INDEX_THRESHOLD) {
+                    index = new HashMap<String, CallNode>();
+                    for (CallNode c = firstChild; c != null; c = c.nextSibling) {
+                        addToIndex(c);
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Add the statistics of the given node to the statistics of this node.
+     */
+    void merge(final CallNode other) {
+        num += other.num;
+        totalNanos += other.totalNanos;
+        nestedMeasurements += other.nestedMeasurements;
+        cpuNanos = add(cpuNanos, other.cpuNanos);
+        allocatedBytes = add(allocatedBytes, other.allocatedBytes);
+        blockedMillis = add(blockedMillis, other.blockedMillis);
+        waitedMillis = add(waitedMillis, other.waitedMillis);
+        gcPauseNanos += other.gcPauseNanos;
+    }
+
+    // counters are -1 while not measured
+    private static long add(final long a, final long b) {
+        return b < 0 ? a : Math.max(0, a) + b;
+    }
+
+    /**
+     * Remove the first child, so the tree can be dismantled without recursion.
+     * @return the removed first child
+     */
+    CallNode detachFirstChild() {
+        final CallNode c = firstChild;
+        firstChild = null;
+        return c;
+    }
+
+    SubStates getOrCreateSubStates(final SubStatisticsRetention retention) {
+        SubStates s = subStates;
+        if (s == null) {
+            s = retention.newSubStates();
+            subStates = s;
+        }
+        return s;
+    }
+
+    /**
+     * Reset all fields, so this instance can be reused.
+     */
+    void recycle() {
+        layer = null;
+        name = null;
+        parent = null;
+        firstChild = null;
+        lastChild = null;
+        nextSibling = null;
+        lastHit = null;
+        nextWithSameName = null;
+        index = null;
+        numChildren = 0;
+        num = 0;
+        totalNanos = 0;
+        nestedMeasurements = 0;
+        cpuNanos = -1;
+        allocatedBytes = -1;
+        blockedMillis = -1;
+        waitedMillis = -1;
+        gcPauseNanos = 0;
+        subStates = null;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + layer + "]";
+    }
+}
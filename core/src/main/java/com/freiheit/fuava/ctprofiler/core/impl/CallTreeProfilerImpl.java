@@ -17,17 +17,19 @@
 package com.freiheit.fuava.ctprofiler.core.impl;
 
 import java.io.IOException;
-import java.util.Comparator;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
 import com.freiheit.fuava.ctprofiler.core.Layer;
 import com.freiheit.fuava.ctprofiler.core.Layers;
-import com.freiheit.fuava.ctprofiler.core.Node;
-import com.freiheit.fuava.ctprofiler.core.NodeComparators;
 import com.freiheit.fuava.ctprofiler.core.Statistics;
+import com.freiheit.fuava.ctprofiler.core.aggregation.StatisticsAggregator;
 import com.freiheit.fuava.ctprofiler.core.rendering.StatisticsRenderer;
 import com.freiheit.fuava.ctprofiler.core.rendering.TxtRenderer;
 import com.freiheit.fuava.ctprofiler.core.rendering.XmlRenderer;
@@ -35,157 +37,47 @@ import com.freiheit.fuava.ctprofiler.core.rendering.XmlRenderer;
 /**
  * A profiler that organizes the logged times into a tree hierarchy, per thread.
  *
+ * <p>The recording state of each thread is taken from a shared {@link CallTreeStatePool} when
+ * the thread starts measuring, and returned to the pool by {@link #clear()}, so threads do not
+ * allocate new buffers for each request. This is especially important for large numbers of
+ * short lived (for example virtual) threads.</p>
+ *
+ * <p>The settings are read from a volatile field only when a toplevel measurement begins. The
+ * measurements nested in it, and the end of all measurements, only use the state of the thread,
+ * so toggling or reconfiguring the profiler takes effect with the next toplevel measurement.</p>
+ *
  * @author klas.kalass@freiheit.com (initial creation)
  * @author $Author: klas $ (last modification)
  * @version $Date: 2009-09-07 13:00:36 +0200 (Mo, 07. Sep 2009) $
  */
 class CallTreeProfilerImpl implements CallTreeProfiler {
 
-    private final ThreadLocal<Map<PathWithLayer, Call>> _callStack = new CallStackThreadLocal();
-
-
+    private final CallTreeStatePool _pool = CallTreeStatePool.SHARED;
     /**
-     * @author Klas Kalass (klas.kalass@freiheit.com)
-     *
+     * The state of each thread, null until the thread begins its first toplevel measurement.
      */
-    private static final class CallStackThreadLocal extends
-            ThreadLocal<Map<PathWithLayer, Call>> {
-        @Override
-        protected java.util.Map<PathWithLayer, Call> initialValue() {
-            return new LinkedHashMap<PathWithLayer, Call>();
-        }
-    }
+    private final ThreadLocal<CallTreeState> _state = new ThreadLocal<CallTreeState>();
 
     /**
-     * @author Klas Kalass (klas.kalass@freiheit.com)
-     *
+     * The states currently held by threads, only changed when a thread takes or returns its state,
+     * so monitoring does not interfere with measuring. Threads which die without clearing their state
+     * are removed by the garbage collector.
      */
-    private static final class StackedTimesThreadLocal extends
-            ThreadLocal<StackedMeasuringTracks> {
-        @Override
-        protected StackedMeasuringTracks initialValue() {
-            return new StackedMeasuringTracks();
-        }
-    }
-
+    private final Map<Thread, CallTreeState> _liveStates = Collections.synchronizedMap(new WeakHashMap<Thread, CallTreeState>());
+    private final ConcurrentHashMap<String, StatisticsAggregator> _aggregators = new ConcurrentHashMap<String, StatisticsAggregator>();
     /**
-     * Abstraction for a measuring track/point.
+     * Distinguishes the periods in which profilers were enabled, so states can detect a toggle.
      */
-    private static final class MeasuringTrack {
-        private final MeasuringTrackName _measuringTrackName;
-        private final long _starttime;
-
-        /**
-         * Constructor.
-         * @param measuringTrackName the name
-         * @param starttime the start time
-         */
-        public MeasuringTrack(final MeasuringTrackName measuringTrackName, final long starttime) {
-            this._measuringTrackName = measuringTrackName;
-            this._starttime = starttime;
-        }
-
-        public MeasuringTrackName getMeasuringTrackName() {
-
-            return this._measuringTrackName;
-        }
-
-        @Override
-        public String toString() {
-            return _measuringTrackName.toString();
-        }
-
-        public long getStarttime() {
-
-            return this._starttime;
-        }
-
-    }
-
-    private static final class MeasuringTrackName {
-        private final Layer layer;
-        private final String name;
-
-        public MeasuringTrackName(final Layer layer, final String name) {
-            this.layer = layer;
-            this.name = name;
-        }
-
-        @Override
-        public boolean equals(final Object obj) {
-            if (obj instanceof MeasuringTrackName) {
-                final MeasuringTrackName n = (MeasuringTrackName)obj;
-                return layer.equals(n.layer) && name.equals(n.name);
-            }
-            return false;
-        }
-
-        @Override
-        public int hashCode() {
-            return layer.hashCode() ^ name.hashCode();
-        }
-
-        @Override
-        public String toString() {
-            return name + "[" + layer + "]";
-        }
-    }
-    /**
-     * A Stack for {@link MeasuringTrack} instances.
-     * @author klas.kalass@freiheit.com (initial creation)
-     * @author $Author: klas $ (last modification)
-     * @version $Date: 2009-09-07 13:00:36 +0200 (Mo, 07. Sep 2009) $
-     */
-    private static final class StackedMeasuringTracks {
-
-        private final Stack<MeasuringTrack> _stack = new Stack<MeasuringTrack>();
-
-        /**
-         * Push.
-         * @param measuringTrackName the name
-         * @param starttime the start time
-         */
-        void push(final MeasuringTrackName measuringTrackName, final long starttime) {
-            this._stack.push(new MeasuringTrack(measuringTrackName, starttime));
-        }
-
-        @Override
-        public String toString() {
-            return _stack.toString();
-        }
-
-        /**
-         * remove the toplevel instance.
-         * @param measuringTrackName the name
-         */
-        void pop(final MeasuringTrackName measuringTrackName) {
-            final int level = this._stack.size();
-            if (level == 0) {
-                return;
-            }
-            final MeasuringTrack te = this._stack.pop();
-            if (!measuringTrackName.equals(te.getMeasuringTrackName())) {
-                throw new IllegalStateException("Expected MeasuringTrack '"
-                        + measuringTrackName + "', but had timer '"
-                        + te.getMeasuringTrackName() + "' on my stack"
-                );
-            }
-
-        }
-
-    }
-
-    private ThreadLocal<StackedMeasuringTracks> _stackedTimes = createStackedTimes();
+    private static final AtomicInteger EPOCHS = new AtomicInteger();
 
     /**
-     * Creates the thread local.
-     * @return a new thread local for stacked measuring tracks
+     * The current settings, with the current enabled period or 0 if profiling is disabled.
+     *
+     * <p>Read once per toplevel measurement, which keeps the settings for all measurements nested
+     * in it. A disabled profiler costs this read per toplevel measurement and a thread local lookup
+     * per nested measurement.</p>
      */
-    private ThreadLocal<StackedMeasuringTracks> createStackedTimes() {
-        return new StackedTimesThreadLocal();
-    }
-
-    private final Comparator<Node> _comparator;
+    private volatile RecordingSettings _settings;
 
 
     /**
@@ -194,7 +86,16 @@ class CallTreeProfilerImpl implements CallTreeProfiler {
      * @param config the configuration of the profiler.
      */
     public CallTreeProfilerImpl(final Configuration config) {
-        _comparator = config.sortCallStacksByDuration() ? NodeComparators.duration() : null;
+        _settings = RecordingSettings.of(config, 0);
+        setProfilingEnabled(config.isEnabled());
+    }
+
+    /**
+     * Apply a changed configuration. Call trees which are being recorded keep the previous settings
+     * until their toplevel measurement ends.
+     */
+    synchronized void reconfigure(final Configuration config) {
+        _settings = RecordingSettings.of(config, _settings.epoch);
         setProfilingEnabled(config.isEnabled());
     }
 
@@ -203,11 +104,13 @@ class CallTreeProfilerImpl implements CallTreeProfiler {
      */
     @Override
     public void clear() {
-        final ThreadLocal<StackedMeasuringTracks> threadLocal = _stackedTimes;
-        if (threadLocal != null) {
-            threadLocal.remove();
+        final CallTreeState state = _state.get();
+        if (state == null) {
+            return;
         }
-        _callStack.remove();
+        _state.remove();
+        _liveStates.remove(Thread.currentThread());
+        _pool.release(state);
     }
 
     /**
@@ -224,11 +127,45 @@ class CallTreeProfilerImpl implements CallTreeProfiler {
     }
 
     private void doBegin(final Layer layer,final String timerName, final long startTime) {
-        final ThreadLocal<StackedMeasuringTracks> st = _stackedTimes;
-        if (st == null) {
+        final CallTreeState current = _state.get();
+        if (current != null && current.isRecording()) {
+            current.begin(layer, timerName, startTime);
+            return;
+        }
+        final RecordingSettings settings = _settings;
+        if (settings.epoch == 0) {
             return;
         }
-        st.get().push(new MeasuringTrackName(layer, timerName), startTime);
+        getState(settings.epoch).begin(settings, layer, timerName, startTime);
+    }
+
+    /**
+     * The state of the current thread, taken from the pool if the thread has none.
+     */
+    private CallTreeState getOrCreateState() {
+        CallTreeState state = _state.get();
+        if (state == null) {
+            state = _pool.acquire();
+            _state.set(state);
+            _liveStates.put(Thread.currentThread(), state);
+        }
+        return state;
+    }
+
+    /**
+     * The state of the current thread, reset if it was recording in an earlier enabled period.
+     */
+    private CallTreeState getState(final int epoch) {
+        final CallTreeState state = getOrCreateState();
+        if (state.getEpoch() != epoch) {
+            // profiling was switched off while this thread was measuring: the stack is incomplete, so forget it.
+            // Muting is kept, it was set for the current request, not in an earlier enabled period.
+            final boolean muted = state.isMuted();
+            state.reset();
+            state.setEpoch(epoch);
+            state.setMuted(muted);
+        }
+        return state;
     }
 
     /**
@@ -254,59 +191,132 @@ class CallTreeProfilerImpl implements CallTreeProfiler {
     }
 
     public void doEnd(final Layer layer, final String timerName, final long endTime, final Statistics subState) {
-        final ThreadLocal<StackedMeasuringTracks> stt = _stackedTimes;
-        if (stt == null) {
-            return;
+        final CallTreeState state = _state.get();
+        if (state != null) {
+            state.end(layer, timerName, endTime, subState);
         }
+    }
 
-        final StackedMeasuringTracks st = stt.get();
-        if (st._stack.isEmpty()) {
-            // be more robust: avoid failures due to wrong use
-            return;
+    /**
+     * Get the receiver for statistics of sub-tasks which belong to the currently running
+     * measurement of this thread.
+     *
+     * <p>The returned instance may be handed to other threads, which add their statistics when they
+     * are done. The statistics will then be rendered as subtasks of the current measurement.</p>
+     *
+     * @return the receiver, or null if there is no running measurement
+     */
+    SubStates getCurrentSubStates() {
+        final CallTreeState state = _state.get();
+        return state == null ? null : state.getCurrentSubStates();
+    }
+
+    /**
+     * The state of the current thread, or null if it has none.
+     */
+    CallTreeState getCurrentState() {
+        return _state.get();
+    }
+
+    /**
+     * Remove the profiler state from the current thread, so the thread can measure something
+     * unrelated, for example a stage of an asynchronous computation.
+     *
+     * @return the removed state, to be restored with {@link #attach(CallTreeState)}, or null if
+     *   there was no state
+     */
+    CallTreeState detach() {
+        final CallTreeState state = _state.get();
+        if (state == null) {
+            return null;
         }
-        final long starttime = st._stack.peek().getStarttime();
-        final long duration = endTime - starttime;
-        updateCallStack(duration, st, subState);
-        st.pop(new MeasuringTrackName(layer, timerName));
+        _state.remove();
+        _liveStates.remove(Thread.currentThread());
+        if (state.isEmpty()) {
+            _pool.release(state);
+            return null;
+        }
+        return state;
+    }
+
+    /**
+     * Replace the profiler state of the current thread by a state that was detached before.
+     *
+     * @param state the state returned by {@link #detach()}, null for clearing the state
+     */
+    void attach(final CallTreeState state) {
+        clear();
+        if (state != null) {
+            _state.set(state);
+            _liveStates.put(Thread.currentThread(), state);
+        }
+    }
+
+    /**
+     * Ignore the measurements of the current thread until it is cleared, see
+     * {@link ProfilerFactory#setCurrentThreadMuted(CallTreeProfiler, boolean)}.
+     */
+    void setCurrentThreadMuted(final boolean muted) {
+        getOrCreateState().setMuted(muted);
     }
 
     /**
-     * Updates the call stack.
-     * @param duration duration in nanos
-     * @param st the current stack
+     * The number of threads currently holding a recording state of this profiler.
      */
-    private void updateCallStack(final long duration, final StackedMeasuringTracks st, final Statistics subState) {
+    int getNumberOfLiveThreads() {
+        return _liveStates.size();
+    }
 
-        final Map<PathWithLayer, Call> callStack = _callStack.get();
-        final String[] p = new String[st._stack.size()];
-        for (int i = 0; i < p.length; i++) {
-            final MeasuringTrack m = st._stack.get(i);
-            p[i] = m.getMeasuringTrackName().name;
+    /**
+     * The number of call tree nodes held by all threads, read without synchronizing with the recording threads.
+     */
+    long getNumberOfRetainedNodes() {
+        final List<CallTreeState> states;
+        synchronized (_liveStates) {
+            states = new ArrayList<CallTreeState>(_liveStates.values());
         }
-        final Layer layer = st._stack.peek()._measuringTrackName.layer;
-        final PathWithLayer path = new PathWithLayer(layer, new PathImpl(p));
-        Call c = callStack.get(path);
-        if (c == null) {
-            c = new Call();
+        long r = 0;
+        for (final CallTreeState state : states) {
+            r += state.getNumberOfNodes();
         }
-        callStack.put(path, c.add(duration, subState));
+        return r;
+    }
+
+    /**
+     * Make the aggregates of the given aggregator available through the MBean of this profiler.
+     */
+    void attachAggregator(final String name, final StatisticsAggregator aggregator) {
+        _aggregators.put(name, aggregator);
+    }
+
+    void detachAggregator(final String name) {
+        _aggregators.remove(name);
+    }
+
+    Map<String, StatisticsAggregator> getAggregators() {
+        return Collections.unmodifiableMap(_aggregators);
     }
 
     @Override
     public Statistics getStatistics() {
-        return ThreadStatisticsImpl.getCurrentThreadInstance(_callStack.get());
+        final CallTreeState state = _state.get();
+        if (state == null) {
+            return ThreadStatisticsImpl.getCurrentThreadInstance(null, null, OverheadCalibration.getNanosPerMeasurement());
+        }
+        return ThreadStatisticsImpl.getCurrentThreadInstance(state.getRoot(), state.getSelfNanosByLayerId(), OverheadCalibration.getNanosPerMeasurement());
     }
 
     /**
      * Enable/Disable the profiling.
      */
-    public void setProfilingEnabled(final boolean b) {
-        if (b) {
-            if (_stackedTimes == null) {
-                _stackedTimes = createStackedTimes();
-            }
-        } else {
-            _stackedTimes = null;
+    public synchronized void setProfilingEnabled(final boolean b) {
+        if (!b) {
+            _settings = _settings.withEpoch(0);
+        } else if (_settings.epoch == 0) {
+            // calibrate before the first measurements, not when the first statistics are taken
+            OverheadCalibration.getNanosPerMeasurement();
+            GcPauses.install();
+            _settings = _settings.withEpoch(EPOCHS.incrementAndGet());
         }
     }
 
@@ -315,7 +325,7 @@ class CallTreeProfilerImpl implements CallTreeProfiler {
      */
     @Override
     public <T extends Appendable> T renderThreadStateAsText(final T buffer) throws IOException {
-        StatisticsRenderer.render(new TxtRenderer("", buffer), getStatistics(), _comparator);
+        StatisticsRenderer.render(new TxtRenderer("", buffer), getStatistics(), _settings.comparator);
         return buffer;
     }
 
@@ -324,14 +334,13 @@ class CallTreeProfilerImpl implements CallTreeProfiler {
      */
     @Override
     public <T extends Appendable> T  renderThreadStateAsXml(final T buffer) throws IOException {
-        StatisticsRenderer.render(new XmlRenderer("", buffer), getStatistics(), _comparator);
+        StatisticsRenderer.render(new XmlRenderer("", buffer), getStatistics(), _settings.comparator);
         return buffer;
     }
 
     @Override
     public boolean isEnabled() {
-        return _stackedTimes != null;
+        return _settings.epoch != 0;
     }
 
 }
-
@@ -0,0 +1,461 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.lang.management.ThreadInfo;
+import java.util.Arrays;
+
+import com.freiheit.fuava.ctprofiler.core.Layer;
+import com.freiheit.fuava.ctprofiler.core.Layers;
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+
+/**
+ * The recording state of one thread or scope: the stack of running measurements and the call tree.
+ *
+ * <p>All buffers are reused: the stack frames are preallocated and the nodes of the call tree are
+ * recycled when the state is reset, so a state taken from the {@link CallTreeStatePool} records
+ * repeated calls without allocating. A state must only be used by one thread at a time.</p>
+ */
+final class CallTreeState {
+    private static final int INITIAL_FRAMES = 16;
+    private static final int MAX_RETAINED_FRAMES = 256;
+    private static final int MAX_RETAINED_FREE_NODES = 256;
+    // while recording, the fast children of a node are merged whenever it got this many more children
+    private static final int FAST_CALLS_MERGE_CHILDREN = 64;
+    private static final int INHERIT_LAYER_ID = Layers.getId(Layers.inherit());
+    private static final int DEFAULT_LAYER_ID = Layers.getId(Layers.DEFAULT);
+
+    /**
+     * One running measurement.
+     */
+    private static final class Frame {
+        private Layer layer;
+        private String name;
+        private long startNanos;
+        private long measurementsAtBegin;
+        // the id of the layer the self time is added to, with an inherited layer resolved
+        private int layerId;
+        // -1 if the CPU time is not measured
+        private long cpuNanosAtBegin;
+        // -1 if the allocated bytes are not measured
+        private long allocatedBytesAtBegin;
+        // -1 if the contention is not measured
+        private long blockedMillisAtBegin;
+        private long waitedMillisAtBegin;
+        private long nestedNanos;
+        private CallNode node;
+        // the number of the measurement, see _numBegins
+        private long id;
+    }
+
+    private Frame[] _frames = new Frame[INITIAL_FRAMES];
+    private int _depth;
+    private final CallNode _root = new CallNode();
+    private CallNode _free;
+    private int _numFree;
+    private int _numNodes;
+    private long _numMeasurements;
+    // numbers the measurements begun in this state, never reset, so a running measurement can be told from later ones
+    private long _numBegins;
+    private long[] _selfNanosByLayerId = new long[8];
+    private int _epoch;
+    private boolean _muted;
+    // the settings of the current toplevel measurement
+    private RecordingSettings _settings = RecordingSettings.NONE;
+    // the flags of _flagsSource by layer id, copied on first use, 0 for layers which have not been looked up
+    private MeasuredLayers _flagsSource = MeasuredLayers.NONE;
+    private int[] _flagsByLayerId = new int[8];
+    // the number of running measurements which are ignored, see begin
+    private int _skipDepth;
+    // xorshift state for sampling, never 0
+    private long _random = System.nanoTime() | 1;
+
+    /**
+     * The enabled period of the profiler this state was recording in, see {@link CallTreeProfilerImpl}.
+     */
+    int getEpoch() {
+        return _epoch;
+    }
+
+    void setEpoch(final int epoch) {
+        _epoch = epoch;
+    }
+
+    /**
+     * Ignore all measurements until the state is reset, which happens when the thread clears it.
+     */
+    void setMuted(final boolean muted) {
+        _muted = muted;
+    }
+
+    boolean isMuted() {
+        return _muted;
+    }
+
+    /**
+     * Whether a toplevel measurement is running, recorded or ignored.
+     */
+    boolean isRecording() {
+        return _depth > 0 || _skipDepth > 0;
+    }
+
+    /**
+     * Push a new measurement, adopting the given settings if it is a toplevel measurement.
+     *
+     * <p>A measurement which is not sampled, too deep, of a disabled layer or in excess of the maximum number
+     * of nodes is ignored, together with all measurements nested in it.</p>
+     *
+     * @param settings the current settings of the profiler, only used if this is a toplevel measurement
+     */
+    void begin(final RecordingSettings settings, final Layer layer, final String timerName, final long startNanos) {
+        if (!isRecording() && !_muted) {
+            adopt(settings);
+            if (settings.samplingRate < 1 && nextRandom() >= settings.samplingRate) {
+                _skipDepth = 1;
+                return;
+            }
+        }
+        begin(layer, timerName, startNanos);
+    }
+
+    /**
+     * Push a new measurement with the settings of the running toplevel measurement, see
+     * {@link #begin(RecordingSettings, Layer, String, long)}.
+     */
+    void begin(final Layer layer, final String timerName, final long startNanos) {
+        if (_muted) {
+            return;
+        }
+        if (_skipDepth > 0) {
+            _skipDepth++;
+            return;
+        }
+        final RecordingSettings s = _settings;
+        final int layerId = Layers.getId(layer);
+        final int resolvedLayerId = layerId != INHERIT_LAYER_ID ? layerId : (_depth == 0 ? DEFAULT_LAYER_ID : _frames[_depth - 1].layerId);
+        final int counters = getFlags(resolvedLayerId);
+        if (_depth >= s.maxDepth || (counters & MeasuredLayers.DISABLED) != 0) {
+            _skipDepth = 1;
+            return;
+        }
+        final CallNode parent = _depth == 0 ? _root : _frames[_depth - 1].node;
+        CallNode node = parent.findChild(layer, timerName);
+        if (node == null) {
+            if (_numNodes >= s.maxNodes) {
+                _skipDepth = 1;
+                return;
+            }
+            node = newNode(parent, layer, timerName);
+        }
+        if (_depth == _frames.length) {
+            final Frame[] frames = new Frame[_frames.length * 2];
+            System.arraycopy(_frames, 0, frames, 0, _frames.length);
+            _frames = frames;
+        }
+        Frame f = _frames[_depth];
+        if (f == null) {
+            f = new Frame();
+            _frames[_depth] = f;
+        }
+        f.layer = layer;
+        f.name = timerName;
+        f.startNanos = startNanos;
+        f.measurementsAtBegin = _numMeasurements;
+        f.layerId = resolvedLayerId;
+        f.nestedNanos = 0;
+        f.node = node;
+        f.id = ++_numBegins;
+        _depth++;
+        // read the counters last, so the bookkeeping above is not measured
+        final ThreadInfo contention = (counters & MeasuredLayers.CONTENTION) != 0 ? ThreadCounters.getContention() : null;
+        f.blockedMillisAtBegin = contention == null ? -1 : contention.getBlockedTime();
+        f.waitedMillisAtBegin = contention == null ? -1 : contention.getWaitedTime();
+        f.allocatedBytesAtBegin = (counters & MeasuredLayers.ALLOCATED_BYTES) != 0 ? ThreadCounters.getAllocatedBytes() : -1;
+        f.cpuNanosAtBegin = (counters & MeasuredLayers.CPU_TIME) != 0 ? ThreadCounters.getCpuNanos() : -1;
+    }
+
+    /**
+     * Pop the current measurement and add its duration to the call tree.
+     *
+     * @throws IllegalStateException if the current measurement does not have the given layer and name
+     */
+    void end(final Layer layer, final String timerName, final long endNanos, final Statistics subState) {
+        if (_skipDepth > 0) {
+            _skipDepth--;
+            return;
+        }
+        if (_depth == 0 || _muted) {
+            // be more robust: avoid failures due to wrong use
+            return;
+        }
+        final Frame f = _frames[--_depth];
+        final CallNode node = f.node;
+        if (f.cpuNanosAtBegin >= 0) {
+            final long cpuNanos = ThreadCounters.getCpuNanos();
+            if (cpuNanos >= 0) {
+                node.cpuNanos = Math.max(0, node.cpuNanos) + cpuNanos - f.cpuNanosAtBegin;
+            }
+        }
+        if (f.allocatedBytesAtBegin >= 0) {
+            final long allocatedBytes = ThreadCounters.getAllocatedBytes();
+            if (allocatedBytes >= 0) {
+                node.allocatedBytes = Math.max(0, node.allocatedBytes) + allocatedBytes - f.allocatedBytesAtBegin;
+            }
+        }
+        if (f.blockedMillisAtBegin >= 0) {
+            final ThreadInfo contention = ThreadCounters.getContention();
+            if (contention != null) {
+                node.blockedMillis = Math.max(0, node.blockedMillis) + contention.getBlockedTime() - f.blockedMillisAtBegin;
+                node.waitedMillis = Math.max(0, node.waitedMillis) + contention.getWaitedTime() - f.waitedMillisAtBegin;
+            }
+        }
+        final long nanos = endNanos - f.startNanos;
+        node.num += 1;
+        node.totalNanos += nanos;
+        node.gcPauseNanos += GcPauses.getOverlapNanos(f.startNanos, endNanos);
+        addSelfNanos(f.layerId, nanos - f.nestedNanos);
+        if (_depth > 0) {
+            _frames[_depth - 1].nestedNanos += nanos;
+        }
+        node.nestedMeasurements += _numMeasurements - f.measurementsAtBegin;
+        _numMeasurements++;
+        if (subState != null) {
+            node.getOrCreateSubStates(_settings.subStatisticsRetention).add(subState);
+        }
+        if (_settings.fastCallThresholdNanos > 0) {
+            if (_depth == 0) {
+                mergeFastCalls(node, _settings.fastCallThresholdNanos);
+            } else if (node.num == 1 && node.parent.getNumberOfChildren() % FAST_CALLS_MERGE_CHILDREN == 0) {
+                // the first call of a new child ended and no other child of the parent is running: cap the
+                // children of a loop calling many distinct timers before the toplevel measurement ends
+                mergeFastChildren(node.parent, _settings.fastCallThresholdNanos);
+            }
+        }
+        f.node = null;
+        if (!(timerName.equals(f.name) && layer.equals(f.layer))) {
+            throw new IllegalStateException("Expected MeasuringTrack '"
+                    + timerName + "[" + layer + "]', but had timer '"
+                    + f.name + "[" + f.layer + "]' on my stack"
+            );
+        }
+    }
+
+    /**
+     * Merge the fast calls in the tree of a finished toplevel measurement, deciding on the total time of all
+     * calls of a node, so a call which is fast but repeated often stays visible. Walks the tree top down without
+     * recursion, the subtrees of merged nodes are recycled without being visited.
+     */
+    private void mergeFastCalls(final CallNode top, final long thresholdNanos) {
+        CallNode n = top;
+        while (n != null) {
+            if (n.getFirstChild() != null) {
+                mergeFastChildren(n, thresholdNanos);
+            }
+            final CallNode child = n.getFirstChild();
+            if (child != null) {
+                n = child;
+                continue;
+            }
+            while (n != top && n.getNextSibling() == null) {
+                n = n.parent;
+            }
+            n = n == top ? null : n.getNextSibling();
+        }
+    }
+
+    /**
+     * Merge the children of the given node whose total time is below the threshold into one child, recycling
+     * their subtrees. The measurements nested in the merged children stay counted, so the overhead compensation
+     * of the parent does not change.
+     */
+    private void mergeFastChildren(final CallNode parent, final long thresholdNanos) {
+        final CallNode existing = parent.findChild(Layers.inherit(), ProfilerFactory.FAST_CALLS_TIMER_NAME);
+        CallNode c = parent.removeFastChildren(thresholdNanos, existing);
+        if (c == null) {
+            return;
+        }
+        // either there is a node to merge into or at least two nodes are removed, so the number of nodes shrinks
+        final CallNode fastCalls = existing != null ? existing : newNode(parent, Layers.inherit(), ProfilerFactory.FAST_CALLS_TIMER_NAME);
+        while (c != null) {
+            final CallNode next = c.getNextSibling();
+            fastCalls.merge(c);
+            recycleTree(c);
+            c = next;
+        }
+    }
+
+    private void adopt(final RecordingSettings settings) {
+        _settings = settings;
+        if (settings.measuredLayers != _flagsSource) {
+            _flagsSource = settings.measuredLayers;
+            Arrays.fill(_flagsByLayerId, 0);
+        }
+    }
+
+    /**
+     * The flags of the given layer in the current settings, see {@link MeasuredLayers#getFlags(int)}.
+     * Looked up in the shared settings once per layer, then read from the copy of this state.
+     */
+    private int getFlags(final int layerId) {
+        if (layerId < _flagsByLayerId.length && _flagsByLayerId[layerId] != 0) {
+            return _flagsByLayerId[layerId];
+        }
+        final int flags = _flagsSource.getFlags(layerId);
+        if (layerId >= _flagsByLayerId.length) {
+            _flagsByLayerId = Arrays.copyOf(_flagsByLayerId, Math.max(layerId + 1, _flagsByLayerId.length * 2));
+        }
+        _flagsByLayerId[layerId] = flags;
+        return flags;
+    }
+
+    /**
+     * The next pseudo random number between 0 (inclusive) and 1 (exclusive).
+     */
+    private double nextRandom() {
+        long x = _random;
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        _random = x;
+        return (x >>> 11) * 0x1.0p-53;
+    }
+
+    private void addSelfNanos(final int layerId, final long nanos) {
+        if (layerId >= _selfNanosByLayerId.length) {
+            _selfNanosByLayerId = Arrays.copyOf(_selfNanosByLayerId, Math.max(layerId + 1, _selfNanosByLayerId.length * 2));
+        }
+        _selfNanosByLayerId[layerId] += nanos;
+    }
+
+    private CallNode newNode(final CallNode parent, final Layer layer, final String timerName) {
+        CallNode node = _free;
+        if (node == null) {
+            node = new CallNode();
+        } else {
+            _free = node.parent;
+            _numFree--;
+        }
+        node.init(parent, layer, timerName);
+        parent.addChild(node);
+        _numNodes++;
+        return node;
+    }
+
+    /**
+     * Recycle the given node, which has been removed from its parent, and all nodes below it.
+     */
+    private void recycleTree(final CallNode top) {
+        // dismantle the tree without recursion: descend to the first child, recycle leaves and continue with their siblings or parents
+        CallNode n = top;
+        while (n != null) {
+            final CallNode child = n.detachFirstChild();
+            if (child != null) {
+                n = child;
+                continue;
+            }
+            final CallNode next = n == top ? null : n.getNextSibling() != null ? n.getNextSibling() : n.parent;
+            n.recycle();
+            _numNodes--;
+            if (_numFree < MAX_RETAINED_FREE_NODES) {
+                // the free list is linked through the parent field
+                n.parent = _free;
+                _free = n;
+                _numFree++;
+            }
+            n = next;
+        }
+    }
+
+    /**
+     * The receiver of sub-task call trees of the current measurement.
+     * @return the receiver, or null if there is no running measurement or it is ignored
+     */
+    int getDepth() {
+        return _depth;
+    }
+
+    /**
+     * The number of the running measurement, which identifies it together with this state and {@link #getDepth()}.
+     *
+     * @return the number, or -1 if there is no running measurement or it is ignored
+     */
+    long getCurrentMeasurementId() {
+        return _depth == 0 || _skipDepth > 0 ? -1 : _frames[_depth - 1].id;
+    }
+
+    /**
+     * Whether the measurement with the given number, which was running at the given depth, is still running,
+     * possibly with further measurements nested in it.
+     */
+    boolean isRunning(final int depth, final long measurementId) {
+        return depth > 0 && depth <= _depth && _frames[depth - 1].id == measurementId;
+    }
+
+    SubStates getCurrentSubStates() {
+        return _depth == 0 || _skipDepth > 0 ? null : _frames[_depth - 1].node.getOrCreateSubStates(_settings.subStatisticsRetention);
+    }
+
+    /**
+     * The synthetic root node, its children are the toplevel measurements.
+     */
+    CallNode getRoot() {
+        return _root;
+    }
+
+    /**
+     * The self time of the finished measurements, indexed by the id of their layer.
+     *
+     * @return the live array, which may be longer than the number of layers
+     */
+    long[] getSelfNanosByLayerId() {
+        return _selfNanosByLayerId;
+    }
+
+    int getNumberOfNodes() {
+        return _numNodes;
+    }
+
+    boolean isEmpty() {
+        return _depth == 0 && _numNodes == 0 && _skipDepth == 0;
+    }
+
+    /**
+     * Forget all measurements, recycling the nodes of the call tree.
+     */
+    void reset() {
+        for (int i = 0; i < _depth; i++) {
+            _frames[i].node = null;
+        }
+        _depth = 0;
+        _skipDepth = 0;
+        _settings = RecordingSettings.NONE;
+        if (_frames.length > MAX_RETAINED_FRAMES) {
+            _frames = new Frame[INITIAL_FRAMES];
+        }
+        CallNode c = _root.detachFirstChild();
+        while (c != null) {
+            final CallNode next = c.getNextSibling();
+            recycleTree(c);
+            c = next;
+        }
+        _root.recycle();
+        _numNodes = 0;
+        _numMeasurements = 0;
+        Arrays.fill(_selfNanosByLayerId, 0);
+        _muted = false;
+    }
+}
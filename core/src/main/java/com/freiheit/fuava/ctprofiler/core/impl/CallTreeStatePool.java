@@ -0,0 +1,77 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock free pool of {@link CallTreeState} instances.
+ *
+ * <p>The pool is shared by all threads and does not depend on the identity of the carrier
+ * thread, so it may be used from virtual threads as well. Acquiring and releasing probe a
+ * few slots starting at a position derived from the current thread; if no state is found a new
+ * one is created, if no free slot is found the released state is left to the garbage collector.</p>
+ */
+final class CallTreeStatePool {
+    private static final int MAX_PROBES = 8;
+
+    static final CallTreeStatePool SHARED = new CallTreeStatePool(64);
+
+    private final AtomicReferenceArray<CallTreeState> _slots;
+
+    CallTreeStatePool(final int capacity) {
+        _slots = new AtomicReferenceArray<CallTreeState>(capacity);
+    }
+
+    /**
+     * Take a state from the pool, or create a new one if the pool is empty.
+     * @return an empty state
+     */
+    CallTreeState acquire() {
+        final int length = _slots.length();
+        final int start = startIndex(length);
+        for (int i = 0; i < MAX_PROBES && i < length; i++) {
+            final int idx = (start + i) % length;
+            final CallTreeState s = _slots.get(idx);
+            if (s != null && _slots.compareAndSet(idx, s, null)) {
+                return s;
+            }
+        }
+        return new CallTreeState();
+    }
+
+    /**
+     * Reset the given state and return it to the pool.
+     * @param state the state, which must not be used by the caller any more
+     */
+    void release(final CallTreeState state) {
+        state.reset();
+        final int length = _slots.length();
+        final int start = startIndex(length);
+        for (int i = 0; i < MAX_PROBES && i < length; i++) {
+            final int idx = (start + i) % length;
+            if (_slots.get(idx) == null && _slots.compareAndSet(idx, null, state)) {
+                return;
+            }
+        }
+    }
+
+    private static int startIndex(final int length) {
+        final long id = Thread.currentThread().getId();
+        return (int)((id ^ (id >>> 32)) & 0x7fffffff) % length;
+    }
+}
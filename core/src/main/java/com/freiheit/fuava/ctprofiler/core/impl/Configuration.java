@@ -17,6 +17,7 @@
 package com.freiheit.fuava.ctprofiler.core.impl;
 
 import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
+import com.freiheit.fuava.ctprofiler.core.Layer;
 
 /**
  * Configuration options of the standard {@link CallTreeProfiler}.
@@ -34,4 +35,84 @@ public interface Configuration {
      * @return true if Profiling should be enabled, false if it should be disabled.
      */
     boolean isEnabled();
+
+    /**
+     * @return which of the call trees of sub-tasks executed in other threads are retained for each path.
+     */
+    SubStatisticsRetention getSubStatisticsRetention();
+
+    /**
+     * Whether to measure the CPU time of the current thread for the measurements of the given layer,
+     * in addition to the wall time. Reading the CPU time is considerably more expensive than reading
+     * {@link System#nanoTime()}, so it is typically only enabled for layers with few, long measurements.
+     *
+     * <p>Measurements which inherit their layer use the layer of their parent.</p>
+     *
+     * @return true if {@link com.freiheit.fuava.ctprofiler.core.TimerStatistics#getCpuNanos()} should be measured for the layer
+     */
+    boolean isCpuTimeMeasured(Layer layer);
+
+    /**
+     * Whether to measure the bytes allocated by the current thread for the measurements of the given layer.
+     * Needs the HotSpot extension of the ThreadMXBean, on other JVMs nothing is measured.
+     *
+     * <p>Measurements which inherit their layer use the layer of their parent.</p>
+     *
+     * @return true if {@link com.freiheit.fuava.ctprofiler.core.TimerStatistics#getAllocatedBytes()} should be measured for the layer
+     */
+    boolean isAllocatedBytesMeasured(Layer layer);
+
+    /**
+     * Whether to measure the time the current thread was blocked on monitors or waiting for the measurements of
+     * the given layer. Only measured while thread contention monitoring of the JVM is enabled, see
+     * {@link java.lang.management.ThreadMXBean#setThreadContentionMonitoringEnabled(boolean)}, and the JVM
+     * only reports it in milliseconds.
+     *
+     * <p>Measurements which inherit their layer use the layer of their parent.</p>
+     *
+     * @return true if {@link com.freiheit.fuava.ctprofiler.core.TimerStatistics#getBlockedMillis()} and
+     *  {@link com.freiheit.fuava.ctprofiler.core.TimerStatistics#getWaitedMillis()} should be measured for the layer
+     */
+    boolean isContentionMeasured(Layer layer);
+
+    /**
+     * The fraction of toplevel measurements to record, between 0 and 1. A toplevel measurement which is
+     * not sampled is ignored together with all measurements nested in it.
+     *
+     * @return 1 to record all call trees
+     */
+    double getSamplingRate();
+
+    /**
+     * The maximum number of nested measurements to record, deeper measurements are ignored together with
+     * the measurements nested in them.
+     */
+    int getMaxDepth();
+
+    /**
+     * The maximum number of nodes of the call tree of one thread, measurements which would need a new node
+     * are ignored together with the measurements nested in them.
+     */
+    int getMaxNodes();
+
+    /**
+     * Whether to record the measurements of the given layer. Measurements of disabled layers are ignored
+     * together with the measurements nested in them.
+     *
+     * <p>Measurements which inherit their layer use the layer of their parent.</p>
+     */
+    boolean isLayerEnabled(Layer layer);
+
+    /**
+     * The total time in nanoseconds below which the children of a measurement are merged into one node named
+     * {@value ProfilerFactory#FAST_CALLS_TIMER_NAME} when the toplevel measurement ends. The total of all calls
+     * of a node counts, so a call which is fast but repeated often is kept. A measurement which gets many distinct
+     * children while recording has its fast children merged right away, deciding on their totals so far, so a loop
+     * over distinct calls does not hold a node per call until the toplevel measurement ends. Unlike the threshold of the
+     * {@link com.freiheit.fuava.ctprofiler.core.rendering.TxtRenderer}, this keeps the fast calls from taking up
+     * nodes in the call trees which are retained, aggregated and rendered, and the time of the parent stays exact.
+     *
+     * @return 0 to keep all nodes
+     */
+    long getFastCallThresholdNanos();
 }
\ No newline at end of file
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
+
+/**
+ * Reconfigures a profiler whenever a properties file changes, see {@link PropertiesConfiguration}.
+ *
+ * <p>The file is polled, a change of its modification time or length is picked up at the next check. If the
+ * changed file cannot be read or contains invalid values, the profiler keeps its previous configuration
+ * and the failure is available through {@link #getLastFailure()}. Deleting the file does not
+ * change the configuration either.</p>
+ *
+ * <p>Call trees which are being recorded while the configuration changes keep the previous settings until
+ * their toplevel measurement ends, so each call tree is recorded with consistent settings.</p>
+ */
+public final class ConfigurationWatcher {
+    private final File _file;
+    private final CallTreeProfiler _profiler;
+    private final Configuration _defaults;
+    private long _lastModified;
+    private long _length = -1;
+    private volatile Exception _lastFailure;
+    private ScheduledExecutorService _executor;
+
+    /**
+     * Create a watcher, the file is not read before the first {@link #check()}.
+     *
+     * @param file the properties file
+     * @param profiler the profiler to reconfigure, nothing is done for profilers not created by {@link ProfilerFactory}
+     * @param defaults the configuration for keys which are not set in the file
+     */
+    public ConfigurationWatcher(final File file, final CallTreeProfiler profiler, final Configuration defaults) {
+        _file = file;
+        _profiler = profiler;
+        _defaults = defaults;
+    }
+
+    /**
+     * Reconfigure the profiler if the file changed since the last check.
+     *
+     * @return true if the profiler was reconfigured
+     */
+    public synchronized boolean check() {
+        final long lastModified = _file.lastModified();
+        final long length = _file.length();
+        if (lastModified == 0 || lastModified == _lastModified && length == _length) {
+            return false;
+        }
+        _lastModified = lastModified;
+        _length = length;
+        final Configuration config;
+        try {
+            config = PropertiesConfiguration.load(_file, _defaults);
+        } catch (final Exception e) {
+            _lastFailure = e;
+            return false;
+        }
+        ProfilerFactory.reconfigure(_profiler, config);
+        _lastFailure = null;
+        return true;
+    }
+
+    /**
+     * Check the file periodically in a daemon thread, until {@link #stop()} is called.
+     *
+     * @param intervalMillis the time between two checks
+     */
+    public synchronized void start(final long intervalMillis) {
+        if (_executor != null) {
+            return;
+        }
+        _executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "ctprofiler-configuration-watcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        _executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check();
+                } catch (final RuntimeException e) {
+                    _lastFailure = e;
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop checking the file periodically.
+     */
+    public synchronized void stop() {
+        if (_executor != null) {
+            _executor.shutdownNow();
+            _executor = null;
+        }
+    }
+
+    /**
+     * The reason why the last changed file was not applied, or null if it was applied.
+     */
+    public Exception getLastFailure() {
+        return _lastFailure;
+    }
+
+    public File getFile() {
+        return _file;
+    }
+}
@@ -17,7 +17,6 @@
 package com.freiheit.fuava.ctprofiler.core.impl;
 
 import java.io.IOException;
-import java.util.Collections;
 
 import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
 import com.freiheit.fuava.ctprofiler.core.Layer;
@@ -102,6 +101,6 @@ class DisabledCallTreeProfiler implements CallTreeProfiler {
     @Override
     public Statistics getStatistics() {
         final Thread currentThread = Thread.currentThread();
-        return ThreadStatisticsImpl.getInstance(currentThread.getId(), currentThread.getName(), Collections.<PathWithLayer, Call>emptyMap());
+        return ThreadStatisticsImpl.getInstance(currentThread.getId(), currentThread.getName(), null, null, 0);
     }
 }
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Remembers the recent garbage collection pauses of the JVM, so measurements can be annotated with the time
+ * they were stopped by the garbage collector.
+ *
+ * <p>The pauses are taken from the notifications of the garbage collector MBeans, which are available on
+ * HotSpot JVMs since Java 7. They are kept in a ring which is written by the notification threads and read without
+ * locking. Measurements which started after the last pause ended only compare their start with the end of the last
+ * pause, which costs one volatile read: a plain long could be torn on 32 bit JVMs, and recording threads might never
+ * see a new pause.</p>
+ *
+ * <p>The JVM reports the pauses in milliseconds on a clock of its own. It is mapped to {@link System#nanoTime()}
+ * by the smallest difference seen between the end of a pause and the arrival of its notification, so the first
+ * pauses may be placed too late if their notifications were delayed. A measurement ending before the notification
+ * of a pause arrived misses the pause. The cycles of concurrent collectors are not pauses and are ignored.</p>
+ */
+final class GcPauses {
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+    private static final int CAPACITY = 64;
+
+    /**
+     * One pause, on the time line of {@link System#nanoTime()}.
+     */
+    private static final class Pause {
+        private final long startNanos;
+        private final long endNanos;
+
+        Pause(final long startNanos, final long endNanos) {
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+        }
+    }
+
+    private static final AtomicReferenceArray<Pause> PAUSES = new AtomicReferenceArray<Pause>(CAPACITY);
+    private static volatile long lastEndNanos = Long.MIN_VALUE;
+    // System.nanoTime() at the origin of the clock of the notifications, only decreases
+    private static long originNanos = Long.MAX_VALUE;
+    private static int nextIndex;
+    private static boolean installed;
+
+    private static final NotificationListener LISTENER = new NotificationListener() {
+        @Override
+        public void handleNotification(final Notification notification, final Object handback) {
+            if (GC_NOTIFICATION.equals(notification.getType()) && notification.getUserData() instanceof CompositeData) {
+                add((CompositeData) notification.getUserData());
+            }
+        }
+    };
+
+    private GcPauses() {
+        // utility class constructor
+    }
+
+    /**
+     * Start listening to the garbage collectors, if not done yet.
+     */
+    static synchronized void install() {
+        if (installed) {
+            return;
+        }
+        installed = true;
+        try {
+            for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (gc instanceof NotificationEmitter) {
+                    ((NotificationEmitter) gc).addNotificationListener(LISTENER, null, null);
+                }
+            }
+        } catch (final SecurityException e) {
+            // no pauses are recorded
+        }
+    }
+
+    /**
+     * Stop listening to the garbage collectors, so the MBeans of the JVM do not reference the class loader
+     * of this class anymore. Pauses are recorded again after the next {@link #install()}.
+     */
+    static synchronized void uninstall() {
+        if (!installed) {
+            return;
+        }
+        installed = false;
+        try {
+            for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (gc instanceof NotificationEmitter) {
+                    try {
+                        ((NotificationEmitter) gc).removeNotificationListener(LISTENER);
+                    } catch (final ListenerNotFoundException e) {
+                        // not added to this collector
+                    }
+                }
+            }
+        } catch (final SecurityException e) {
+            // nothing was added
+        }
+    }
+
+    private static synchronized void add(final CompositeData info) {
+        final String action = String.valueOf(info.get("gcAction"));
+        if (action.toLowerCase().contains("cycle") || !(info.get("gcInfo") instanceof CompositeData)) {
+            return;
+        }
+        final CompositeData gcInfo = (CompositeData) info.get("gcInfo");
+        final long startMillis = ((Long) gcInfo.get("startTime")).longValue();
+        final long endMillis = ((Long) gcInfo.get("endTime")).longValue();
+        // the pause ended before its notification arrived
+        originNanos = Math.min(originNanos, System.nanoTime() - endMillis * 1000000L);
+        if (endMillis <= startMillis) {
+            return;
+        }
+        final long startNanos = originNanos + startMillis * 1000000L;
+        final long endNanos = originNanos + endMillis * 1000000L;
+        PAUSES.set(nextIndex, new Pause(startNanos, endNanos));
+        nextIndex = (nextIndex + 1) % CAPACITY;
+        if (endNanos > lastEndNanos) {
+            lastEndNanos = endNanos;
+        }
+    }
+
+    /**
+     * The time the given interval overlaps with recent garbage collection pauses.
+     *
+     * @return the overlap in nanoseconds, 0 if there was no pause in the interval
+     */
+    static long getOverlapNanos(final long startNanos, final long endNanos) {
+        if (lastEndNanos <= startNanos) {
+            return 0;
+        }
+        long r = 0;
+        for (int i = 0; i < CAPACITY; i++) {
+            final Pause p = PAUSES.get(i);
+            if (p != null && p.endNanos > startNanos && p.startNanos < endNanos) {
+                r += Math.min(endNanos, p.endNanos) - Math.max(startNanos, p.startNanos);
+            }
+        }
+        return r;
+    }
+}
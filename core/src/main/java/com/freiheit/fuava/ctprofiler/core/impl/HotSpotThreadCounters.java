@@ -0,0 +1,45 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Reads the counters of the HotSpot extension of the ThreadMXBean.
+ *
+ * <p>Only referenced after {@link ThreadCounters} checked that the extension is present, so the
+ * profiler still works on JVMs without it.</p>
+ */
+final class HotSpotThreadCounters {
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private HotSpotThreadCounters() {
+        // utility class constructor
+    }
+
+    static boolean isAllocatedBytesAvailable() {
+        try {
+            return THREADS.isThreadAllocatedMemorySupported() && THREADS.isThreadAllocatedMemoryEnabled();
+        } catch (final UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    static long getAllocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
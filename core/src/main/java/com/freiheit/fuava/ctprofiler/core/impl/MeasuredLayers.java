@@ -0,0 +1,79 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.util.Arrays;
+
+import com.freiheit.fuava.ctprofiler.core.Layers;
+
+/**
+ * Which thread counters, besides the wall time, are measured for the measurements of each layer, and which
+ * layers are not recorded at all.
+ *
+ * <p>The decision of the {@link Configuration} is asked once per layer and kept in an array indexed by the
+ * id of the layer. Each {@link CallTreeState} copies the flags it needs into an array of its own, so the recording
+ * threads only look up a layer here the first time they measure it. Counters which are not available on this JVM
+ * are never measured.</p>
+ */
+final class MeasuredLayers {
+    /**
+     * Measures nothing but wall time, for states which are not recording for a configured profiler.
+     */
+    static final MeasuredLayers NONE = new MeasuredLayers(null);
+
+    static final int CPU_TIME = 1;
+    static final int ALLOCATED_BYTES = 2;
+    static final int CONTENTION = 4;
+    static final int DISABLED = 8;
+    private static final int RESOLVED = 1 << 31;
+
+    private final Configuration _config;
+    // flags per layer id, 0 for layers which have not been resolved yet
+    private int[] _flagsByLayerId = new int[0];
+
+    MeasuredLayers(final Configuration config) {
+        _config = config;
+    }
+
+    /**
+     * The counters to measure for the given layer, a combination of {@link #CPU_TIME}, {@link #ALLOCATED_BYTES}
+     * and {@link #CONTENTION}, or {@link #DISABLED} if the layer is not recorded.
+     */
+    synchronized int getFlags(final int layerId) {
+        if (layerId < _flagsByLayerId.length && _flagsByLayerId[layerId] != 0) {
+            return _flagsByLayerId[layerId];
+        }
+        int f = RESOLVED;
+        if (_config != null && !_config.isLayerEnabled(Layers.forId(layerId))) {
+            f |= DISABLED;
+        }
+        if (_config != null && _config.isCpuTimeMeasured(Layers.forId(layerId)) && ThreadCounters.isCpuTimeAvailable()) {
+            f |= CPU_TIME;
+        }
+        if (_config != null && _config.isAllocatedBytesMeasured(Layers.forId(layerId)) && ThreadCounters.isAllocatedBytesAvailable()) {
+            f |= ALLOCATED_BYTES;
+        }
+        if (_config != null && _config.isContentionMeasured(Layers.forId(layerId)) && ThreadCounters.isContentionSupported()) {
+            f |= CONTENTION;
+        }
+        if (layerId >= _flagsByLayerId.length) {
+            _flagsByLayerId = Arrays.copyOf(_flagsByLayerId, layerId + 1);
+        }
+        _flagsByLayerId[layerId] = f;
+        return f;
+    }
+}
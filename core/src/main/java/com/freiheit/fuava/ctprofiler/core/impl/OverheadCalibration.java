@@ -0,0 +1,82 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import com.freiheit.fuava.ctprofiler.core.Layers;
+
+/**
+ * Estimates the time the profiler itself needs for one measurement, that is one begin/end pair
+ * including the reads of the clock.
+ *
+ * <p>The estimate is calibrated once per JVM, when the first profiler is enabled, by recording a hundred
+ * thousand measurements into a private call tree and taking the fastest of several rounds.
+ * It can be overridden with the system property
+ * {@value com.freiheit.fuava.ctprofiler.core.impl.ProfilerFactory#PROP_OVERHEAD_NANOS}, for example
+ * to switch compensation off by setting it to 0.</p>
+ */
+final class OverheadCalibration {
+    private static final int ROUNDS = 5;
+    private static final int MEASUREMENTS_PER_ROUND = 20000;
+    private static final String CALIBRATION = "calibration";
+    private static final String MEASUREMENT = "measurement";
+
+    private static final double NANOS_PER_MEASUREMENT = init();
+
+    private OverheadCalibration() {
+        // utility class constructor
+    }
+
+    /**
+     * The estimated duration of one measurement in nanoseconds.
+     */
+    static double getNanosPerMeasurement() {
+        return NANOS_PER_MEASUREMENT;
+    }
+
+    private static double init() {
+        final String configured = System.getProperty(ProfilerFactory.PROP_OVERHEAD_NANOS);
+        if (configured != null && configured.trim().length() > 0) {
+            try {
+                return Math.max(0, Double.parseDouble(configured.trim()));
+            } catch (final NumberFormatException e) {
+                // fall through to calibration
+            }
+        }
+        return calibrate();
+    }
+
+    private static double calibrate() {
+        // measured through a thread local, like the measurements of the profiler
+        final ThreadLocal<CallTreeState> states = new ThreadLocal<CallTreeState>();
+        states.set(new CallTreeState());
+        long fastestRound = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            final CallTreeState outer = states.get();
+            outer.begin(RecordingSettings.NONE, Layers.inherit(), CALIBRATION, System.nanoTime());
+            final long start = System.nanoTime();
+            for (int i = 0; i < MEASUREMENTS_PER_ROUND; i++) {
+                states.get().begin(RecordingSettings.NONE, Layers.inherit(), MEASUREMENT, System.nanoTime());
+                states.get().end(Layers.inherit(), MEASUREMENT, System.nanoTime(), null);
+            }
+            fastestRound = Math.min(fastestRound, System.nanoTime() - start);
+            outer.end(Layers.inherit(), CALIBRATION, System.nanoTime(), null);
+            outer.reset();
+        }
+        states.remove();
+        return ((double) fastestRound) / MEASUREMENTS_PER_ROUND;
+    }
+}
@@ -16,12 +16,12 @@
  */
 package com.freiheit.fuava.ctprofiler.core.impl;
 
-import java.util.Arrays;
-
 import com.freiheit.fuava.ctprofiler.core.NestedTimerPath;
 
 /**
  * Abstraction for the path of the measurement points.
+ *
+ * <p>Paths are linked to their parent path, so the paths of all nodes of a call tree share their prefixes.</p>
  */
 class PathImpl implements NestedTimerPath {
     public static final NestedTimerPath ROOT = new NestedTimerPath() {
@@ -42,44 +42,29 @@ class PathImpl implements NestedTimerPath {
         }
     };
 
-    private final String[] _p;
-
-    /**
-     * Only for usage by the ROOT implementation.
-     */
-    PathImpl() {
-        this._p = new String[0];
-    }
+    private final NestedTimerPath _parent;
+    private final String _name;
+    private final int _level;
 
     /**
-     * Creates a path for the given string array.
-     * @param p the string array which describes the path
+     * Creates the path of a measurement below the given path.
+     * @param parent the path of the parent measurement, {@link #ROOT} for a toplevel measurement
+     * @param name the timer name of the measurement
      */
-    PathImpl(final String[] p) {
-        assert p.length > 0;
-        this._p = p;
-    }
-
-    /**
-     * Get a path instance for the given path.
-     * @param p the path as a string array
-     * @return a path instance
-     */
-    public static NestedTimerPath getInstance(final String[] p) {
-        if (p == null || p.length == 0) {
-            return ROOT;
-        }
-        return new PathImpl(p);
+    PathImpl(final NestedTimerPath parent, final String name) {
+        this._parent = parent;
+        this._name = name;
+        this._level = parent.getLevel() + 1;
     }
 
     @Override
     public String getLeafTimerName() {
-        return this._p[this._p.length - 1];
+        return this._name;
     }
 
     @Override
     public int getLevel() {
-        return this._p.length;
+        return this._level;
     }
 
     /**
@@ -88,11 +73,7 @@ class PathImpl implements NestedTimerPath {
      */
     @Override
     public NestedTimerPath getParent() {
-        final String[] parent = new String[this._p.length - 1];
-        for (int i = 0; i < parent.length; i++) {
-            parent[i] = this._p[i];
-        }
-        return PathImpl.getInstance(parent);
+        return this._parent;
     }
 
     /**
@@ -102,7 +83,7 @@ class PathImpl implements NestedTimerPath {
     public boolean equals(final Object obj) {
         if (obj instanceof PathImpl) {
             final PathImpl path = (PathImpl)obj;
-            return Arrays.equals(this._p, path._p);
+            return this._level == path._level && this._name.equals(path._name) && this._parent.equals(path._parent);
         }
         return false;
     }
@@ -112,7 +93,7 @@ class PathImpl implements NestedTimerPath {
      */
     @Override
     public int hashCode() {
-        return Arrays.hashCode(this._p);
+        return this._parent.hashCode() * 31 + this._name.hashCode();
     }
 
      /**
@@ -120,6 +101,18 @@ class PathImpl implements NestedTimerPath {
      */
     @Override
     public String toString() {
-        return Arrays.toString(this._p);
+        final StringBuilder sb = new StringBuilder();
+        appendNames(sb);
+        return sb.append(']').toString();
+    }
+
+    private void appendNames(final StringBuilder sb) {
+        if (this._parent instanceof PathImpl) {
+            ((PathImpl) this._parent).appendNames(sb);
+            sb.append(", ");
+        } else {
+            sb.append('[');
+        }
+        sb.append(this._name);
     }
-}
\ No newline at end of file
+}
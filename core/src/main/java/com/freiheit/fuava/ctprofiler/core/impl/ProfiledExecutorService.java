@@ -0,0 +1,164 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
+
+/**
+ * An {@link ExecutorService} that includes the call trees of the tasks executed in worker threads
+ * into the call tree of the thread that submitted them.
+ *
+ * <p>When a task is submitted while the submitting thread has a running measurement, the task
+ * is measured in the worker thread, and the call tree of the worker is attached as sub-statistics
+ * to the running measurement of the submitting thread when the task is done, before the result of its
+ * {@link java.util.concurrent.Future} is available. The time the task
+ * spent waiting in the queue is measured as well. The profiler state of the worker thread is
+ * cleared before each task and restored afterwards, see {@link ProfilingContext}.</p>
+ *
+ * <pre>
+ * ExecutorService executor = new ProfiledExecutorService(Executors.newFixedThreadPool(4), profiler);
+ * profiler.begin("delegating", System.nanoTime());
+ * try {
+ *     Future&lt;Result> future = executor.submit(task);
+ *     // do some other stuff
+ *     future.get();
+ * } finally {
+ *     profiler.end("delegating", System.nanoTime());
+ * }
+ * </pre>
+ *
+ * <p>Tasks which are executed by the submitting thread itself (for example due to a
+ * {@link java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy}) are simply part of its own call tree.</p>
+ */
+public class ProfiledExecutorService extends AbstractExecutorService {
+    /**
+     * The timer name of the root measurement of each task, if no other name was given.
+     */
+    public static final String DEFAULT_TASK_TIMER_NAME = "task";
+
+    /**
+     * A task whose callable was already wrapped when it was created in the submitting thread.
+     */
+    private static final class ProfiledTask<T> extends FutureTask<T> {
+        ProfiledTask(final Callable<T> callable) {
+            super(callable);
+        }
+
+        ProfiledTask(final Runnable runnable, final T result) {
+            super(runnable, result);
+        }
+    }
+
+    private final ExecutorService _delegate;
+    private final CallTreeProfiler _callTreeProfiler;
+    private final String _taskTimerName;
+
+    /**
+     * Create an executor service that executes the tasks with the given delegate.
+     *
+     * @param delegate the executor service which does the real work
+     * @param callTreeProfiler the profiler used by the submitting threads and the workers
+     */
+    public ProfiledExecutorService(final ExecutorService delegate, final CallTreeProfiler callTreeProfiler) {
+        this(delegate, callTreeProfiler, DEFAULT_TASK_TIMER_NAME);
+    }
+
+    /**
+     * Create an executor service that executes the tasks with the given delegate.
+     *
+     * @param delegate the executor service which does the real work
+     * @param callTreeProfiler the profiler used by the submitting threads and the workers
+     * @param taskTimerName the timer name of the root measurement of each task in the worker threads
+     */
+    public ProfiledExecutorService(final ExecutorService delegate, final CallTreeProfiler callTreeProfiler, final String taskTimerName) {
+        if (delegate == null) {
+            throw new NullPointerException("Cannot construct a ProfiledExecutorService without a delegate");
+        }
+        if (callTreeProfiler == null) {
+            throw new NullPointerException("Cannot construct a ProfiledExecutorService without a call tree profiler");
+        }
+        _delegate = delegate;
+        _callTreeProfiler = callTreeProfiler;
+        _taskTimerName = taskTimerName;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The task is wrapped inside the future, so the call tree of the worker is attached before the
+     * future is done.</p>
+     */
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(final Runnable runnable, final T value) {
+        return new ProfiledTask<T>(ProfilingContext.capture(_callTreeProfiler).wrap(_taskTimerName, runnable), value);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The task is wrapped inside the future, so the call tree of the worker is attached before the
+     * future is done.</p>
+     */
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(final Callable<T> callable) {
+        return new ProfiledTask<T>(ProfilingContext.capture(_callTreeProfiler).wrap(_taskTimerName, callable));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The submit and invoke methods end up here with tasks created by {@link #newTaskFor(Callable)}, which
+     * are already wrapped. Other commands are wrapped here, while still running in the submitting thread.</p>
+     */
+    @Override
+    public void execute(final Runnable command) {
+        _delegate.execute(command instanceof ProfiledTask ? command : ProfilingContext.capture(_callTreeProfiler).wrap(_taskTimerName, command));
+    }
+
+    @Override
+    public void shutdown() {
+        _delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return _delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return _delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return _delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return _delegate.awaitTermination(timeout, unit);
+    }
+}
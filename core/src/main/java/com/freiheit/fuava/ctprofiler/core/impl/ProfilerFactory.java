@@ -16,8 +16,13 @@
  */
 package com.freiheit.fuava.ctprofiler.core.impl;
 
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
+import com.freiheit.fuava.ctprofiler.core.Layer;
 import com.freiheit.fuava.ctprofiler.core.TimeKeeper;
+import com.freiheit.fuava.ctprofiler.core.aggregation.StatisticsAggregator;
 
 /**
  * Factory class for creating CallTreeProfiler and TimeKeeper instances.
@@ -36,10 +41,116 @@ public final class ProfilerFactory {
      */
     public static final String PROP_GLOBAL_IS_ENABLED = "fdc.fuava.ctprofiler.enabled";
 
-    private static final CallTreeProfiler GLOBAL_PROFILER = isGlobalEnabled()
-    ? new CallTreeProfilerImpl(new AbstractConfiguration() {}) : DisabledCallTreeProfiler.getInstance();
-    private static final TimeKeeper GLOBAL_TIME_KEEPER = isGlobalEnabled()
-    ? new TimeKeeperImpl(GLOBAL_PROFILER) : DisabledTimeKeeper.getInstance();
+    /**
+     * The name of the system configuration property that sets the estimated overhead of one measurement
+     * in nanoseconds, instead of calibrating it when the first profiler is enabled.
+     * <p>Set it to 0 to disable compensation of the profilers own overhead.</p>
+     * <h6>Example:</h6>
+     * <pre>
+     * java -Dfdc.fuava.ctprofiler.overheadNanos=0 YourApp
+     * </pre>
+     */
+    public static final String PROP_OVERHEAD_NANOS = "fdc.fuava.ctprofiler.overheadNanos";
+
+    /**
+     * The name of the system configuration property that lists the layers, separated by commas, for which the global
+     * profiler measures the CPU time in addition to the wall time, see {@link Configuration#isCpuTimeMeasured(Layer)}.
+     * <h6>Example:</h6>
+     * <pre>
+     * java -Dfdc.fuava.ctprofiler.cpuTimeLayers=presentation,business YourApp
+     * </pre>
+     */
+    public static final String PROP_CPU_TIME_LAYERS = "fdc.fuava.ctprofiler.cpuTimeLayers";
+
+    /**
+     * The name of the system configuration property that lists the layers, separated by commas, for which the global
+     * profiler measures the allocated bytes, see {@link Configuration#isAllocatedBytesMeasured(Layer)}.
+     * <h6>Example:</h6>
+     * <pre>
+     * java -Dfdc.fuava.ctprofiler.allocatedBytesLayers=presentation YourApp
+     * </pre>
+     */
+    public static final String PROP_ALLOCATED_BYTES_LAYERS = "fdc.fuava.ctprofiler.allocatedBytesLayers";
+
+    /**
+     * The name of the system configuration property that lists the layers, separated by commas, for which the global
+     * profiler measures the blocked and waited time, see {@link Configuration#isContentionMeasured(Layer)}. If it is
+     * not set, the integration layer is measured, as long as thread contention monitoring is enabled.
+     * <h6>Example:</h6>
+     * <pre>
+     * java -Dfdc.fuava.ctprofiler.contentionLayers=integration,business YourApp
+     * </pre>
+     */
+    public static final String PROP_CONTENTION_LAYERS = "fdc.fuava.ctprofiler.contentionLayers";
+
+    /**
+     * The name of the system configuration property that names a properties file with the configuration of the global
+     * profiler, see {@link PropertiesConfiguration}. The file is checked for changes periodically, and changes are
+     * applied without a restart. Keys which are not set in the file take the values of the other system properties.
+     * <h6>Example:</h6>
+     * <pre>
+     * java -Dfdc.fuava.ctprofiler.configFile=/etc/myapp/ctprofiler.properties YourApp
+     * </pre>
+     */
+    public static final String PROP_CONFIG_FILE = "fdc.fuava.ctprofiler.configFile";
+
+    /**
+     * The name of the system configuration property that sets the milliseconds between two checks of the file named
+     * by {@value #PROP_CONFIG_FILE}. The default is 5000.
+     */
+    public static final String PROP_CONFIG_FILE_CHECK_MILLIS = "fdc.fuava.ctprofiler.configFileCheckMillis";
+
+    /**
+     * The timer name of the nodes which the fast calls below a measurement are merged into,
+     * see {@link Configuration#getFastCallThresholdNanos()}. Their number of calls is the number of merged calls.
+     */
+    public static final String FAST_CALLS_TIMER_NAME = "(fast calls)";
+
+    /**
+     * The JMX domain of the MBeans of the profilers, see {@link ProfilerMBean}.
+     */
+    public static final String JMX_DOMAIN = "com.freiheit.fuava.ctprofiler";
+
+    private static final Configuration GLOBAL_CONFIGURATION = new AbstractConfiguration() {
+        @Override
+        public boolean isEnabled() {
+            return isGlobalEnabled();
+        }
+
+        @Override
+        public boolean isCpuTimeMeasured(final Layer layer) {
+            return isListed(System.getProperty(PROP_CPU_TIME_LAYERS), layer);
+        }
+
+        @Override
+        public boolean isAllocatedBytesMeasured(final Layer layer) {
+            return isListed(System.getProperty(PROP_ALLOCATED_BYTES_LAYERS), layer);
+        }
+
+        @Override
+        public boolean isContentionMeasured(final Layer layer) {
+            final String layerNames = System.getProperty(PROP_CONTENTION_LAYERS);
+            return layerNames == null ? super.isContentionMeasured(layer) : isListed(layerNames, layer);
+        }
+    };
+    private static final CallTreeProfilerImpl GLOBAL_PROFILER = new CallTreeProfilerImpl(GLOBAL_CONFIGURATION);
+    private static final TimeKeeper GLOBAL_TIME_KEEPER = new TimeKeeperImpl(GLOBAL_PROFILER);
+
+    private static final ConfigurationWatcher GLOBAL_WATCHER;
+
+    static {
+        ProfilerMBeanImpl.register(GLOBAL_PROFILER, "global");
+        final String configFile = System.getProperty(PROP_CONFIG_FILE);
+        if (configFile != null && configFile.trim().length() > 0) {
+            GLOBAL_WATCHER = new ConfigurationWatcher(new File(configFile.trim()), GLOBAL_PROFILER, GLOBAL_CONFIGURATION);
+            GLOBAL_WATCHER.check();
+            GLOBAL_WATCHER.start(Long.getLong(PROP_CONFIG_FILE_CHECK_MILLIS, 5000L).longValue());
+        } else {
+            GLOBAL_WATCHER = null;
+        }
+    }
+
+    private static final AtomicInteger PROFILER_NUMBERS = new AtomicInteger();
 
     private ProfilerFactory() {
     }
@@ -51,13 +162,33 @@ public final class ProfilerFactory {
      * of this method, but if you cannot or do not want to use dependency injection, you
      * can use the global profiler instance everywhere.</p>
      *
-     * <p>Whether the global profiler is enabled or disabled, is determined by the java system property
-     * {@value com.freiheit.fuava.ctprofiler.core.impl.ProfilerFactory#PROP_GLOBAL_IS_ENABLED}.</p>
+     * <p>Whether the global profiler is enabled or disabled at startup, is determined by the java system property
+     * {@value com.freiheit.fuava.ctprofiler.core.impl.ProfilerFactory#PROP_GLOBAL_IS_ENABLED}. It can be switched
+     * on and off at runtime through the Enabled attribute of the MBean
+     * <code>com.freiheit.fuava.ctprofiler:type=CallTreeProfiler,name="global"</code>.</p>
      */
     public static CallTreeProfiler getGlobalProfiler() {
         return GLOBAL_PROFILER;
     }
 
+    /**
+     * Release everything of this library that is referenced from outside its class loader: unregister the MBeans
+     * of all profilers, stop watching the configuration file of the global profiler and stop listening to the
+     * garbage collectors.
+     *
+     * <p>Call this when an application which has this library in its own class loader is stopped, for example
+     * in a web application redeployed with the library in WEB-INF/lib, so the class loader can be collected and
+     * the new deployment can register its MBeans under the same names. The {@code ProfilingFilter} does this
+     * when it is destroyed. The profilers keep working, but are no longer managed.</p>
+     */
+    public static void shutdown() {
+        if (GLOBAL_WATCHER != null) {
+            GLOBAL_WATCHER.stop();
+        }
+        ProfilerMBeanImpl.unregisterAll();
+        GcPauses.uninstall();
+    }
+
     /**
      * Get the global time keeper instance.
      *
@@ -65,8 +196,10 @@ public final class ProfilerFactory {
      * of this method, but if you cannot or do not want to use dependency injection, you
      * can use the global time keeper instance everywhere.</p>
      *
-     * <p>Whether the global time keeper is enabled or disabled, is determined by the java system property
-     * {@value com.freiheit.fuava.ctprofiler.core.impl.ProfilerFactory#PROP_GLOBAL_IS_ENABLED}.</p>
+     * <p>Whether the global time keeper is enabled or disabled at startup, is determined by the java system property
+     * {@value com.freiheit.fuava.ctprofiler.core.impl.ProfilerFactory#PROP_GLOBAL_IS_ENABLED}. It can be switched
+     * on and off at runtime through the Enabled attribute of the MBean
+     * <code>com.freiheit.fuava.ctprofiler:type=CallTreeProfiler,name="global"</code>.</p>
      */
     public static TimeKeeper getGlobalTimeKeeper() {
         return GLOBAL_TIME_KEEPER;
@@ -79,10 +212,23 @@ public final class ProfilerFactory {
         }
         return Boolean.valueOf(enabledString);
     }
+
+    static boolean isListed(final String layerNames, final Layer layer) {
+        if (layerNames == null) {
+            return false;
+        }
+        for (final String name : layerNames.split(",")) {
+            if (name.trim().equalsIgnoreCase(layer.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Create an enabled CallTreeProfiler.
      *
-     * <p>This instance is always enabled and will output the call stacks sorted
+     * <p>This instance is initially enabled and will output the call stacks sorted
      *    by chronological order, not by execution time.</p>
      *
      * <p>Please note that multiple instances do not interact with each other, so you
@@ -92,7 +238,7 @@ public final class ProfilerFactory {
      * @return a new profiler instance.
      */
     public static CallTreeProfiler createProfiler(){
-        return new CallTreeProfilerImpl(new AbstractConfiguration(){});
+        return createProfiler(new AbstractConfiguration(){});
     }
 
     /**
@@ -102,11 +248,70 @@ public final class ProfilerFactory {
      * need to ensure yourself to use the same instance everywhere so
      * that your callstack is complete (i.e. do singleton scope binding in your dependency injection framework).</p>
      *
+     * <p>The profiler is managed by an MBean named
+     * <code>com.freiheit.fuava.ctprofiler:type=CallTreeProfiler,name="profiler-N"</code>, numbered in the order
+     * of creation, see {@link ProfilerMBean}.</p>
+     *
      * @param configuration the configuration to use for profiling
      * @return a new profiler instance.
      */
     public static CallTreeProfiler createProfiler(final Configuration configuration) {
-        return new CallTreeProfilerImpl(configuration);
+        final CallTreeProfilerImpl profiler = new CallTreeProfilerImpl(configuration);
+        ProfilerMBeanImpl.register(profiler, "profiler-" + PROFILER_NUMBERS.incrementAndGet());
+        return profiler;
+    }
+
+    /**
+     * Make the aggregates of the given aggregator available through the MBean of the given profiler,
+     * see {@link ProfilerMBean}.
+     *
+     * @param profiler the profiler whose call trees are aggregated, nothing is done for profilers not created by this factory
+     * @param name the name of the aggregator, replacing an aggregator attached with the same name
+     * @param aggregator the aggregator
+     */
+    public static void attachAggregator(final CallTreeProfiler profiler, final String name, final StatisticsAggregator aggregator) {
+        if (profiler instanceof CallTreeProfilerImpl) {
+            ((CallTreeProfilerImpl) profiler).attachAggregator(name, aggregator);
+        }
+    }
+
+    /**
+     * Apply a changed configuration to the given profiler, for example one read by a {@link ConfigurationWatcher}.
+     *
+     * <p>Call trees which are being recorded keep the previous settings until their toplevel measurement ends.</p>
+     *
+     * @param profiler the profiler to reconfigure, nothing is done for profilers not created by this factory
+     * @param configuration the new configuration
+     */
+    public static void reconfigure(final CallTreeProfiler profiler, final Configuration configuration) {
+        if (profiler instanceof CallTreeProfilerImpl) {
+            ((CallTreeProfilerImpl) profiler).reconfigure(configuration);
+        }
+    }
+
+    /**
+     * Ignore the measurements of the current thread until the profiler is cleared for this thread,
+     * for example for requests which are not sampled.
+     *
+     * <p>Begin and end of a muted thread cost about as much as with a disabled profiler, but the profiler
+     * stays enabled for all other threads.</p>
+     *
+     * @param profiler the profiler to mute, nothing is done for profilers not created by this factory
+     * @param muted true to ignore the measurements, false to record them again
+     */
+    public static void setCurrentThreadMuted(final CallTreeProfiler profiler, final boolean muted) {
+        if (profiler instanceof CallTreeProfilerImpl) {
+            ((CallTreeProfilerImpl) profiler).setCurrentThreadMuted(muted);
+        }
+    }
+
+    /**
+     * Remove an aggregator attached with {@link #attachAggregator(CallTreeProfiler, String, StatisticsAggregator)}.
+     */
+    public static void detachAggregator(final CallTreeProfiler profiler, final String name) {
+        if (profiler instanceof CallTreeProfilerImpl) {
+            ((CallTreeProfilerImpl) profiler).detachAggregator(name);
+        }
     }
 
     /**
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+/**
+ * Management interface of a profiler, registered in the platform MBean server
+ * under the domain {@value com.freiheit.fuava.ctprofiler.core.impl.ProfilerFactory#JMX_DOMAIN}.
+ *
+ * <p>Aggregated data is available from the aggregators attached with
+ * {@link ProfilerFactory#attachAggregator(com.freiheit.fuava.ctprofiler.core.CallTreeProfiler, String, com.freiheit.fuava.ctprofiler.core.aggregation.StatisticsAggregator)},
+ * for example by the ProfilingFilter of the servlet module. Reading any of the attributes does not block
+ * threads which are measuring.</p>
+ */
+public interface ProfilerMBean {
+
+    /**
+     * @return true if the profiler currently measures calls.
+     */
+    boolean isEnabled();
+
+    /**
+     * Switch profiling on or off at runtime.
+     *
+     * <p>Threads which are measuring while profiling is switched off and on again discard
+     * their incomplete call tree with the next measurement.</p>
+     *
+     * @param enabled true to start measuring, false to stop
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return the number of threads currently holding a recording state of the profiler.
+     */
+    int getNumberOfLiveThreads();
+
+    /**
+     * @return the number of call tree nodes currently held by all threads.
+     */
+    long getNumberOfRetainedNodes();
+
+    /**
+     * @return the names of the attached aggregators.
+     */
+    String[] getAggregatorNames();
+
+    /**
+     * The nodes with the largest self time in the current window of all attached aggregators.
+     *
+     * @param maxNodes the number of nodes to return
+     * @return one line per node, the node with the largest self time first
+     */
+    String[] topNodesBySelfTime(int maxNodes);
+
+    /**
+     * Render the aggregates of the current window of the given aggregator as text.
+     *
+     * @param aggregatorName the name of the aggregator
+     * @return the rendered aggregates, or an explanation if there is no such aggregator
+     */
+    String renderAggregatesAsText(String aggregatorName);
+
+    /**
+     * Render the aggregates of the current window of the given aggregator as JSON.
+     *
+     * @param aggregatorName the name of the aggregator
+     * @return the rendered aggregates, or null if there is no such aggregator
+     */
+    String renderAggregatesAsJson(String aggregatorName);
+
+    /**
+     * Render the slowest call trees per key retained in the current window of the given aggregator as text.
+     *
+     * @param aggregatorName the name of the aggregator
+     * @return the rendered call trees, or an explanation if there is no such aggregator
+     */
+    String renderSlowestAsText(String aggregatorName);
+}
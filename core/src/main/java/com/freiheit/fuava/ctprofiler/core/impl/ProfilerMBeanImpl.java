@@ -0,0 +1,244 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import com.freiheit.fuava.ctprofiler.core.NodeComparators;
+import com.freiheit.fuava.ctprofiler.core.aggregation.AggregatedStatistics;
+import com.freiheit.fuava.ctprofiler.core.aggregation.SlowestStatistics;
+import com.freiheit.fuava.ctprofiler.core.aggregation.StatisticsAggregator;
+import com.freiheit.fuava.ctprofiler.core.aggregation.TopNodes;
+import com.freiheit.fuava.ctprofiler.core.rendering.JsonRenderer;
+import com.freiheit.fuava.ctprofiler.core.rendering.StatisticsRenderer;
+import com.freiheit.fuava.ctprofiler.core.rendering.TxtRenderer;
+
+/**
+ * The MBean of a {@link CallTreeProfilerImpl}.
+ *
+ * <p>The MBean only weakly references its profiler, so registering the MBean does not keep profilers alive
+ * which are not used anymore. Their MBeans are unregistered when the next MBean is registered.</p>
+ */
+final class ProfilerMBeanImpl implements ProfilerMBean {
+    private static final ConcurrentLinkedQueue<ProfilerMBeanImpl> REGISTERED = new ConcurrentLinkedQueue<ProfilerMBeanImpl>();
+
+    private final WeakReference<CallTreeProfilerImpl> _profiler;
+    private ObjectName _objectName;
+
+    ProfilerMBeanImpl(final CallTreeProfilerImpl profiler) {
+        if (profiler == null) {
+            throw new NullPointerException("Cannot construct a ProfilerMBean without a profiler");
+        }
+        _profiler = new WeakReference<CallTreeProfilerImpl>(profiler);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        final CallTreeProfilerImpl profiler = _profiler.get();
+        return profiler != null && profiler.isEnabled();
+    }
+
+    @Override
+    public void setEnabled(final boolean enabled) {
+        final CallTreeProfilerImpl profiler = _profiler.get();
+        if (profiler != null) {
+            profiler.setProfilingEnabled(enabled);
+        }
+    }
+
+    @Override
+    public int getNumberOfLiveThreads() {
+        final CallTreeProfilerImpl profiler = _profiler.get();
+        return profiler == null ? 0 : profiler.getNumberOfLiveThreads();
+    }
+
+    @Override
+    public long getNumberOfRetainedNodes() {
+        final CallTreeProfilerImpl profiler = _profiler.get();
+        return profiler == null ? 0 : profiler.getNumberOfRetainedNodes();
+    }
+
+    @Override
+    public String[] getAggregatorNames() {
+        final List<String> names = new ArrayList<String>(getAggregators().keySet());
+        Collections.sort(names);
+        return names.toArray(new String[names.size()]);
+    }
+
+    @Override
+    public String[] topNodesBySelfTime(final int maxNodes) {
+        final TopNodes topNodes = new TopNodes(maxNodes);
+        for (final StatisticsAggregator aggregator : getAggregators().values()) {
+            for (final Map.Entry<String, AggregatedStatistics> e : aggregator.getCurrentWindow().getAggregates().entrySet()) {
+                topNodes.add(e.getKey(), e.getValue());
+            }
+        }
+        final List<TopNodes.Entry> entries = topNodes.getEntries();
+        final String[] r = new String[entries.size()];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = entries.get(i).toString();
+        }
+        return r;
+    }
+
+    @Override
+    public String renderAggregatesAsText(final String aggregatorName) {
+        final StatisticsAggregator aggregator = getAggregators().get(aggregatorName);
+        if (aggregator == null) {
+            return "No aggregator " + aggregatorName + ", available are " + getAggregators().keySet();
+        }
+        final StringBuilder sb = new StringBuilder();
+        try {
+            for (final Map.Entry<String, AggregatedStatistics> e : aggregator.getCurrentWindow().getAggregates().entrySet()) {
+                sb.append("Aggregate of ").append(e.getValue().getNumberOfMerges()).append(" call trees for ").append(e.getKey()).append('\n');
+                StatisticsRenderer.render(new TxtRenderer("", sb), e.getValue(), NodeComparators.duration());
+                sb.append('\n');
+            }
+        } catch (final IOException e) {
+            // cannot happen with a StringBuilder
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String renderAggregatesAsJson(final String aggregatorName) {
+        final StatisticsAggregator aggregator = getAggregators().get(aggregatorName);
+        if (aggregator == null) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        try {
+            final StatisticsAggregator.Window window = aggregator.getCurrentWindow();
+            sb.append("{\"windowStartMillis\":").append(window.getStartMillis()).append(",\"aggregates\":[");
+            boolean first = true;
+            for (final AggregatedStatistics statistics : window.getAggregates().values()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                new JsonRenderer(sb).render(statistics, NodeComparators.duration());
+            }
+            sb.append("]}");
+        } catch (final IOException e) {
+            // cannot happen with a StringBuilder
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String renderSlowestAsText(final String aggregatorName) {
+        final StatisticsAggregator aggregator = getAggregators().get(aggregatorName);
+        if (aggregator == null) {
+            return "No aggregator " + aggregatorName + ", available are " + getAggregators().keySet();
+        }
+        final StringBuilder sb = new StringBuilder();
+        try {
+            for (final Map.Entry<String, SlowestStatistics> e : aggregator.getCurrentWindow().getSlowest().entrySet()) {
+                for (final SlowestStatistics.Entry entry : e.getValue().getEntries()) {
+                    sb.append(e.getKey()).append(", finished at ").append(new Date(entry.getEndMillis())).append('\n');
+                    StatisticsRenderer.render(new TxtRenderer("", sb), entry.getStatistics());
+                    sb.append('\n');
+                }
+            }
+        } catch (final IOException e) {
+            // cannot happen with a StringBuilder
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
+    private Map<String, StatisticsAggregator> getAggregators() {
+        final CallTreeProfilerImpl profiler = _profiler.get();
+        return profiler == null ? Collections.<String, StatisticsAggregator>emptyMap() : profiler.getAggregators();
+    }
+
+    /**
+     * Register the MBean of the given profiler in the platform MBean server.
+     *
+     * <p>Registration is best effort: if the MBean server is not accessible, or the name is already
+     * taken (for example by another web application using the global profiler of its own class loader),
+     * the profiler just is not managed.</p>
+     *
+     * @param profiler the profiler to manage
+     * @param name the value of the name key of the ObjectName
+     * @return the name of the registered MBean, or null if it was not registered
+     */
+    static ObjectName register(final CallTreeProfilerImpl profiler, final String name) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            unregisterCollected(server);
+            final ObjectName objectName = new ObjectName(ProfilerFactory.JMX_DOMAIN + ":type=CallTreeProfiler,name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                return null;
+            }
+            final ProfilerMBeanImpl mbean = new ProfilerMBeanImpl(profiler);
+            server.registerMBean(new StandardMBean(mbean, ProfilerMBean.class), objectName);
+            mbean._objectName = objectName;
+            REGISTERED.add(mbean);
+            return objectName;
+        } catch (final JMException e) {
+            return null;
+        } catch (final SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Unregister the MBeans of all profilers registered by this class, so the platform MBean server does not
+     * reference the class loader of this class anymore.
+     */
+    static void unregisterAll() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ProfilerMBeanImpl mbean;
+            while ((mbean = REGISTERED.poll()) != null) {
+                if (server.isRegistered(mbean._objectName)) {
+                    server.unregisterMBean(mbean._objectName);
+                }
+            }
+        } catch (final JMException e) {
+            // best effort, like the registration
+        } catch (final SecurityException e) {
+            // best effort, like the registration
+        }
+    }
+
+    private static void unregisterCollected(final MBeanServer server) throws JMException {
+        for (final ProfilerMBeanImpl mbean : REGISTERED) {
+            if (mbean._profiler.get() == null && REGISTERED.remove(mbean)) {
+                if (server.isRegistered(mbean._objectName)) {
+                    server.unregisterMBean(mbean._objectName);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
+import com.freiheit.fuava.ctprofiler.core.Layers;
+
+/**
+ * The profiling context of a running measurement, which can be captured and resumed in other
+ * threads, for example in the stages of an asynchronous computation.
+ *
+ * <p>Each stage that is wrapped by a captured context records into its own call tree, which is
+ * attached as sub-statistics to the measurement that was running when the context was captured.
+ * Handing over the call tree does not need any locks. The time between wrapping the stage and
+ * starting it is recorded as a separate measurement named "<em>stage name</em> (waiting)" in the
+ * {@link Layers#WAITING} layer.</p>
+ *
+ * <p>With {@code CompletableFuture}, pass an executor of the context to the asynchronous methods:</p>
+ * <pre>
+ * profiler.begin("request", System.nanoTime());
+ * try {
+ *     ProfilingContext context = ProfilingContext.capture(profiler);
+ *     Executor executor = context.executor("lookup", pool);
+ *     CompletableFuture.supplyAsync(this::load, executor)
+ *         .thenApplyAsync(this::transform, executor)
+ *         .get();
+ * } finally {
+ *     profiler.end("request", System.nanoTime());
+ * }
+ * </pre>
+ *
+ * <p>Stages may capture the context of their own measurements in turn, which nests their sub-stages.
+ * The profiler state a thread had before running a stage is restored afterwards. A stage run by the
+ * same thread that captured the context, while the captured measurement is still running, is simply recorded
+ * as part of that threads call tree. Once the captured measurement has ended, the thread is treated like any other
+ * thread, so a late stage is not recorded into an unrelated measurement.</p>
+ *
+ * <p>If profiling is disabled or there was no running measurement when capturing the context, the stages
+ * are not measured, but the profiler state of the threads running them is still cleared before each stage
+ * and restored afterwards. Only for profilers not created by {@link ProfilerFactory}, wrapping returns the
+ * tasks unchanged.</p>
+ *
+ * <p>The call tree of a stage is attached when the wrapped task returns. A task which publishes its result
+ * itself, like a {@link java.util.concurrent.FutureTask} or the tasks of {@code CompletableFuture}, does so
+ * before that, so a thread waiting for the result may render its call tree without the last stage. Wrap the
+ * {@link Callable} instead and complete the future with the result of the wrapped callable, as
+ * {@link ProfiledExecutorService} does.</p>
+ */
+public final class ProfilingContext {
+    /**
+     * The timer name of a stage, if no other name was given.
+     */
+    public static final String DEFAULT_STAGE_TIMER_NAME = "stage";
+
+    /**
+     * Appended to the timer name of a stage for the measurement of the time spent waiting for it to start.
+     */
+    public static final String WAITING_SUFFIX = " (waiting)";
+
+    private static final ProfilingContext NONE = new ProfilingContext(null, null);
+
+    private final CallTreeProfilerImpl _callTreeProfiler;
+    private final SubStates _target;
+    private final Thread _origin;
+    // identify the captured measurement in the state of the origin thread
+    private final CallTreeState _originState;
+    private final int _originDepth;
+    private final long _originMeasurementId;
+
+    private ProfilingContext(final CallTreeProfilerImpl callTreeProfiler, final SubStates target) {
+        _callTreeProfiler = callTreeProfiler;
+        _target = target;
+        _origin = Thread.currentThread();
+        _originState = callTreeProfiler == null ? null : callTreeProfiler.getCurrentState();
+        _originDepth = _originState == null ? 0 : _originState.getDepth();
+        _originMeasurementId = _originState == null ? -1 : _originState.getCurrentMeasurementId();
+    }
+
+    /**
+     * Capture the context of the measurement which currently runs in this thread.
+     *
+     * @param callTreeProfiler the profiler used by this thread and the threads running the stages
+     * @return the context, never null
+     */
+    public static ProfilingContext capture(final CallTreeProfiler callTreeProfiler) {
+        if (!(callTreeProfiler instanceof CallTreeProfilerImpl)) {
+            return NONE;
+        }
+        final CallTreeProfilerImpl impl = (CallTreeProfilerImpl)callTreeProfiler;
+        return new ProfilingContext(impl, impl.getCurrentSubStates());
+    }
+
+    /**
+     * @return true if the stages of this context will be measured
+     */
+    public boolean isActive() {
+        return _target != null;
+    }
+
+    /**
+     * Wrap the given task, so its execution is measured as a stage of this context.
+     *
+     * @param stageName the timer name of the stage
+     * @param task the task to wrap
+     * @return the wrapped task
+     */
+    public Runnable wrap(final String stageName, final Runnable task) {
+        if (_callTreeProfiler == null) {
+            return task;
+        }
+        final long scheduledNanos = System.nanoTime();
+        return new Runnable() {
+            @Override
+            public void run() {
+                final Object token = enter(stageName, scheduledNanos);
+                try {
+                    task.run();
+                } finally {
+                    exit(stageName, token);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return task.toString();
+            }
+        };
+    }
+
+    /**
+     * Wrap the given task, so its execution is measured as a stage of this context.
+     *
+     * @param stageName the timer name of the stage
+     * @param task the task to wrap
+     * @return the wrapped task
+     */
+    public <T> Callable<T> wrap(final String stageName, final Callable<T> task) {
+        if (_callTreeProfiler == null) {
+            return task;
+        }
+        final long scheduledNanos = System.nanoTime();
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                final Object token = enter(stageName, scheduledNanos);
+                final T result;
+                try {
+                    result = task.call();
+                } finally {
+                    exit(stageName, token);
+                }
+                // only hand out the result once the call tree of the stage is attached
+                return result;
+            }
+
+            @Override
+            public String toString() {
+                return task.toString();
+            }
+        };
+    }
+
+    /**
+     * An executor that measures every task it executes as a stage of this context.
+     *
+     * @param stageName the timer name of the stages
+     * @param executor the executor that does the real work
+     * @return the executor to use for the stages
+     */
+    public Executor executor(final String stageName, final Executor executor) {
+        if (_callTreeProfiler == null) {
+            return executor;
+        }
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                executor.execute(wrap(stageName, command));
+            }
+        };
+    }
+
+    /**
+     * An executor that measures every task it executes as a stage of this context,
+     * named {@value #DEFAULT_STAGE_TIMER_NAME}.
+     */
+    public Executor executor(final Executor executor) {
+        return executor(DEFAULT_STAGE_TIMER_NAME, executor);
+    }
+
+    /**
+     * Marks a stage that runs inline in the thread which captured the context.
+     */
+    private static final Object INLINE = new Object();
+
+    private Object enter(final String stageName, final long scheduledNanos) {
+        final Object token;
+        if (Thread.currentThread() == _origin && (_target == null || isCapturedMeasurementRunning())) {
+            token = INLINE;
+        } else {
+            token = _callTreeProfiler.detach();
+        }
+        if (_target == null) {
+            return token;
+        }
+        final long startNanos = System.nanoTime();
+        final String waitingName = stageName + WAITING_SUFFIX;
+        _callTreeProfiler.begin(Layers.WAITING, waitingName, scheduledNanos);
+        _callTreeProfiler.end(Layers.WAITING, waitingName, startNanos);
+        _callTreeProfiler.begin(stageName, startNanos);
+        return token;
+    }
+
+    /**
+     * Whether the measurement which was running when the context was captured still runs in the current thread.
+     */
+    private boolean isCapturedMeasurementRunning() {
+        final CallTreeState state = _callTreeProfiler.getCurrentState();
+        return state != null && state == _originState && state.isRunning(_originDepth, _originMeasurementId);
+    }
+
+    private void exit(final String stageName, final Object token) {
+        if (token == INLINE) {
+            if (_target != null) {
+                _callTreeProfiler.end(stageName, System.nanoTime());
+            }
+            return;
+        }
+        try {
+            if (_target != null) {
+                _callTreeProfiler.end(stageName, System.nanoTime());
+                _target.add(_callTreeProfiler.getStatistics());
+            }
+        } finally {
+            // restore the previous state of the worker, discarding whatever the stage left behind
+            _callTreeProfiler.attach((CallTreeState)token);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+
+/**
+ * Binds a fresh profiler state to the current thread for the duration of a scope, for example
+ * the handling of one request in its own (virtual) thread.
+ *
+ * <p>The state is taken from a shared pool when the scope is opened and returned to it when the
+ * scope is closed, so no buffers are allocated per scope once the pool is warmed up. The state a
+ * thread had when opening the scope is restored on closing. The pool does not depend on the
+ * carrier thread, so a virtual thread may be unmounted and mounted on another carrier while the
+ * scope is open.</p>
+ *
+ * <pre>
+ * ProfilingScope scope = ProfilingScope.open(profiler);
+ * try {
+ *     profiler.begin("request", System.nanoTime());
+ *     try {
+ *         // do some work
+ *     } finally {
+ *         profiler.end("request", System.nanoTime());
+ *     }
+ *     log(scope.getStatistics());
+ * } finally {
+ *     scope.close();
+ * }
+ * </pre>
+ */
+public final class ProfilingScope {
+    private final CallTreeProfiler _callTreeProfiler;
+    private final CallTreeState _previous;
+    private final Thread _thread;
+    private boolean _closed;
+
+    private ProfilingScope(final CallTreeProfiler callTreeProfiler, final CallTreeState previous) {
+        _callTreeProfiler = callTreeProfiler;
+        _previous = previous;
+        _thread = Thread.currentThread();
+    }
+
+    /**
+     * Open a scope in the current thread.
+     *
+     * @param callTreeProfiler the profiler used within the scope
+     * @return the scope, which must be closed by the same thread
+     */
+    public static ProfilingScope open(final CallTreeProfiler callTreeProfiler) {
+        if (callTreeProfiler instanceof CallTreeProfilerImpl) {
+            return new ProfilingScope(callTreeProfiler, ((CallTreeProfilerImpl)callTreeProfiler).detach());
+        }
+        callTreeProfiler.clear();
+        return new ProfilingScope(callTreeProfiler, null);
+    }
+
+    /**
+     * Get a copy of the call tree recorded within this scope so far.
+     */
+    public Statistics getStatistics() {
+        checkThread();
+        return _callTreeProfiler.getStatistics();
+    }
+
+    /**
+     * Return the state of this scope to the pool and restore the state the thread had before.
+     */
+    public void close() {
+        checkThread();
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        if (_callTreeProfiler instanceof CallTreeProfilerImpl) {
+            ((CallTreeProfilerImpl)_callTreeProfiler).attach(_previous);
+        } else {
+            _callTreeProfiler.clear();
+        }
+    }
+
+    private void checkThread() {
+        if (Thread.currentThread() != _thread) {
+            throw new IllegalStateException("ProfilingScope opened by " + _thread + " used by " + Thread.currentThread());
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import com.freiheit.fuava.ctprofiler.core.Layer;
+
+/**
+ * A {@link Configuration} read from properties, for example from a file watched by a {@link ConfigurationWatcher}.
+ *
+ * <p>The recognized keys are:</p>
+ * <ul>
+ * <li><code>enabled</code>: <code>true</code> or <code>false</code></li>
+ * <li><code>sortByDuration</code>: <code>true</code> or <code>false</code></li>
+ * <li><code>samplingRate</code>: the fraction of toplevel measurements to record, between 0 and 1</li>
+ * <li><code>maxDepth</code>, <code>maxNodes</code>: positive integers</li>
+ * <li><code>fastCallThresholdNanos</code>: the total time below which calls are merged, 0 to keep all</li>
+ * <li><code>layers</code>: the names of the recorded layers, separated by commas</li>
+ * <li><code>cpuTimeLayers</code>, <code>allocatedBytesLayers</code>, <code>contentionLayers</code>: the names of
+ *  the layers with these additional measurements, separated by commas</li>
+ * </ul>
+ *
+ * <p>Keys which are not set take the value of the default configuration. The properties are parsed when the
+ * configuration is created, so invalid values are reported right away instead of while profiling.</p>
+ */
+public final class PropertiesConfiguration implements Configuration {
+    public static final String KEY_ENABLED = "enabled";
+    public static final String KEY_SORT_BY_DURATION = "sortByDuration";
+    public static final String KEY_SAMPLING_RATE = "samplingRate";
+    public static final String KEY_MAX_DEPTH = "maxDepth";
+    public static final String KEY_MAX_NODES = "maxNodes";
+    public static final String KEY_FAST_CALL_THRESHOLD_NANOS = "fastCallThresholdNanos";
+    public static final String KEY_LAYERS = "layers";
+    public static final String KEY_CPU_TIME_LAYERS = "cpuTimeLayers";
+    public static final String KEY_ALLOCATED_BYTES_LAYERS = "allocatedBytesLayers";
+    public static final String KEY_CONTENTION_LAYERS = "contentionLayers";
+
+    private final Configuration _defaults;
+    private final boolean _enabled;
+    private final boolean _sortByDuration;
+    private final double _samplingRate;
+    private final int _maxDepth;
+    private final int _maxNodes;
+    private final long _fastCallThresholdNanos;
+    private final String _layers;
+    private final String _cpuTimeLayers;
+    private final String _allocatedBytesLayers;
+    private final String _contentionLayers;
+
+    /**
+     * Create a configuration with the defaults of {@link AbstractConfiguration} for keys which are not set.
+     *
+     * @throws IllegalArgumentException if a value is invalid
+     */
+    public PropertiesConfiguration(final Properties properties) {
+        this(properties, new AbstractConfiguration() {});
+    }
+
+    /**
+     * Create a configuration.
+     *
+     * @param properties the properties to read
+     * @param defaults the configuration for keys which are not set
+     * @throws IllegalArgumentException if a value is invalid
+     */
+    public PropertiesConfiguration(final Properties properties, final Configuration defaults) {
+        _defaults = defaults;
+        _enabled = getBoolean(properties, KEY_ENABLED, defaults.isEnabled());
+        _sortByDuration = getBoolean(properties, KEY_SORT_BY_DURATION, defaults.sortCallStacksByDuration());
+        _samplingRate = getSamplingRate(properties, defaults.getSamplingRate());
+        _maxDepth = getPositiveInt(properties, KEY_MAX_DEPTH, defaults.getMaxDepth());
+        _maxNodes = getPositiveInt(properties, KEY_MAX_NODES, defaults.getMaxNodes());
+        _fastCallThresholdNanos = getNonNegativeLong(properties, KEY_FAST_CALL_THRESHOLD_NANOS, defaults.getFastCallThresholdNanos());
+        _layers = getString(properties, KEY_LAYERS);
+        _cpuTimeLayers = getString(properties, KEY_CPU_TIME_LAYERS);
+        _allocatedBytesLayers = getString(properties, KEY_ALLOCATED_BYTES_LAYERS);
+        _contentionLayers = getString(properties, KEY_CONTENTION_LAYERS);
+    }
+
+    /**
+     * Read a configuration from a properties file.
+     *
+     * @param file the file to read
+     * @param defaults the configuration for keys which are not set
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if a value is invalid
+     */
+    public static PropertiesConfiguration load(final File file, final Configuration defaults) throws IOException {
+        final Properties properties = new Properties();
+        final InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return new PropertiesConfiguration(properties, defaults);
+    }
+
+    private static String getString(final Properties properties, final String key) {
+        final String value = properties.getProperty(key);
+        return value == null ? null : value.trim();
+    }
+
+    private static boolean getBoolean(final Properties properties, final String key, final boolean defaultValue) {
+        final String value = getString(properties, key);
+        if (value == null || value.length() == 0) {
+            return defaultValue;
+        }
+        if ("true".equalsIgnoreCase(value)) {
+            return true;
+        }
+        if ("false".equalsIgnoreCase(value)) {
+            return false;
+        }
+        throw new IllegalArgumentException(key + " must be true or false, but is " + value);
+    }
+
+    private static double getSamplingRate(final Properties properties, final double defaultValue) {
+        final String value = getString(properties, KEY_SAMPLING_RATE);
+        if (value == null || value.length() == 0) {
+            return defaultValue;
+        }
+        final double rate;
+        try {
+            rate = Double.parseDouble(value);
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException(KEY_SAMPLING_RATE + " must be a number, but is " + value, e);
+        }
+        if (!(rate >= 0 && rate <= 1)) {
+            throw new IllegalArgumentException(KEY_SAMPLING_RATE + " must be between 0 and 1, but is " + value);
+        }
+        return rate;
+    }
+
+    private static int getPositiveInt(final Properties properties, final String key, final int defaultValue) {
+        final String value = getString(properties, key);
+        if (value == null || value.length() == 0) {
+            return defaultValue;
+        }
+        final int i;
+        try {
+            i = Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be an integer, but is " + value, e);
+        }
+        if (i <= 0) {
+            throw new IllegalArgumentException(key + " must be positive, but is " + value);
+        }
+        return i;
+    }
+
+    private static long getNonNegativeLong(final Properties properties, final String key, final long defaultValue) {
+        final String value = getString(properties, key);
+        if (value == null || value.length() == 0) {
+            return defaultValue;
+        }
+        final long l;
+        try {
+            l = Long.parseLong(value);
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be an integer, but is " + value, e);
+        }
+        if (l < 0) {
+            throw new IllegalArgumentException(key + " must not be negative, but is " + value);
+        }
+        return l;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return _enabled;
+    }
+
+    @Override
+    public boolean sortCallStacksByDuration() {
+        return _sortByDuration;
+    }
+
+    /**
+     * Not configurable by properties, always taken from the default configuration.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public SubStatisticsRetention getSubStatisticsRetention() {
+        return _defaults.getSubStatisticsRetention();
+    }
+
+    @Override
+    public boolean isCpuTimeMeasured(final Layer layer) {
+        return _cpuTimeLayers == null ? _defaults.isCpuTimeMeasured(layer) : ProfilerFactory.isListed(_cpuTimeLayers, layer);
+    }
+
+    @Override
+    public boolean isAllocatedBytesMeasured(final Layer layer) {
+        return _allocatedBytesLayers == null ? _defaults.isAllocatedBytesMeasured(layer) : ProfilerFactory.isListed(_allocatedBytesLayers, layer);
+    }
+
+    @Override
+    public boolean isContentionMeasured(final Layer layer) {
+        return _contentionLayers == null ? _defaults.isContentionMeasured(layer) : ProfilerFactory.isListed(_contentionLayers, layer);
+    }
+
+    @Override
+    public double getSamplingRate() {
+        return _samplingRate;
+    }
+
+    @Override
+    public int getMaxDepth() {
+        return _maxDepth;
+    }
+
+    @Override
+    public int getMaxNodes() {
+        return _maxNodes;
+    }
+
+    @Override
+    public long getFastCallThresholdNanos() {
+        return _fastCallThresholdNanos;
+    }
+
+    @Override
+    public boolean isLayerEnabled(final Layer layer) {
+        return _layers == null ? _defaults.isLayerEnabled(layer) : ProfilerFactory.isListed(_layers, layer);
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.util.Comparator;
+
+import com.freiheit.fuava.ctprofiler.core.Node;
+import com.freiheit.fuava.ctprofiler.core.NodeComparators;
+
+/**
+ * An immutable snapshot of the {@link Configuration} of a profiler, as used by the recording threads.
+ *
+ * <p>The profiler publishes a new snapshot when it is enabled, disabled or reconfigured. A thread takes
+ * the current snapshot when it begins a toplevel measurement and keeps it for all measurements nested in
+ * it, so a call tree is recorded with consistent settings and reconfiguring does not add reads of shared
+ * fields to the measurements.</p>
+ */
+final class RecordingSettings {
+    /**
+     * Records everything and measures nothing but wall time, for states which are not recording for a configured profiler.
+     */
+    static final RecordingSettings NONE = new RecordingSettings(0, 1, Integer.MAX_VALUE, Integer.MAX_VALUE, 0,
+            SubStatisticsRetention.keepAll(), MeasuredLayers.NONE, null);
+
+    /**
+     * The enabled period of the profiler, see {@link CallTreeProfilerImpl}, or 0 if profiling is disabled.
+     */
+    final int epoch;
+    final double samplingRate;
+    final int maxDepth;
+    final int maxNodes;
+    final long fastCallThresholdNanos;
+    final SubStatisticsRetention subStatisticsRetention;
+    final MeasuredLayers measuredLayers;
+    final Comparator<Node> comparator;
+
+    private RecordingSettings(final int epoch, final double samplingRate, final int maxDepth, final int maxNodes, final long fastCallThresholdNanos,
+            final SubStatisticsRetention subStatisticsRetention, final MeasuredLayers measuredLayers, final Comparator<Node> comparator) {
+        this.epoch = epoch;
+        this.samplingRate = samplingRate;
+        this.maxDepth = maxDepth;
+        this.maxNodes = maxNodes;
+        this.fastCallThresholdNanos = fastCallThresholdNanos;
+        this.subStatisticsRetention = subStatisticsRetention;
+        this.measuredLayers = measuredLayers;
+        this.comparator = comparator;
+    }
+
+    /**
+     * Take a snapshot of the given configuration.
+     */
+    static RecordingSettings of(final Configuration config, final int epoch) {
+        final SubStatisticsRetention retention = config.getSubStatisticsRetention();
+        return new RecordingSettings(epoch,
+                Math.max(0, Math.min(1, config.getSamplingRate())),
+                config.getMaxDepth(),
+                config.getMaxNodes(),
+                Math.max(0, config.getFastCallThresholdNanos()),
+                retention == null ? SubStatisticsRetention.keepAll() : retention,
+                new MeasuredLayers(config),
+                config.sortCallStacksByDuration() ? NodeComparators.duration() : null);
+    }
+
+    /**
+     * The same settings for another enabled period.
+     */
+    RecordingSettings withEpoch(final int newEpoch) {
+        return new RecordingSettings(newEpoch, samplingRate, maxDepth, maxNodes, fastCallThresholdNanos, subStatisticsRetention, measuredLayers, comparator);
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+import com.freiheit.fuava.ctprofiler.core.aggregation.AggregatedStatistics;
+
+/**
+ * The statistics of sub-tasks executed in other threads for one path of the call tree.
+ *
+ * <p>Sub-tasks may finish in their worker threads at any time, so adding is thread safe
+ * and does not copy the statistics added before. How many of the statistics are retained
+ * is decided by the {@link SubStatisticsRetention} the instance was created for.</p>
+ */
+abstract class SubStates {
+
+    /**
+     * Retains all statistics, adding takes constant time.
+     */
+    static final class All extends SubStates {
+        private final ConcurrentLinkedQueue<Statistics> _states = new ConcurrentLinkedQueue<Statistics>();
+
+        @Override
+        void add(final Statistics statistics) {
+            _states.add(statistics);
+        }
+
+        @Override
+        Collection<Statistics> getStatistics() {
+            return Collections.unmodifiableCollection(_states);
+        }
+    }
+
+    /**
+     * Retains the slowest statistics in a min-heap, adding takes time logarithmic to the number of retained statistics.
+     */
+    static final class Slowest extends SubStates {
+        private static final Comparator<Statistics> FASTEST_FIRST = new Comparator<Statistics>() {
+            @Override
+            public int compare(final Statistics o1, final Statistics o2) {
+                final long n1 = o1.getTotalNanos();
+                final long n2 = o2.getTotalNanos();
+                return n1 < n2 ? -1 : (n1 > n2) ? 1 : 0;
+            }
+        };
+
+        private final int _maxRetained;
+        private final PriorityQueue<Statistics> _heap;
+
+        Slowest(final int maxRetained) {
+            _maxRetained = maxRetained;
+            _heap = new PriorityQueue<Statistics>(Math.max(1, Math.min(maxRetained, 16)), FASTEST_FIRST);
+        }
+
+        @Override
+        synchronized void add(final Statistics statistics) {
+            if (_heap.size() < _maxRetained) {
+                _heap.add(statistics);
+            } else if (_maxRetained > 0 && FASTEST_FIRST.compare(_heap.peek(), statistics) < 0) {
+                _heap.poll();
+                _heap.add(statistics);
+            }
+        }
+
+        @Override
+        synchronized Collection<Statistics> getStatistics() {
+            final List<Statistics> l = new ArrayList<Statistics>(_heap);
+            Collections.sort(l, Collections.reverseOrder(FASTEST_FIRST));
+            return l;
+        }
+    }
+
+    /**
+     * Merges all statistics into one aggregate.
+     */
+    static final class Merged extends SubStates {
+        private final AggregatedStatistics _aggregate;
+
+        Merged(final int maxNodes) {
+            _aggregate = new AggregatedStatistics("merged subtasks", maxNodes);
+        }
+
+        @Override
+        void add(final Statistics statistics) {
+            _aggregate.add(statistics);
+        }
+
+        @Override
+        Collection<Statistics> getStatistics() {
+            return Collections.<Statistics>singletonList(_aggregate);
+        }
+    }
+
+    /**
+     * Add the call tree of a sub-task.
+     * @param statistics the call tree of the sub-task
+     */
+    abstract void add(Statistics statistics);
+
+    /**
+     * The retained sub-task call trees.
+     */
+    abstract Collection<Statistics> getStatistics();
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+/**
+ * Decides which of the call trees of sub-tasks executed in other threads are retained per path,
+ * see {@link Configuration#getSubStatisticsRetention()}.
+ *
+ * <p>Fan-out code which submits thousands of tasks from the same path will keep thousands of
+ * call trees alive when retaining all of them, in this case consider retaining only the slowest
+ * call trees, or merging them into one aggregate.</p>
+ */
+public abstract class SubStatisticsRetention {
+
+    private static final SubStatisticsRetention KEEP_ALL = new SubStatisticsRetention() {
+        @Override
+        SubStates newSubStates() {
+            return new SubStates.All();
+        }
+    };
+
+    SubStatisticsRetention() {
+        // only the implementations of this package
+    }
+
+    /**
+     * Retain the call trees of all sub-tasks.
+     */
+    public static SubStatisticsRetention keepAll() {
+        return KEEP_ALL;
+    }
+
+    /**
+     * Retain the call trees of the slowest sub-tasks of each path.
+     *
+     * @param maxRetained the number of call trees to retain per path
+     */
+    public static SubStatisticsRetention keepSlowest(final int maxRetained) {
+        return new SubStatisticsRetention() {
+            @Override
+            SubStates newSubStates() {
+                return new SubStates.Slowest(maxRetained);
+            }
+        };
+    }
+
+    /**
+     * Merge the call trees of all sub-tasks of each path into one aggregated call tree.
+     *
+     * @param maxNodes the maximum number of nodes of each aggregated call tree
+     */
+    public static SubStatisticsRetention merge(final int maxNodes) {
+        return new SubStatisticsRetention() {
+            @Override
+            SubStates newSubStates() {
+                return new SubStates.Merged(maxNodes);
+            }
+        };
+    }
+
+    /**
+     * Create the receiver of the sub-task call trees of one path.
+     */
+    abstract SubStates newSubStates();
+}
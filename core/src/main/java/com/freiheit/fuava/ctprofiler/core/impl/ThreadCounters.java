@@ -0,0 +1,105 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the resource counters of the current thread, which are sampled at begin and end of measurements
+ * in addition to the wall time, see {@link MeasuredLayers}.
+ */
+final class ThreadCounters {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean HOTSPOT = isHotSpot();
+
+    private ThreadCounters() {
+        // utility class constructor
+    }
+
+    private static boolean isHotSpot() {
+        try {
+            return Class.forName("com.sun.management.ThreadMXBean").isInstance(THREADS);
+        } catch (final ClassNotFoundException e) {
+            return false;
+        } catch (final LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the CPU time of the current thread can be read at the moment
+     */
+    static boolean isCpuTimeAvailable() {
+        try {
+            return THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+        } catch (final UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the CPU time of the current thread in nanoseconds, or -1 if it is not available
+     */
+    static long getCpuNanos() {
+        return THREADS.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * @return true if the JVM can measure the time threads are blocked and waiting, which still has to be
+     *  enabled with {@link ThreadMXBean#setThreadContentionMonitoringEnabled(boolean)}
+     */
+    static boolean isContentionSupported() {
+        try {
+            return THREADS.isThreadContentionMonitoringSupported();
+        } catch (final UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read the blocked and waited time of the current thread, which is only measured while
+     * thread contention monitoring is enabled. Creates a ThreadInfo each time.
+     *
+     * @return the thread info with the blocked and waited time, or null if contention monitoring is not enabled
+     */
+    static ThreadInfo getContention() {
+        if (!THREADS.isThreadContentionMonitoringEnabled()) {
+            return null;
+        }
+        final ThreadInfo info = THREADS.getThreadInfo(Thread.currentThread().getId());
+        return info == null || info.getBlockedTime() < 0 ? null : info;
+    }
+
+    /**
+     * @return true if the bytes allocated by the current thread can be read at the moment, which needs
+     *  the HotSpot extension of the ThreadMXBean
+     */
+    static boolean isAllocatedBytesAvailable() {
+        return HOTSPOT && HotSpotThreadCounters.isAllocatedBytesAvailable();
+    }
+
+    /**
+     * Only call this if {@link #isAllocatedBytesAvailable()} returned true.
+     *
+     * @return the number of bytes allocated by the current thread so far, or -1 if it is not available
+     */
+    static long getAllocatedBytes() {
+        return HotSpotThreadCounters.getAllocatedBytes();
+    }
+}
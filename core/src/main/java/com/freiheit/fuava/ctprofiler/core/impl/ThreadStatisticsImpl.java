@@ -18,7 +18,7 @@ package com.freiheit.fuava.ctprofiler.core.impl;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -27,6 +27,7 @@ import com.freiheit.fuava.ctprofiler.core.Layer;
 import com.freiheit.fuava.ctprofiler.core.Layers;
 import com.freiheit.fuava.ctprofiler.core.NestedTimerPath;
 import com.freiheit.fuava.ctprofiler.core.Node;
+import com.freiheit.fuava.ctprofiler.core.PathIds;
 import com.freiheit.fuava.ctprofiler.core.Statistics;
 import com.freiheit.fuava.ctprofiler.core.TimerStatistics;
 
@@ -34,16 +35,20 @@ class ThreadStatisticsImpl implements Statistics {
     private final long _threadId;
     private final String _threadName;
     private final Collection<Node> _roots;
+    private final double _overheadNanosPerMeasurement;
+    private final Map<Layer, Long> _selfNanosByLayer;
+    private long _numberOfMeasurements;
 
     private static final class NodeImpl implements Node {
         private final Layer layer;
         private final NestedTimerPath path;
         private final TimerStatistics statistics;
         private final Collection<Node> children;
+        private final int pathId;
 
         public NodeImpl(
                 final Layer layer,
-                final NestedTimerPath path, final TimerStatistics statistics, final Collection<Node> children) {
+                final NestedTimerPath path, final TimerStatistics statistics, final Collection<Node> children, final int pathId) {
             if (layer == null) {
                 throw new NullPointerException();
             }
@@ -51,6 +56,7 @@ class ThreadStatisticsImpl implements Statistics {
             this.path = path;
             this.statistics = statistics;
             this.children = children;
+            this.pathId = pathId;
         }
 
         @Override
@@ -73,75 +79,70 @@ class ThreadStatisticsImpl implements Statistics {
             return statistics;
         }
 
+        @Override
+        public int getPathId() {
+            return pathId;
+        }
     }
 
-    private ThreadStatisticsImpl(final long threadId, final String threadName, final Map<PathWithLayer, TimerStatistics> paths) {
+    private ThreadStatisticsImpl(final long threadId, final String threadName, final CallNode root, final long[] selfNanosByLayerId, final double overheadNanosPerMeasurement) {
         _threadId = threadId;
         _threadName = threadName;
-        _roots = getRoots(paths);
+        _overheadNanosPerMeasurement = overheadNanosPerMeasurement;
+        _roots = root == null ? Collections.<Node>emptyList() : getChildren(root, Layers.DEFAULT, PathImpl.ROOT, PathIds.ROOT);
+        _selfNanosByLayer = getSelfNanosByLayer(selfNanosByLayerId);
     }
 
-    private Collection<Node> getRoots( final Map<PathWithLayer, TimerStatistics> paths) {
-        // create  a tree
-        final Map<NestedTimerPath, List<PathValue>> pathsByParent = new HashMap<NestedTimerPath, List<PathValue>>();
-
-        for (final Map.Entry<PathWithLayer, TimerStatistics> keyValue : paths.entrySet()) {
-            final PathWithLayer p = keyValue.getKey();
-            final NestedTimerPath parent = p.getPath().getParent();
-            List<PathValue> ps = pathsByParent.get(parent);
-            if (ps == null) {
-                ps = new ArrayList<PathValue>();
-                pathsByParent.put(parent, ps);
-            }
-            ps.add(new PathValue(p.getLayer(), p.getPath(), keyValue.getValue()));
+    private static Map<Layer, Long> getSelfNanosByLayer(final long[] selfNanosByLayerId) {
+        if (selfNanosByLayerId == null) {
+            return Collections.emptyMap();
         }
-
-        final List<PathValue> roots = pathsByParent.get(PathImpl.ROOT);
-        final List<Node> rootNodes = new ArrayList<Node>();
-        if (roots != null) {
-            for (final PathValue pv : roots) {
-                final Layer pvl = pv.getLayer();
-                final Layer l = pvl.equals(Layers.inherit()) ? Layers.DEFAULT: pvl;
-                rootNodes.add(toNode(pathsByParent, l, pv.getPath(), pv.getCall()));
+        final Map<Layer, Long> r = new LinkedHashMap<Layer, Long>();
+        for (int i = 0; i < selfNanosByLayerId.length; i++) {
+            if (selfNanosByLayerId[i] != 0) {
+                r.put(Layers.forId(i), Long.valueOf(selfNanosByLayerId[i]));
             }
         }
-
-        return rootNodes;
+        return Collections.unmodifiableMap(r);
     }
 
-    private Node toNode(final Map<NestedTimerPath, List<PathValue>> pathsByParent, final Layer layer, final NestedTimerPath paths, final TimerStatistics statistics) {
-        if (statistics == null) {
-            throw new NullPointerException("statistics must not be null");
-        }
-        if (paths == null) {
-            throw new NullPointerException("path must not be null");
-        }
-        final List<PathValue> pvs = pathsByParent.get(paths);
-        final Collection<Node> children = new ArrayList<Node>();
-        if (pvs != null) {
-            for (final PathValue pv : pvs) {
-                final Layer pvl = pv.getLayer();
-                final Layer l = pvl.equals(Layers.inherit()) ? layer: pvl;
-                children.add(toNode(pathsByParent, l, pv.getPath(), pv.getCall()));
+    private Collection<Node> getChildren(final CallNode parent, final Layer parentLayer, final NestedTimerPath parentPath, final int parentPathId) {
+        final List<Node> children = new ArrayList<Node>();
+        for (CallNode c = parent.getFirstChild(); c != null; c = c.getNextSibling()) {
+            if (c.num == 0 && c.subStates == null) {
+                // started, but not yet finished - will be included when it is done
+                continue;
             }
+            final Layer l = c.layer.equals(Layers.inherit()) ? parentLayer : c.layer;
+            final NestedTimerPath path = new PathImpl(parentPath, c.name);
+            final int pathId = PathIds.getId(parentPathId, l, c.name);
+            _numberOfMeasurements += c.num;
+            final long compensatedTotalNanos = Math.max(0, c.totalNanos - getOverheadNanos(c.nestedMeasurements));
+            final TimerStatistics statistics = new Call(c.num, c.totalNanos, c.nestedMeasurements, compensatedTotalNanos, c.cpuNanos, c.allocatedBytes,
+                    c.blockedMillis, c.waitedMillis, c.gcPauseNanos, c.subStates);
+            children.add(new NodeImpl(l, path, statistics, getChildren(c, l, path, pathId), pathId));
         }
-        return new NodeImpl(layer, paths, statistics, children);
+        return children;
     }
 
-    static Statistics getCurrentThreadInstance(final Map<PathWithLayer, Call> paths) {
-        return getInstance(Thread.currentThread(), paths);
+    private long getOverheadNanos(final long numberOfMeasurements) {
+        return (long) (numberOfMeasurements * _overheadNanosPerMeasurement);
     }
 
-    static Statistics getInstance(final Thread thread, final Map<PathWithLayer, Call> paths) {
-        return getInstance(thread.getId(), thread.getName(), paths);
+    static Statistics getCurrentThreadInstance(final CallNode root, final long[] selfNanosByLayerId, final double overheadNanosPerMeasurement) {
+        final Thread thread = Thread.currentThread();
+        return getInstance(thread.getId(), thread.getName(), root, selfNanosByLayerId, overheadNanosPerMeasurement);
     }
 
-    static Statistics getInstance(final long threadId, final String threadName, final Map<PathWithLayer, Call> paths) {
-        final Map<PathWithLayer, TimerStatistics> m = new LinkedHashMap<PathWithLayer, TimerStatistics>();
-        for (final Map.Entry<PathWithLayer, Call> e : paths.entrySet()) {
-            m.put(e.getKey(), e.getValue());
-        }
-        return new ThreadStatisticsImpl(threadId, threadName, m);
+    /**
+     * Create an immutable copy of the given call tree.
+     *
+     * @param root the synthetic root of the call tree, null for an empty call tree
+     * @param selfNanosByLayerId the self time of the call tree by layer id, null for an empty call tree
+     * @param overheadNanosPerMeasurement the estimated overhead of the profiler for one measurement
+     */
+    static Statistics getInstance(final long threadId, final String threadName, final CallNode root, final long[] selfNanosByLayerId, final double overheadNanosPerMeasurement) {
+        return new ThreadStatisticsImpl(threadId, threadName, root, selfNanosByLayerId, overheadNanosPerMeasurement);
     }
 
     @Override
@@ -167,4 +168,14 @@ class ThreadStatisticsImpl implements Statistics {
         }
         return r;
     }
+
+    @Override
+    public long getEstimatedOverheadNanos() {
+        return getOverheadNanos(_numberOfMeasurements);
+    }
+
+    @Override
+    public Map<Layer, Long> getSelfNanosByLayer() {
+        return _selfNanosByLayer;
+    }
 }
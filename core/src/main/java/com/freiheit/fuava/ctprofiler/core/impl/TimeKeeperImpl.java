@@ -31,6 +31,9 @@ import com.freiheit.fuava.ctprofiler.core.TimeKeeper;
 
 /**
  * Implementation of {@link TimeKeeper} that uses a {@link CallTreeProfiler} for doing the real work.
+ *
+ * <p>Each begin and end is handed to the profiler, which decides whether to record it, so the measurements
+ * stay balanced when profiling is switched on or off while they are running.</p>
  * @author klas
  *
  */
@@ -58,16 +61,12 @@ class TimeKeeperImpl implements TimeKeeper {
      */
     @Override
     public void begin(final String timerName) {
-        if (_callTreeProfiler.isEnabled()) {
-            _callTreeProfiler.begin(timerName, System.nanoTime());
-        }
+        _callTreeProfiler.begin(timerName, System.nanoTime());
     }
 
     @Override
     public void begin(final Layer layer, final String timerName) {
-        if (_callTreeProfiler.isEnabled()) {
-            _callTreeProfiler.begin(layer, timerName, System.nanoTime());
-        }
+        _callTreeProfiler.begin(layer, timerName, System.nanoTime());
     }
 
     /**
@@ -75,16 +74,12 @@ class TimeKeeperImpl implements TimeKeeper {
      */
     @Override
     public void end(final String timerName) {
-        if (_callTreeProfiler.isEnabled()) {
-            _callTreeProfiler.end(timerName, System.nanoTime());
-        }
+        _callTreeProfiler.end(timerName, System.nanoTime());
     }
 
     @Override
     public void end(final Layer layer, final String timerName) {
-        if (_callTreeProfiler.isEnabled()) {
-            _callTreeProfiler.end(layer, timerName, System.nanoTime());
-        }
+        _callTreeProfiler.end(layer, timerName, System.nanoTime());
     }
 
     /**
@@ -95,11 +90,14 @@ class TimeKeeperImpl implements TimeKeeper {
         return proxy(Layers.inherit(), iface, instance);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The proxy is created even while profiling is disabled, and checks for each call whether to measure it,
+     * so instances proxied at startup are measured once profiling is switched on at runtime.</p>
+     */
     @Override
     public <T> T proxy(final Layer layer, final java.lang.Class<T> iface, final T instance) {
-        if (!_callTreeProfiler.isEnabled()) {
-            return instance;
-        }
         final Object o = doProxy(layer, new Class[]{iface}, instance);
         return iface.cast(o);
     }
@@ -112,16 +110,25 @@ class TimeKeeperImpl implements TimeKeeper {
             @Override
             //CHECKSTYLE:OFF
             public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
-                final String timerName = _classSimpleName + "." + method.getName();
                 //CHECKSTYLE:ON
+                if (!_callTreeProfiler.isEnabled()) {
+                    return invokeInstance(method, args);
+                }
+                final String timerName = _classSimpleName + "." + method.getName();
                 _callTreeProfiler.begin(layer, timerName, System.nanoTime());
+                try {
+                    return invokeInstance(method, args);
+                } finally {
+                    _callTreeProfiler.end(layer, timerName, System.nanoTime());
+                }
+            }
+
+            private Object invokeInstance(final Method method, final Object[] args) throws Throwable {
                 try {
                     setAccess(method);
                     return method.invoke(instance, args);
                 } catch (final InvocationTargetException e) {
                     throw e.getCause();
-                } finally {
-                    _callTreeProfiler.end(layer, timerName, System.nanoTime());
                 }
             }
 
@@ -0,0 +1,255 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.freiheit.fuava.ctprofiler.core.Layer;
+import com.freiheit.fuava.ctprofiler.core.Layers;
+import com.freiheit.fuava.ctprofiler.core.Node;
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+import com.freiheit.fuava.ctprofiler.core.TimerStatistics;
+import com.freiheit.fuava.ctprofiler.core.aggregation.AggregatedStatistics;
+import com.freiheit.fuava.ctprofiler.core.persistence.StoredStatistics.StoredNode;
+
+/**
+ * The binary format of profile files.
+ *
+ * <p>A file starts with a header (magic number, version, start and end of the window), followed by
+ * the table of all distinct names (timer names, layer names and keys) and the aggregates. Names are
+ * referenced by their index in the table, the nodes of each aggregate are written depth first. All
+ * numbers are big endian.</p>
+ *
+ * <p>The aggregates may still be updated while they are encoded: the children of each node are copied once
+ * and written from that copy, and the names are collected while the aggregates are written, so each node is
+ * visited once and the written counts always match the written nodes.</p>
+ */
+final class ProfileFormat {
+    static final int MAGIC = 0x43545046;
+    static final int VERSION = 1;
+    // the smallest encoding of a name, an aggregate, a layer of an aggregate and a node, to check counts against
+    private static final int MIN_NAME_BYTES = 4;
+    private static final int MIN_AGGREGATE_BYTES = 4 + 8 + 8 + 4 + 4;
+    private static final int LAYER_BYTES = 4 + 8;
+    private static final int MIN_NODE_BYTES = 4 + 4 + 4 + 8 * 8 + 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ProfileFormat() {
+        // utility class constructor
+    }
+
+    /**
+     * Encode the aggregates of one window.
+     *
+     * @param startMillis the start of the window
+     * @param endMillis the end of the window
+     * @param aggregates the aggregates by key
+     * @return the encoded window
+     */
+    static byte[] encode(final long startMillis, final long endMillis, final Map<String, ? extends Statistics> aggregates) throws IOException {
+        final Map<String, Integer> names = new LinkedHashMap<String, Integer>();
+        // the aggregates are written first, the name table is complete afterwards
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream bodyOut = new DataOutputStream(body);
+        final List<Map.Entry<String, ? extends Statistics>> entries = new ArrayList<Map.Entry<String, ? extends Statistics>>(aggregates.entrySet());
+        bodyOut.writeInt(entries.size());
+        for (final Map.Entry<String, ? extends Statistics> e : entries) {
+            final Statistics statistics = e.getValue();
+            bodyOut.writeInt(nameId(names, e.getKey()));
+            bodyOut.writeLong(getNumberOfMerges(statistics));
+            bodyOut.writeLong(statistics.getEstimatedOverheadNanos());
+            final List<Map.Entry<Layer, Long>> selfNanos = new ArrayList<Map.Entry<Layer, Long>>(statistics.getSelfNanosByLayer().entrySet());
+            bodyOut.writeInt(selfNanos.size());
+            for (final Map.Entry<Layer, Long> s : selfNanos) {
+                bodyOut.writeInt(nameId(names, s.getKey().getName()));
+                bodyOut.writeLong(s.getValue().longValue());
+            }
+            writeNodes(bodyOut, names, statistics.getRoots());
+        }
+        bodyOut.flush();
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.size() + 1024);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(startMillis);
+        out.writeLong(endMillis);
+        out.writeInt(names.size());
+        for (final String name : names.keySet()) {
+            final byte[] b = name.getBytes(UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+        body.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static long getNumberOfMerges(final Statistics statistics) {
+        if (statistics instanceof AggregatedStatistics) {
+            return ((AggregatedStatistics) statistics).getNumberOfMerges();
+        }
+        if (statistics instanceof StoredStatistics) {
+            return ((StoredStatistics) statistics).getNumberOfMerges();
+        }
+        return 1;
+    }
+
+    private static int nameId(final Map<String, Integer> names, final String name) {
+        final Integer id = names.get(name);
+        if (id != null) {
+            return id.intValue();
+        }
+        final int created = names.size();
+        names.put(name, Integer.valueOf(created));
+        return created;
+    }
+
+    private static void writeNodes(final DataOutputStream out, final Map<String, Integer> names, final Collection<Node> live) throws IOException {
+        // one copy for the count and the nodes, children may be added concurrently
+        final List<Node> nodes = new ArrayList<Node>(live);
+        out.writeInt(nodes.size());
+        for (final Node node : nodes) {
+            final TimerStatistics s = node.getTimerStatistics();
+            out.writeInt(nameId(names, node.getPath().getLeafTimerName()));
+            out.writeInt(nameId(names, node.getLayer().getName()));
+            out.writeInt(s.getNumberOfCalls());
+            out.writeLong(s.getTotalNanos());
+            out.writeLong(s.getNumberOfNestedMeasurements());
+            out.writeLong(s.getCompensatedTotalNanos());
+            out.writeLong(s.getCpuNanos());
+            out.writeLong(s.getAllocatedBytes());
+            out.writeLong(s.getBlockedMillis());
+            out.writeLong(s.getWaitedMillis());
+            out.writeLong(s.getGcPauseNanos());
+            writeNodes(out, names, node.getChildren());
+        }
+    }
+
+    /**
+     * Decode the aggregates of one window.
+     *
+     * @param buffer the encoded window, read from its position on
+     * @return the decoded window
+     * @throws IOException if the buffer does not contain a complete window, or has counts or lengths which
+     *   do not fit into it
+     */
+    static StoredWindow decode(final ByteBuffer buffer) throws IOException {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a profile file");
+            }
+            final int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version of profile file: " + version);
+            }
+            final long startMillis = buffer.getLong();
+            final long endMillis = buffer.getLong();
+            final String[] names = new String[readCount(buffer, MIN_NAME_BYTES)];
+            for (int i = 0; i < names.length; i++) {
+                final byte[] b = new byte[readCount(buffer, 1)];
+                buffer.get(b);
+                names[i] = new String(b, UTF_8);
+            }
+            final int numberOfAggregates = readCount(buffer, MIN_AGGREGATE_BYTES);
+            final Map<String, StoredStatistics> aggregates = new LinkedHashMap<String, StoredStatistics>();
+            for (int i = 0; i < numberOfAggregates; i++) {
+                final String key = names[buffer.getInt()];
+                final long numberOfMerges = buffer.getLong();
+                final long overheadNanos = buffer.getLong();
+                final int numberOfLayers = readCount(buffer, LAYER_BYTES);
+                final Map<Layer, Long> selfNanos = new HashMap<Layer, Long>();
+                for (int l = 0; l < numberOfLayers; l++) {
+                    final Layer layer = Layers.forName(names[buffer.getInt()]);
+                    selfNanos.put(layer, Long.valueOf(buffer.getLong()));
+                }
+                final List<Node> roots = new ArrayList<Node>();
+                readNodes(buffer, names, roots);
+                aggregates.put(key, new StoredStatistics(key, numberOfMerges, overheadNanos, selfNanos, roots));
+            }
+            return new StoredWindow(startMillis, endMillis, aggregates);
+        } catch (final BufferUnderflowException e) {
+            throw new IOException("Truncated profile file");
+        } catch (final ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt profile file");
+        }
+    }
+
+    /**
+     * Read a count or length, which must not exceed the remaining bytes if each entry takes the given number of bytes.
+     */
+    private static int readCount(final ByteBuffer buffer, final int minBytesPerEntry) throws IOException {
+        final int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / minBytesPerEntry) {
+            throw new IOException("Corrupt profile file");
+        }
+        return count;
+    }
+
+    /**
+     * Read the nodes of one aggregate depth first. Uses a stack of its own instead of recursion, so deeply
+     * nested trees do not exhaust the stack of the thread.
+     */
+    private static void readNodes(final ByteBuffer buffer, final String[] names, final List<Node> roots) throws IOException {
+        StoredNode[] parents = new StoredNode[16];
+        // the number of children still to read per parent
+        int[] remaining = new int[16];
+        int depth = 0;
+        remaining[0] = readCount(buffer, MIN_NODE_BYTES);
+        while (depth >= 0) {
+            if (remaining[depth] == 0) {
+                parents[depth] = null;
+                depth--;
+                continue;
+            }
+            remaining[depth]--;
+            final StoredNode parent = parents[depth];
+            final String name = names[buffer.getInt()];
+            final Layer layer = Layers.forName(names[buffer.getInt()]);
+            final StoredNode node = new StoredNode(parent, name, layer, buffer.getInt(),
+                    buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong(),
+                    buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+            if (parent == null) {
+                roots.add(node);
+            } else {
+                parent.addChild(node);
+            }
+            final int numberOfChildren = readCount(buffer, MIN_NODE_BYTES);
+            if (numberOfChildren > 0) {
+                depth++;
+                if (depth == parents.length) {
+                    parents = Arrays.copyOf(parents, depth * 2);
+                    remaining = Arrays.copyOf(remaining, depth * 2);
+                }
+                parents[depth] = node;
+                remaining[depth] = numberOfChildren;
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.persistence;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+import com.freiheit.fuava.ctprofiler.core.aggregation.StatisticsAggregator;
+
+/**
+ * Stores the aggregates of closed windows of a {@link StatisticsAggregator} in files, one file per window, so
+ * profiles survive restarts and deploys and can be compared later.
+ *
+ * <p>The files are named <code>&lt;prefix&gt;-&lt;start millis&gt;-&lt;end millis&gt;.ctp</code>. Each file is written
+ * to a temporary file first and then renamed, so readers never see a partially written file. Only the newest files
+ * are kept, older files are deleted.</p>
+ *
+ * <p>{@link #store(StatisticsAggregator.Window)} hands the window to a background thread and never blocks: if the
+ * writer falls behind, further windows are dropped and counted. Write failures are counted as well, the last one is
+ * available from {@link #getLastFailure()}.</p>
+ *
+ * <p>Use {@link #load(File)} to read a file back into {@link Statistics}.</p>
+ */
+public final class ProfileStore {
+    /**
+     * The suffix of profile files.
+     */
+    public static final String SUFFIX = ".ctp";
+
+    private static final int MAX_PENDING_WINDOWS = 2;
+
+    private final File _directory;
+    private final String _prefix;
+    private final int _maxFiles;
+    private final ThreadPoolExecutor _writer;
+    private final AtomicLong _numberOfDroppedWindows = new AtomicLong();
+    private final AtomicLong _numberOfFailedWrites = new AtomicLong();
+    private volatile IOException _lastFailure;
+
+    /**
+     * Create a store.
+     *
+     * @param directory the directory of the files, created if it does not exist
+     * @param prefix the prefix of the file names, for example the name of the application
+     * @param maxFiles the number of files to keep
+     */
+    public ProfileStore(final File directory, final String prefix, final int maxFiles) {
+        _directory = directory;
+        _prefix = prefix;
+        _maxFiles = maxFiles;
+        _writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING_WINDOWS), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "ctprofiler-store-" + prefix);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Write the aggregates of the given window in the background.
+     *
+     * @param window a closed window
+     * @return false if the window was dropped, because the writer is behind or the store is closed
+     */
+    public boolean store(final StatisticsAggregator.Window window) {
+        try {
+            _writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(window);
+                    } catch (final IOException e) {
+                        _numberOfFailedWrites.incrementAndGet();
+                        _lastFailure = e;
+                    } catch (final RuntimeException e) {
+                        // an unexpected failure of one window must neither kill the writer nor go unnoticed
+                        _numberOfFailedWrites.incrementAndGet();
+                        _lastFailure = new IOException("Could not write window: " + e, e);
+                    }
+                }
+            });
+            return true;
+        } catch (final RejectedExecutionException e) {
+            _numberOfDroppedWindows.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Write the aggregates of the given window in the calling thread, and delete the oldest files
+     * exceeding the number of files to keep.
+     *
+     * @param window a closed window
+     * @return the written file
+     * @throws IOException if the file could not be written
+     */
+    public File write(final StatisticsAggregator.Window window) throws IOException {
+        final long endMillis = window.getEndMillis() == 0 ? System.currentTimeMillis() : window.getEndMillis();
+        final File file = write(window.getStartMillis(), endMillis, window.getAggregates());
+        deleteOldFiles();
+        return file;
+    }
+
+    /**
+     * Write the given aggregates as one window in the calling thread.
+     *
+     * @param startMillis the start of the window
+     * @param endMillis the end of the window
+     * @param aggregates the aggregates by key
+     * @return the written file
+     * @throws IOException if the file could not be written
+     */
+    public File write(final long startMillis, final long endMillis, final Map<String, ? extends Statistics> aggregates) throws IOException {
+        final byte[] bytes = ProfileFormat.encode(startMillis, endMillis, aggregates);
+        if (!_directory.isDirectory() && !_directory.mkdirs()) {
+            throw new IOException("Could not create directory " + _directory);
+        }
+        final File file = new File(_directory, _prefix + "-" + startMillis + "-" + endMillis + SUFFIX);
+        final File tmp = File.createTempFile("." + _prefix + "-", ".tmp", _directory);
+        try {
+            final FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                final FileChannel channel = out.getChannel();
+                final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp + " to " + file);
+            }
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+        }
+        return file;
+    }
+
+    private void deleteOldFiles() {
+        final List<File> files = getFiles();
+        for (int i = 0; i < files.size() - _maxFiles; i++) {
+            files.get(i).delete();
+        }
+    }
+
+    /**
+     * The files of this store, oldest first.
+     */
+    public List<File> getFiles() {
+        final File[] files = _directory.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        final List<File> r = new ArrayList<File>();
+        for (final File f : files) {
+            if (getStartMillis(f) >= 0) {
+                r.add(f);
+            }
+        }
+        Collections.sort(r, new Comparator<File>() {
+            @Override
+            public int compare(final File o1, final File o2) {
+                final long s1 = getStartMillis(o1);
+                final long s2 = getStartMillis(o2);
+                return s1 < s2 ? -1 : s1 == s2 ? o1.getName().compareTo(o2.getName()) : 1;
+            }
+        });
+        return r;
+    }
+
+    private long getStartMillis(final File file) {
+        final String name = file.getName();
+        final String start = _prefix + "-";
+        if (!name.startsWith(start) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        final String[] millis = name.substring(start.length(), name.length() - SUFFIX.length()).split("-");
+        if (millis.length != 2) {
+            return -1;
+        }
+        try {
+            Long.parseLong(millis[1]);
+            return Long.parseLong(millis[0]);
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Read a profile file.
+     *
+     * @param file a file written by a store
+     * @return the aggregates of the window stored in the file
+     * @throws IOException if the file could not be read or is not a complete profile file
+     */
+    public static StoredWindow load(final File file) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = in.getChannel();
+            return ProfileFormat.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (final IOException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The number of windows that were not written, because the writer was behind.
+     */
+    public long getNumberOfDroppedWindows() {
+        return _numberOfDroppedWindows.get();
+    }
+
+    /**
+     * The number of windows that could not be written.
+     */
+    public long getNumberOfFailedWrites() {
+        return _numberOfFailedWrites.get();
+    }
+
+    /**
+     * The reason the last write failed, or null.
+     */
+    public IOException getLastFailure() {
+        return _lastFailure;
+    }
+
+    /**
+     * Stop the writer after writing the pending windows.
+     *
+     * @param timeoutMillis how long to wait for the pending windows to be written
+     * @return false if the pending windows were not written in time
+     */
+    public boolean close(final long timeoutMillis) throws InterruptedException {
+        _writer.shutdown();
+        return _writer.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "ProfileStore[" + _directory + "/" + _prefix + ", files: " + _maxFiles + "]";
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.freiheit.fuava.ctprofiler.core.Layer;
+import com.freiheit.fuava.ctprofiler.core.NestedTimerPath;
+import com.freiheit.fuava.ctprofiler.core.Node;
+import com.freiheit.fuava.ctprofiler.core.PathIds;
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+import com.freiheit.fuava.ctprofiler.core.TimerStatistics;
+
+/**
+ * An aggregated call tree loaded from a profile file, see {@link ProfileStore#load(java.io.File)}.
+ *
+ * <p>Instances are immutable. The call trees of sub-tasks are not stored.</p>
+ */
+public final class StoredStatistics implements Statistics {
+
+    static final class StoredNode implements Node, NestedTimerPath, TimerStatistics {
+        private final StoredNode parent;
+        private final String name;
+        private final Layer layer;
+        private final int level;
+        private final int pathId;
+        private final int numberOfCalls;
+        private final long totalNanos;
+        private final long nestedMeasurements;
+        private final long compensatedTotalNanos;
+        private final long cpuNanos;
+        private final long allocatedBytes;
+        private final long blockedMillis;
+        private final long waitedMillis;
+        private final long gcPauseNanos;
+        private final List<Node> children = new ArrayList<Node>();
+
+        StoredNode(final StoredNode parent, final String name, final Layer layer, final int numberOfCalls,
+                final long totalNanos, final long nestedMeasurements, final long compensatedTotalNanos,
+                final long cpuNanos, final long allocatedBytes, final long blockedMillis, final long waitedMillis,
+                final long gcPauseNanos) {
+            this.parent = parent;
+            this.name = name;
+            this.layer = layer;
+            this.level = parent == null ? 1 : parent.level + 1;
+            this.pathId = PathIds.getId(parent == null ? PathIds.ROOT : parent.pathId, layer, name);
+            this.numberOfCalls = numberOfCalls;
+            this.totalNanos = totalNanos;
+            this.nestedMeasurements = nestedMeasurements;
+            this.compensatedTotalNanos = compensatedTotalNanos;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.blockedMillis = blockedMillis;
+            this.waitedMillis = waitedMillis;
+            this.gcPauseNanos = gcPauseNanos;
+        }
+
+        void addChild(final StoredNode child) {
+            children.add(child);
+        }
+
+        @Override
+        public Layer getLayer() {
+            return layer;
+        }
+
+        @Override
+        public NestedTimerPath getPath() {
+            return this;
+        }
+
+        @Override
+        public TimerStatistics getTimerStatistics() {
+            return this;
+        }
+
+        @Override
+        public Collection<Node> getChildren() {
+            return Collections.unmodifiableList(children);
+        }
+
+        @Override
+        public int getPathId() {
+            return pathId;
+        }
+
+        @Override
+        public String getLeafTimerName() {
+            return name;
+        }
+
+        @Override
+        public int getLevel() {
+            return level;
+        }
+
+        @Override
+        public NestedTimerPath getParent() {
+            return parent;
+        }
+
+        @Override
+        public int getNumberOfCalls() {
+            return numberOfCalls;
+        }
+
+        @Override
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        @Override
+        public long getNumberOfNestedMeasurements() {
+            return nestedMeasurements;
+        }
+
+        @Override
+        public long getCompensatedTotalNanos() {
+            return compensatedTotalNanos;
+        }
+
+        @Override
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        @Override
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        @Override
+        public long getBlockedMillis() {
+            return blockedMillis;
+        }
+
+        @Override
+        public long getWaitedMillis() {
+            return waitedMillis;
+        }
+
+        @Override
+        public long getGcPauseNanos() {
+            return gcPauseNanos;
+        }
+
+        @Override
+        public Collection<Statistics> getSubStatistics() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public String toString() {
+            return parent == null ? name : parent + "/" + name;
+        }
+    }
+
+    private final String _name;
+    private final long _numberOfMerges;
+    private final long _estimatedOverheadNanos;
+    private final Map<Layer, Long> _selfNanosByLayer;
+    private final List<Node> _roots;
+
+    StoredStatistics(final String name, final long numberOfMerges, final long estimatedOverheadNanos,
+            final Map<Layer, Long> selfNanosByLayer, final List<Node> roots) {
+        _name = name;
+        _numberOfMerges = numberOfMerges;
+        _estimatedOverheadNanos = estimatedOverheadNanos;
+        _selfNanosByLayer = Collections.unmodifiableMap(selfNanosByLayer);
+        _roots = Collections.unmodifiableList(roots);
+    }
+
+    /**
+     * The name of the aggregate, for example an endpoint name.
+     */
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * The number of call trees that were merged into the aggregate.
+     */
+    public long getNumberOfMerges() {
+        return _numberOfMerges;
+    }
+
+    /**
+     * Aggregates do not belong to a thread.
+     *
+     * @return -1
+     */
+    @Override
+    public long getThreadId() {
+        return -1;
+    }
+
+    /**
+     * The name of the aggregate.
+     */
+    @Override
+    public String getThreadName() {
+        return _name;
+    }
+
+    @Override
+    public Collection<Node> getRoots() {
+        return _roots;
+    }
+
+    @Override
+    public long getTotalNanos() {
+        long r = 0;
+        for (final Node n : _roots) {
+            r += n.getTimerStatistics().getTotalNanos();
+        }
+        return r;
+    }
+
+    @Override
+    public long getEstimatedOverheadNanos() {
+        return _estimatedOverheadNanos;
+    }
+
+    @Override
+    public Map<Layer, Long> getSelfNanosByLayer() {
+        return _selfNanosByLayer;
+    }
+
+    @Override
+    public String toString() {
+        return "StoredStatistics[" + _name + ", merges: " + _numberOfMerges + "]";
+    }
+}
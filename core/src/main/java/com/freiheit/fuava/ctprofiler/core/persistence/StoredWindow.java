@@ -0,0 +1,56 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.persistence;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The aggregates of one time window, loaded from a profile file.
+ */
+public final class StoredWindow {
+    private final long _startMillis;
+    private final long _endMillis;
+    private final Map<String, StoredStatistics> _aggregates;
+
+    StoredWindow(final long startMillis, final long endMillis, final Map<String, StoredStatistics> aggregates) {
+        _startMillis = startMillis;
+        _endMillis = endMillis;
+        _aggregates = Collections.unmodifiableMap(aggregates);
+    }
+
+    /**
+     * The time (as in {@link System#currentTimeMillis()}) when the window was started.
+     */
+    public long getStartMillis() {
+        return _startMillis;
+    }
+
+    /**
+     * The time (as in {@link System#currentTimeMillis()}) when the window was closed.
+     */
+    public long getEndMillis() {
+        return _endMillis;
+    }
+
+    /**
+     * The aggregates of the window by key, in the order they were stored.
+     */
+    public Map<String, StoredStatistics> getAggregates() {
+        return _aggregates;
+    }
+}
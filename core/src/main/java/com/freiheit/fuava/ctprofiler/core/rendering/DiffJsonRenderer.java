@@ -0,0 +1,79 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.rendering;
+
+import java.io.IOException;
+
+import com.freiheit.fuava.ctprofiler.core.diff.DiffNode;
+
+/**
+ * Renders the difference of two call trees as JSON.
+ *
+ * <p>Each node is rendered as an object with the fields {@code name}, {@code layer}, {@code status},
+ * {@code baseline}, {@code current} and {@code delta} (each holding {@code calls}, {@code totalNanos}
+ * and {@code selfNanos}) and {@code children}, in the order of the current call tree.</p>
+ */
+public class DiffJsonRenderer {
+    private final Appendable sb;
+
+    public DiffJsonRenderer(final Appendable sb) {
+        this.sb = sb;
+    }
+
+    /**
+     * Render the given difference.
+     *
+     * @param root the root of the difference, as computed by {@link com.freiheit.fuava.ctprofiler.core.diff.CallTreeDiff}
+     */
+    public void render(final DiffNode root) throws IOException {
+        renderNode(root);
+    }
+
+    private void renderNode(final DiffNode node) throws IOException {
+        sb.append('{');
+        Json.field(sb, "name", node.getName()).append(',');
+        Json.field(sb, "layer", node.getLayer() == null ? null : node.getLayer().getName()).append(',');
+        Json.field(sb, "status", node.getStatus().name()).append(',');
+        Json.name(sb, "baseline");
+        renderValues(node.getBaselineCalls(), node.getBaselineTotalNanos(), node.getBaselineSelfNanos());
+        sb.append(',');
+        Json.name(sb, "current");
+        renderValues(node.getCurrentCalls(), node.getCurrentTotalNanos(), node.getCurrentSelfNanos());
+        sb.append(',');
+        Json.name(sb, "delta");
+        renderValues(node.getCallsDelta(), node.getTotalNanosDelta(), node.getSelfNanosDelta());
+        sb.append(',');
+        Json.name(sb, "children").append('[');
+        boolean first = true;
+        for (final DiffNode child : node.getChildren()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            renderNode(child);
+        }
+        sb.append("]}");
+    }
+
+    private void renderValues(final long calls, final long totalNanos, final long selfNanos) throws IOException {
+        sb.append('{');
+        Json.field(sb, "calls", calls).append(',');
+        Json.field(sb, "totalNanos", totalNanos).append(',');
+        Json.field(sb, "selfNanos", selfNanos);
+        sb.append('}');
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.rendering;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.freiheit.fuava.ctprofiler.core.diff.DiffNode;
+
+/**
+ * Renders the difference of two call trees as text, with the biggest regressions first.
+ *
+ * <p>Each line shows the number of calls and the total time of the baseline and the current
+ * call tree, followed by the change of the total and the self time:</p>
+ * <pre>
+ * [     10 ->      12]   +12.30ms (   100.00ms ->    112.30ms) self    +2.00ms |-name
+ * </pre>
+ */
+public class DiffTxtRenderer {
+    private static final Comparator<DiffNode> REGRESSIONS_FIRST = new Comparator<DiffNode>() {
+        @Override
+        public int compare(final DiffNode o1, final DiffNode o2) {
+            final long n1 = o1.getTotalNanosDelta();
+            final long n2 = o2.getTotalNanosDelta();
+            return n1 < n2 ? 1 : (n1 > n2) ? -1 : 0;
+        }
+    };
+
+    private final Appendable sb;
+    private String leafNamePrefix = "|-";
+    private String callIndentation = "| ";
+    private String lineend = "\n";
+    private long totalNanosDeltaThreshold;
+
+    public DiffTxtRenderer(final Appendable sb) {
+        this.sb = sb;
+    }
+
+    public void setLeafNamePrefix(final String leafToken) {
+        this.leafNamePrefix = leafToken;
+    }
+    public void setLineend(final String lineend) {
+        this.lineend = lineend;
+    }
+    public void setCallIndentation(final String callIndentation) {
+        this.callIndentation = callIndentation;
+    }
+
+    /**
+     * Nodes whose total time changed by less than the given threshold (in either direction)
+     * are not rendered, only counted.
+     */
+    public void setTotalNanosDeltaThreshold(final long totalNanosDeltaThreshold) {
+        this.totalNanosDeltaThreshold = totalNanosDeltaThreshold;
+    }
+
+    /**
+     * Render the given difference.
+     *
+     * @param root the root of the difference, as computed by {@link com.freiheit.fuava.ctprofiler.core.diff.CallTreeDiff}
+     */
+    public void render(final DiffNode root) throws IOException {
+        sb.append(String.format("total: %12.2fms -> %12.2fms (%+.2fms)",
+                Double.valueOf(getTotalMillis(root.getBaselineTotalNanos())),
+                Double.valueOf(getTotalMillis(root.getCurrentTotalNanos())),
+                Double.valueOf(getTotalMillis(root.getTotalNanosDelta()))
+        ));
+        sb.append(lineend);
+        renderChildren(root);
+    }
+
+    private void renderChildren(final DiffNode node) throws IOException {
+        final List<DiffNode> sorted = new ArrayList<DiffNode>(node.getChildren());
+        Collections.sort(sorted, REGRESSIONS_FIRST);
+        int numSkipped = 0;
+        for (final DiffNode child : sorted) {
+            if (Math.abs(child.getTotalNanosDelta()) < totalNanosDeltaThreshold) {
+                numSkipped++;
+                continue;
+            }
+            renderNode(child);
+            renderChildren(child);
+        }
+        if (numSkipped > 0) {
+            sb.append("                                                                          ");
+            appendPathIndent(node.getLevel() + 1);
+            sb.append(String.format("(%3d paths each changed < %4.2fms)",
+                    Long.valueOf(numSkipped),
+                    Double.valueOf(getTotalMillis(totalNanosDeltaThreshold))
+            ));
+            sb.append(lineend);
+        }
+    }
+
+    private void renderNode(final DiffNode node) throws IOException {
+        sb.append(String.format("[%7d -> %7d] %+10.2fms (%12.2fms -> %12.2fms) self %+10.2fms ",
+                Long.valueOf(node.getBaselineCalls()),
+                Long.valueOf(node.getCurrentCalls()),
+                Double.valueOf(getTotalMillis(node.getTotalNanosDelta())),
+                Double.valueOf(getTotalMillis(node.getBaselineTotalNanos())),
+                Double.valueOf(getTotalMillis(node.getCurrentTotalNanos())),
+                Double.valueOf(getTotalMillis(node.getSelfNanosDelta()))
+        ));
+        appendPathIndent(node.getLevel());
+        sb.append(node.getName());
+        if (node.getStatus() != DiffNode.Status.CHANGED) {
+            sb.append(" (").append(node.getStatus().name().toLowerCase()).append(")");
+        }
+        sb.append(lineend);
+    }
+
+    private void appendPathIndent(final int level) throws IOException {
+        for (int i = 0; i < (level - 1); ++i) {
+            sb.append(callIndentation);
+        }
+        if (level > 0) {
+            sb.append(leafNamePrefix);
+        }
+    }
+
+    private double getTotalMillis(final long nanos) {
+        return nanos / 1000000.0;
+    }
+}
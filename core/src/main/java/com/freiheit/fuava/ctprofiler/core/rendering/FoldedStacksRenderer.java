@@ -0,0 +1,86 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.rendering;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import com.freiheit.fuava.ctprofiler.core.Node;
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+import com.freiheit.fuava.ctprofiler.core.TimerStatistics;
+
+/**
+ * Renders call trees in the folded stack format, which is read by flame graph tools like
+ * <a href="https://github.com/brendangregg/FlameGraph">flamegraph.pl</a>.
+ *
+ * <p>Each path with self time is rendered as one line: the timer names from the root to the node
+ * separated by ';', followed by a space and the self time of the node in microseconds. Sub-tasks of other
+ * threads are rendered below their node, with their thread name in brackets as additional frame.</p>
+ */
+public class FoldedStacksRenderer {
+    private final Appendable sb;
+
+    public FoldedStacksRenderer(final Appendable sb) {
+        this.sb = sb;
+    }
+
+    /**
+     * Render all paths of the given call tree.
+     */
+    public void render(final Statistics statistics) throws IOException {
+        render(null, statistics);
+    }
+
+    /**
+     * Render all paths of the given call tree below an additional root frame, for example the name of an endpoint.
+     *
+     * @param rootFrame the name of the root frame, null for no additional frame
+     */
+    public void render(final String rootFrame, final Statistics statistics) throws IOException {
+        renderNodes(statistics, rootFrame == null ? "" : frame(rootFrame), statistics.getRoots());
+    }
+
+    private void renderNodes(final Statistics statistics, final String stack, final Collection<Node> nodes) throws IOException {
+        for (final Node node : nodes) {
+            final String name = frame(node.getPath().getLeafTimerName());
+            final String path = stack.length() == 0 ? name : stack + ";" + name;
+            final TimerStatistics call = node.getTimerStatistics();
+            long childNanos = 0;
+            for (final Node child : node.getChildren()) {
+                childNanos += child.getTimerStatistics().getTotalNanos();
+            }
+            final long selfMicros = (call.getTotalNanos() - childNanos) / 1000;
+            if (selfMicros > 0) {
+                sb.append(path).append(' ').append(Long.toString(selfMicros)).append('\n');
+            }
+            for (final Statistics subState : call.getSubStatistics()) {
+                // substates of the same thread are already contained in the call tree
+                if (subState.getThreadId() != statistics.getThreadId()) {
+                    renderNodes(subState, path + ";[" + frame(subState.getThreadName()) + "]", subState.getRoots());
+                }
+            }
+            renderNodes(statistics, path, node.getChildren());
+        }
+    }
+
+    /**
+     * The given name without the characters separating frames and lines.
+     */
+    private static String frame(final String name) {
+        return name.replace(';', '_').replace('\n', ' ').replace('\r', ' ');
+    }
+}
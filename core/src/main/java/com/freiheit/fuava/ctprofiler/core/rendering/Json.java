@@ -0,0 +1,89 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.rendering;
+
+import java.io.IOException;
+
+/**
+ * Minimal helpers for writing JSON to an {@link Appendable}.
+ */
+final class Json {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Json() {
+        // utility class constructor
+    }
+
+    /**
+     * Append the given string as a quoted and escaped JSON string, or null.
+     */
+    static Appendable string(final Appendable sb, final String s) throws IOException {
+        if (s == null) {
+            return sb.append("null");
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb.append('"');
+    }
+
+    /**
+     * Append a quoted field name followed by a colon.
+     */
+    static Appendable name(final Appendable sb, final String name) throws IOException {
+        return string(sb, name).append(':');
+    }
+
+    /**
+     * Append a field with a numeric value.
+     */
+    static Appendable field(final Appendable sb, final String name, final long value) throws IOException {
+        return name(sb, name).append(Long.toString(value));
+    }
+
+    /**
+     * Append a field with a string value.
+     */
+    static Appendable field(final Appendable sb, final String name, final String value) throws IOException {
+        return string(name(sb, name), value);
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.rendering;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.freiheit.fuava.ctprofiler.core.Node;
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+import com.freiheit.fuava.ctprofiler.core.TimerStatistics;
+
+/**
+ * Renders a call tree as JSON.
+ *
+ * <p>The call tree is rendered as an object with the fields {@code thread}, {@code threadId}, {@code totalNanos},
+ * {@code estimatedOverheadNanos} and {@code roots}. Each node is rendered as an object with the fields {@code name},
+ * {@code layer}, {@code calls}, {@code totalNanos}, {@code compensatedTotalNanos}, {@code cpuNanos},
+ * {@code allocatedBytes}, {@code blockedMillis}, {@code waitedMillis} and {@code gcPauseNanos} (only if measured),
+ * {@code subtasks} (the call trees of other threads, rendered like the toplevel call tree) and {@code children}.</p>
+ */
+public class JsonRenderer {
+    private final Appendable sb;
+
+    public JsonRenderer(final Appendable sb) {
+        this.sb = sb;
+    }
+
+    /**
+     * Render the given call tree with the children of each node in their original order.
+     */
+    public void render(final Statistics statistics) throws IOException {
+        render(statistics, null);
+    }
+
+    /**
+     * Render the given call tree.
+     *
+     * @param cmp the order of the children of each node, null for their original order
+     */
+    public void render(final Statistics statistics, final Comparator<Node> cmp) throws IOException {
+        sb.append('{');
+        Json.field(sb, "thread", statistics.getThreadName()).append(',');
+        Json.field(sb, "threadId", statistics.getThreadId()).append(',');
+        Json.field(sb, "totalNanos", statistics.getTotalNanos()).append(',');
+        Json.field(sb, "estimatedOverheadNanos", statistics.getEstimatedOverheadNanos()).append(',');
+        Json.name(sb, "roots");
+        renderNodes(statistics, statistics.getRoots(), cmp);
+        sb.append('}');
+    }
+
+    private void renderNodes(final Statistics statistics, final Collection<Node> nodes, final Comparator<Node> cmp) throws IOException {
+        sb.append('[');
+        boolean first = true;
+        for (final Node node : getSorted(nodes, cmp)) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            renderNode(statistics, node, cmp);
+        }
+        sb.append(']');
+    }
+
+    private void renderNode(final Statistics statistics, final Node node, final Comparator<Node> cmp) throws IOException {
+        final TimerStatistics call = node.getTimerStatistics();
+        sb.append('{');
+        Json.field(sb, "name", node.getPath().getLeafTimerName()).append(',');
+        Json.field(sb, "layer", node.getLayer().getName()).append(',');
+        Json.field(sb, "calls", call.getNumberOfCalls()).append(',');
+        Json.field(sb, "totalNanos", call.getTotalNanos()).append(',');
+        Json.field(sb, "compensatedTotalNanos", call.getCompensatedTotalNanos()).append(',');
+        if (call.getCpuNanos() >= 0) {
+            Json.field(sb, "cpuNanos", call.getCpuNanos()).append(',');
+        }
+        if (call.getAllocatedBytes() >= 0) {
+            Json.field(sb, "allocatedBytes", call.getAllocatedBytes()).append(',');
+        }
+        if (call.getBlockedMillis() >= 0) {
+            Json.field(sb, "blockedMillis", call.getBlockedMillis()).append(',');
+            Json.field(sb, "waitedMillis", call.getWaitedMillis()).append(',');
+        }
+        if (call.getGcPauseNanos() > 0) {
+            Json.field(sb, "gcPauseNanos", call.getGcPauseNanos()).append(',');
+        }
+        Json.name(sb, "subtasks").append('[');
+        boolean first = true;
+        for (final Statistics subState : call.getSubStatistics()) {
+            // substates of the same thread are already contained in the call tree
+            if (subState.getThreadId() == statistics.getThreadId()) {
+                continue;
+            }
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            render(subState, cmp);
+        }
+        sb.append("],");
+        Json.name(sb, "children");
+        renderNodes(statistics, node.getChildren(), cmp);
+        sb.append('}');
+    }
+
+    private static Collection<Node> getSorted(final Collection<Node> nodes, final Comparator<Node> cmp) {
+        if (cmp == null) {
+            return nodes;
+        }
+        final List<Node> l = new ArrayList<Node>(nodes);
+        Collections.sort(l, cmp);
+        return l;
+    }
+}
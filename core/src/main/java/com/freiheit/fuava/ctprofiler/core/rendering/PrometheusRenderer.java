@@ -0,0 +1,207 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.rendering;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.freiheit.fuava.ctprofiler.core.Node;
+import com.freiheit.fuava.ctprofiler.core.TimerStatistics;
+import com.freiheit.fuava.ctprofiler.core.aggregation.AggregatedStatistics;
+
+/**
+ * Renders aggregated call trees in the Prometheus text exposition format.
+ *
+ * <p>For each path of each aggregate, the number of calls and the total time are rendered as counters with
+ * the labels {@code endpoint} (the key of the aggregate), {@code path} (the timer names from the root to the
+ * node, separated by '/') and {@code layer}. The durations of the aggregated call trees are rendered as a
+ * histogram per endpoint. The counters start anew with each window of the aggregator, which Prometheus
+ * handles like a restart.</p>
+ *
+ * <p>To protect the metrics pipeline from too many series, only the first {@link #setMaxSeries(int) maxSeries}
+ * paths are rendered, the number of omitted paths is rendered as {@code <prefix>_dropped_series}.</p>
+ *
+ * <p>The paths are collected in one traversal of the aggregates, so both counters render the same series even
+ * while call trees are still merged into the aggregates. Only the rendered paths are kept in memory, the output
+ * is written to the stream without building it in memory.</p>
+ */
+public class PrometheusRenderer {
+    /**
+     * The content type of the rendered output.
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * One rendered path, with the statistics read once for both counters.
+     */
+    private static final class Series {
+        private final String endpoint;
+        private final String path;
+        private final String layer;
+        private final int calls;
+        private final long totalNanos;
+
+        Series(final String endpoint, final String path, final String layer, final int calls, final long totalNanos) {
+            this.endpoint = endpoint;
+            this.path = path;
+            this.layer = layer;
+            this.calls = calls;
+            this.totalNanos = totalNanos;
+        }
+    }
+
+    private final Writer out;
+    private String prefix = "ctprofiler";
+    private int maxSeries = 10000;
+    private int numDroppedSeries;
+
+    /**
+     * @param os the stream to write to, it is flushed but not closed after rendering
+     */
+    public PrometheusRenderer(final OutputStream os) {
+        this.out = new BufferedWriter(new OutputStreamWriter(os, UTF_8));
+    }
+
+    /**
+     * The prefix of all metric names, "ctprofiler" by default.
+     */
+    public void setMetricPrefix(final String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * The maximum number of paths to render, 10000 by default.
+     */
+    public void setMaxSeries(final int maxSeries) {
+        this.maxSeries = maxSeries;
+    }
+
+    /**
+     * Render the given aggregates.
+     *
+     * @param aggregates the aggregates by endpoint, for example the aggregates of a window of a
+     *  {@link com.freiheit.fuava.ctprofiler.core.aggregation.StatisticsAggregator}
+     */
+    public void render(final Map<String, AggregatedStatistics> aggregates) throws IOException {
+        renderDurations(aggregates);
+
+        final List<Series> series = new ArrayList<Series>();
+        numDroppedSeries = 0;
+        for (final Map.Entry<String, AggregatedStatistics> e : aggregates.entrySet()) {
+            collectSeries(e.getKey(), "", e.getValue().getRoots(), series);
+        }
+
+        header("calls_total", "counter", "The number of calls of each call tree path.");
+        for (final Series s : series) {
+            seriesName("_calls_total", s);
+            out.append(Integer.toString(s.calls)).append('\n');
+        }
+
+        header("seconds_total", "counter", "The total time of all calls of each call tree path.");
+        for (final Series s : series) {
+            seriesName("_seconds_total", s);
+            out.append(Double.toString(s.totalNanos / 1e9)).append('\n');
+        }
+
+        header("dropped_series", "gauge", "The number of call tree paths omitted to limit the number of series.");
+        out.append(prefix).append("_dropped_series ").append(Integer.toString(numDroppedSeries)).append('\n');
+        out.flush();
+    }
+
+    private void renderDurations(final Map<String, AggregatedStatistics> aggregates) throws IOException {
+        final long[] bounds = AggregatedStatistics.getDurationBucketBoundsNanos();
+        header("duration_seconds", "histogram", "The total durations of the aggregated call trees.");
+        for (final Map.Entry<String, AggregatedStatistics> e : aggregates.entrySet()) {
+            final AggregatedStatistics statistics = e.getValue();
+            final long[] counts = statistics.getDurationBucketCounts();
+            long cumulated = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulated += counts[i];
+                out.append(prefix).append("_duration_seconds_bucket{endpoint=");
+                labelValue(e.getKey());
+                out.append(",le=\"").append(i < bounds.length ? Double.toString(bounds[i] / 1e9) : "+Inf").append("\"} ");
+                out.append(Long.toString(cumulated)).append('\n');
+            }
+            out.append(prefix).append("_duration_seconds_sum{endpoint=");
+            labelValue(e.getKey());
+            out.append("} ").append(Double.toString(statistics.getTotalNanos() / 1e9)).append('\n');
+            out.append(prefix).append("_duration_seconds_count{endpoint=");
+            labelValue(e.getKey());
+            out.append("} ").append(Long.toString(cumulated)).append('\n');
+        }
+    }
+
+    private void collectSeries(final String endpoint, final String parentPath, final Collection<Node> nodes, final List<Series> series) {
+        for (final Node node : nodes) {
+            final String name = node.getPath().getLeafTimerName();
+            final String path = parentPath.length() == 0 ? name : parentPath + "/" + name;
+            if (series.size() >= maxSeries) {
+                numDroppedSeries++;
+            } else {
+                final TimerStatistics s = node.getTimerStatistics();
+                series.add(new Series(endpoint, path, node.getLayer().getName(), s.getNumberOfCalls(), s.getTotalNanos()));
+            }
+            collectSeries(endpoint, path, node.getChildren(), series);
+        }
+    }
+
+    private void seriesName(final String suffix, final Series s) throws IOException {
+        out.append(prefix).append(suffix).append("{endpoint=");
+        labelValue(s.endpoint);
+        out.append(",path=");
+        labelValue(s.path);
+        out.append(",layer=");
+        labelValue(s.layer);
+        out.append("} ");
+    }
+
+    private void header(final String name, final String type, final String help) throws IOException {
+        out.append("# HELP ").append(prefix).append('_').append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(prefix).append('_').append(name).append(' ').append(type).append('\n');
+    }
+
+    private void labelValue(final String value) throws IOException {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            default:
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
@@ -26,6 +26,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
+import com.freiheit.fuava.ctprofiler.core.Layer;
 import com.freiheit.fuava.ctprofiler.core.NestedTimerPath;
 import com.freiheit.fuava.ctprofiler.core.Node;
 import com.freiheit.fuava.ctprofiler.core.Statistics;
@@ -44,6 +45,8 @@ public class TxtRenderer extends Renderer {
     private int numCurrentlySkipped = 0;
     private long leafStatisticsThresholdNanos;
     private int leafStatisticsMaxItems=0;// disable leafStatistics
+    private boolean renderOverhead = true;
+    private boolean renderLayers = true;
     private TimerStatistics lastCall;
     private NestedTimerPath lastRoot;
 
@@ -71,8 +74,83 @@ public class TxtRenderer extends Renderer {
         this.leafStatisticsMaxItems = leafStatisticsMaxItems;
     }
 
+    /**
+     * Whether to start the output with the estimated overhead of the profiler, enabled by default.
+     */
+    public void setRenderOverhead(final boolean renderOverhead) {
+        this.renderOverhead = renderOverhead;
+    }
+
+    /**
+     * Whether to start the output with the self time per layer, see {@link #renderLayerSummary(Statistics, Appendable)}.
+     * Enabled by default.
+     */
+    public void setRenderLayers(final boolean renderLayers) {
+        this.renderLayers = renderLayers;
+    }
+
+    /**
+     * Render the self time per layer of the given call tree as one line, the layer with the most time first.
+     *
+     * @return the given buffer
+     */
+    public static <T extends Appendable> T renderLayerSummary(final Statistics statistics, final T buffer) throws IOException {
+        final List<Map.Entry<Layer, Long>> l = new ArrayList<Map.Entry<Layer, Long>>(statistics.getSelfNanosByLayer().entrySet());
+        Collections.sort(l, new Comparator<Map.Entry<Layer, Long>>() {
+            @Override
+            public int compare(final Map.Entry<Layer, Long> o1, final Map.Entry<Layer, Long> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        long totalNanos = 0;
+        for (final Map.Entry<Layer, Long> e : l) {
+            totalNanos += e.getValue().longValue();
+        }
+        buffer.append("Time per layer: ");
+        for (final Map.Entry<Layer, Long> e : l) {
+            final long nanos = e.getValue().longValue();
+            buffer.append(String.format(e == l.get(0) ? "%s %.1f%% (%.2fms)" : ", %s %.1f%% (%.2fms)",
+                    e.getKey().getName(),
+                    Double.valueOf(totalNanos == 0 ? 0 : 100.0 * nanos / totalNanos),
+                    Double.valueOf(getTotalMillis(nanos))
+            ));
+        }
+        return buffer;
+    }
+
     @Override
     public void begin(final Statistics statistics) throws IOException {
+        // only for the toplevel call tree, the overhead of sub-tasks is not part of the measured durations
+        if (renderOverhead && pres.size() == 1 && statistics.getEstimatedOverheadNanos() > 0) {
+            final long totalNanos = statistics.getTotalNanos();
+            final long overheadNanos = statistics.getEstimatedOverheadNanos();
+            sb.append(getPre());
+            sb.append(String.format("Estimated profiler overhead: %12.2fms (%5.1f%% of %12.2fms)",
+                    Double.valueOf(getTotalMillis(overheadNanos)),
+                    Double.valueOf(totalNanos == 0 ? 0 : 100.0 * overheadNanos / totalNanos),
+                    Double.valueOf(getTotalMillis(totalNanos))
+            ));
+            sb.append(lineend);
+        }
+        long gcPauseNanos = 0;
+        for (final Node root : statistics.getRoots()) {
+            gcPauseNanos += root.getTimerStatistics().getGcPauseNanos();
+        }
+        if (pres.size() == 1 && gcPauseNanos > 0) {
+            final long totalNanos = statistics.getTotalNanos();
+            sb.append(getPre());
+            sb.append(String.format("Garbage collection pauses: %12.2fms (%5.1f%% of %12.2fms)",
+                    Double.valueOf(getTotalMillis(gcPauseNanos)),
+                    Double.valueOf(totalNanos == 0 ? 0 : 100.0 * gcPauseNanos / totalNanos),
+                    Double.valueOf(getTotalMillis(totalNanos))
+            ));
+            sb.append(lineend);
+        }
+        if (renderLayers && pres.size() == 1 && !statistics.getSelfNanosByLayer().isEmpty()) {
+            sb.append(getPre());
+            renderLayerSummary(statistics, sb);
+            sb.append(lineend);
+        }
     }
 
 
@@ -206,6 +284,21 @@ public class TxtRenderer extends Renderer {
                     Long.valueOf(call.getNumberOfCalls()),
                     Double.valueOf(getTotalMillis(call.getTotalNanos()))
             ));
+            if (call.getCpuNanos() >= 0) {
+                sb.append(String.format("cpu %12.2fms ", Double.valueOf(getTotalMillis(call.getCpuNanos()))));
+            }
+            if (call.getAllocatedBytes() >= 0) {
+                sb.append(String.format("alloc %10.1fkB ", Double.valueOf(call.getAllocatedBytes() / 1024.0)));
+            }
+            if (call.getBlockedMillis() >= 0) {
+                sb.append(String.format("blocked %8dms waited %8dms ",
+                        Long.valueOf(call.getBlockedMillis()),
+                        Long.valueOf(call.getWaitedMillis())
+                ));
+            }
+            if (call.getGcPauseNanos() > 0) {
+                sb.append(String.format("gc %12.2fms ", Double.valueOf(getTotalMillis(call.getGcPauseNanos()))));
+            }
         }
     }
 
@@ -232,7 +325,7 @@ public class TxtRenderer extends Renderer {
         }
     }
 
-    private double getTotalMillis(final long nanos) {
+    private static double getTotalMillis(final long nanos) {
         return nanos / 1000000.0;
     }
 
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.aggregation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
+import com.freiheit.fuava.ctprofiler.core.Layers;
+import com.freiheit.fuava.ctprofiler.core.Node;
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+import com.freiheit.fuava.ctprofiler.core.TimerStatistics;
+import com.freiheit.fuava.ctprofiler.core.impl.ProfilerFactory;
+
+/**
+ * Merges the same call tree from several threads while reading the aggregate, and compares the result
+ * to the on-heap aggregate.
+ */
+public class OffHeapAggregatedStatisticsTest {
+    private static final int WRITERS = 4;
+    private static final int MERGES_PER_WRITER = 2000;
+
+    @Test
+    public void concurrentMerges() throws InterruptedException {
+        final Statistics request = recordRequest();
+        final OffHeapAggregatedStatistics offHeap = new OffHeapAggregatedStatistics("request", 100);
+        final AggregatedStatistics onHeap = new AggregatedStatistics("request", 100);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<String> readerFailure = new AtomicReference<String>();
+
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                while (writing.get() && readerFailure.get() == null) {
+                    checkConsistent(offHeap.getRoots(), readerFailure);
+                }
+            }
+        };
+        reader.start();
+        final List<Thread> writers = new ArrayList<Thread>();
+        for (int i = 0; i < WRITERS; i++) {
+            final Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < MERGES_PER_WRITER; j++) {
+                        offHeap.add(request);
+                    }
+                }
+            };
+            writers.add(writer);
+            writer.start();
+        }
+        for (final Thread writer : writers) {
+            writer.join();
+        }
+        writing.set(false);
+        reader.join();
+        for (int i = 0; i < WRITERS * MERGES_PER_WRITER; i++) {
+            onHeap.add(request);
+        }
+
+        Assert.assertNull(readerFailure.get());
+        Assert.assertEquals(offHeap.getNumberOfMerges(), WRITERS * MERGES_PER_WRITER);
+        Assert.assertEquals(offHeap.getNumberOfNodes(), 4);
+        Assert.assertEquals(offHeap.getNumberOfDroppedNodes(), 0);
+        Assert.assertEquals(offHeap.getTotalNanos(), onHeap.getTotalNanos());
+        assertSameNodes(offHeap.getRoots(), onHeap.getRoots());
+    }
+
+    /**
+     * request - load - dao.get (three times) and cache.get, each call taking a fixed number of nanoseconds.
+     */
+    private static Statistics recordRequest() {
+        final CallTreeProfiler profiler = ProfilerFactory.createProfiler();
+        profiler.begin(Layers.PRESENTATION, "request", 0);
+        profiler.begin(Layers.BUSINESS, "load", 1000);
+        long t = 2000;
+        for (int i = 0; i < 3; i++) {
+            profiler.begin(Layers.INTEGRATION, "dao.get", t);
+            profiler.end(Layers.INTEGRATION, "dao.get", t + 500);
+            t += 1000;
+        }
+        profiler.begin(Layers.inherit(), "cache.get", t);
+        profiler.end(Layers.inherit(), "cache.get", t + 200);
+        profiler.end(Layers.BUSINESS, "load", 9000);
+        profiler.end(Layers.PRESENTATION, "request", 10000);
+        final Statistics statistics = profiler.getStatistics();
+        profiler.clear();
+        return statistics;
+    }
+
+    /**
+     * Every merge adds the same duration per call, so the total of a node is always a multiple of its calls.
+     */
+    private static void checkConsistent(final Collection<Node> nodes, final AtomicReference<String> failure) {
+        for (final Node n : nodes) {
+            final TimerStatistics s = n.getTimerStatistics();
+            final long calls = s.getNumberOfCalls();
+            final long totalNanos = s.getTotalNanos();
+            final long nanosPerCall = "request".equals(n.getPath().getLeafTimerName()) ? 10000
+                    : "load".equals(n.getPath().getLeafTimerName()) ? 8000
+                    : "dao.get".equals(n.getPath().getLeafTimerName()) ? 500 : 200;
+            if (totalNanos != calls * nanosPerCall) {
+                failure.compareAndSet(null, n.getPath() + ": " + calls + " calls, " + totalNanos + "ns");
+            }
+            checkConsistent(n.getChildren(), failure);
+        }
+    }
+
+    private static void assertSameNodes(final Collection<Node> actual, final Collection<Node> expected) {
+        Assert.assertEquals(actual.size(), expected.size());
+        final Iterator<Node> e = expected.iterator();
+        for (final Node a : actual) {
+            final Node x = e.next();
+            Assert.assertEquals(a.getPath().getLeafTimerName(), x.getPath().getLeafTimerName());
+            Assert.assertEquals(a.getLayer(), x.getLayer());
+            Assert.assertEquals(a.getPathId(), x.getPathId());
+            Assert.assertEquals(a.getPath().getLevel(), x.getPath().getLevel());
+            Assert.assertEquals(a.getTimerStatistics().getNumberOfCalls(), x.getTimerStatistics().getNumberOfCalls());
+            Assert.assertEquals(a.getTimerStatistics().getTotalNanos(), x.getTimerStatistics().getTotalNanos());
+            assertSameNodes(a.getChildren(), x.getChildren());
+        }
+    }
+}
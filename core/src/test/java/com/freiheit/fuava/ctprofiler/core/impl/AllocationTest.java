@@ -0,0 +1,197 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.lang.management.ManagementFactory;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
+import com.freiheit.fuava.ctprofiler.core.Layers;
+import com.freiheit.fuava.ctprofiler.core.TimeKeeper;
+
+/**
+ * Makes sure that recording repeated calls does not allocate, once the call tree of the thread contains the called paths.
+ *
+ * <p>Uses the HotSpot specific {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)},
+ * the tests are skipped on JVMs which do not support it.</p>
+ */
+public class AllocationTest {
+    private static final int WARMUP_ITERATIONS = 50000;
+    private static final int ITERATIONS = 10000;
+    private static final int ROUNDS = 3;
+
+    /**
+     * One measured unit of work.
+     */
+    abstract static class Measured {
+        abstract void run();
+    }
+
+    private static final Measured NOTHING = new Measured() {
+        @Override
+        void run() {
+        }
+    };
+
+    private com.sun.management.ThreadMXBean _threadBean;
+
+    @BeforeClass
+    public void setUp() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            throw new SkipException("Measuring allocations needs the HotSpot ThreadMXBean");
+        }
+        _threadBean = (com.sun.management.ThreadMXBean) bean;
+        if (!_threadBean.isThreadAllocatedMemorySupported()) {
+            throw new SkipException("Measuring allocations is not supported by this JVM");
+        }
+        _threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void profilerBeginEnd() {
+        final CallTreeProfiler profiler = ProfilerFactory.createProfiler();
+        profiler.begin("request", System.nanoTime());
+        try {
+            assertNoAllocation("CallTreeProfilerImpl.begin/end", new Measured() {
+                @Override
+                void run() {
+                    profiler.begin("call", System.nanoTime());
+                    profiler.begin(Layers.INTEGRATION, "nested", System.nanoTime());
+                    profiler.end(Layers.INTEGRATION, "nested", System.nanoTime());
+                    profiler.end("call", System.nanoTime());
+                }
+            });
+        } finally {
+            profiler.end("request", System.nanoTime());
+            profiler.clear();
+        }
+    }
+
+    @Test
+    public void profilerBeginEndWithManySiblings() {
+        final CallTreeProfiler profiler = ProfilerFactory.createProfiler();
+        final String[] names = new String[32];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "call" + i;
+        }
+        profiler.begin("request", System.nanoTime());
+        try {
+            assertNoAllocation("CallTreeProfilerImpl.begin/end with indexed children", new Measured() {
+                @Override
+                void run() {
+                    for (final String name : names) {
+                        profiler.begin(name, System.nanoTime());
+                        profiler.end(name, System.nanoTime());
+                    }
+                }
+            });
+        } finally {
+            profiler.end("request", System.nanoTime());
+            profiler.clear();
+        }
+    }
+
+    @Test
+    public void timeKeeperBeginEnd() {
+        final CallTreeProfiler profiler = ProfilerFactory.createProfiler();
+        final TimeKeeper timeKeeper = ProfilerFactory.createTimeKeeper(profiler);
+        timeKeeper.begin("request");
+        try {
+            assertNoAllocation("TimeKeeperImpl.begin/end", new Measured() {
+                @Override
+                void run() {
+                    timeKeeper.begin("call");
+                    timeKeeper.begin(Layers.INTEGRATION, "nested");
+                    timeKeeper.end(Layers.INTEGRATION, "nested");
+                    timeKeeper.end("call");
+                }
+            });
+        } finally {
+            timeKeeper.end("request");
+            profiler.clear();
+        }
+    }
+
+    @Test
+    public void disabledProfilerBeginEnd() {
+        final CallTreeProfiler profiler = ProfilerFactory.getDisabledProfiler();
+        assertNoAllocation("DisabledCallTreeProfiler.begin/end", new Measured() {
+            @Override
+            void run() {
+                profiler.begin("call", System.nanoTime());
+                profiler.end("call", System.nanoTime());
+            }
+        });
+    }
+
+    @Test
+    public void switchedOffTimeKeeperBeginEnd() {
+        final CallTreeProfilerImpl profiler = (CallTreeProfilerImpl) ProfilerFactory.createProfiler();
+        final TimeKeeper timeKeeper = ProfilerFactory.createTimeKeeper(profiler);
+        profiler.setProfilingEnabled(false);
+        assertNoAllocation("TimeKeeperImpl.begin/end switched off at runtime", new Measured() {
+            @Override
+            void run() {
+                timeKeeper.begin("call");
+                timeKeeper.end("call");
+            }
+        });
+    }
+
+    @Test
+    public void disabledTimeKeeperBeginEnd() {
+        final TimeKeeper timeKeeper = ProfilerFactory.getDisabledTimeKeeper();
+        assertNoAllocation("DisabledTimeKeeper.begin/end", new Measured() {
+            @Override
+            void run() {
+                timeKeeper.begin("call");
+                timeKeeper.end("call");
+            }
+        });
+    }
+
+    private void assertNoAllocation(final String description, final Measured measured) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            measured.run();
+        }
+        // reading the allocated bytes may allocate itself, so this is subtracted
+        final long baseline = getAllocatedBytes(NOTHING);
+        final long allocated = getAllocatedBytes(measured) - baseline;
+        Assert.assertEquals(allocated, 0, description + " allocated " + allocated + " bytes in " + ITERATIONS + " iterations");
+    }
+
+    /**
+     * The smallest number of bytes allocated by the current thread while running the given work repeatedly.
+     */
+    private long getAllocatedBytes(final Measured measured) {
+        final long threadId = Thread.currentThread().getId();
+        long min = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            final long before = _threadBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < ITERATIONS; i++) {
+                measured.run();
+            }
+            min = Math.min(min, _threadBean.getThreadAllocatedBytes(threadId) - before);
+        }
+        return min;
+    }
+}
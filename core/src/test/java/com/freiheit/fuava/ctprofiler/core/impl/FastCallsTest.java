@@ -0,0 +1,154 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
+import com.freiheit.fuava.ctprofiler.core.Layers;
+import com.freiheit.fuava.ctprofiler.core.Node;
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+
+/**
+ * Merging of fast calls, see {@link Configuration#getFastCallThresholdNanos()}. The measurements use explicit
+ * timestamps, so the durations do not depend on the machine.
+ */
+public class FastCallsTest {
+    private static final long THRESHOLD_NANOS = 1000000;
+
+    private static CallTreeProfiler createProfiler() {
+        return ProfilerFactory.createProfiler(new AbstractConfiguration() {
+            @Override
+            public long getFastCallThresholdNanos() {
+                return THRESHOLD_NANOS;
+            }
+        });
+    }
+
+    @Test
+    public void fastCallsRepeatedInALoopAreKept() {
+        final CallTreeProfiler profiler = createProfiler();
+        try {
+            long t = 0;
+            profiler.begin(Layers.PRESENTATION, "request", t);
+            for (int i = 0; i < 10000; i++) {
+                profiler.begin(Layers.BUSINESS, "processItem", t);
+                profiler.begin(Layers.INTEGRATION, "dao.get", t);
+                t += 50000;
+                profiler.end(Layers.INTEGRATION, "dao.get", t);
+                profiler.begin(Layers.INTEGRATION, "cache.get", t);
+                t += 20000;
+                profiler.end(Layers.INTEGRATION, "cache.get", t);
+                profiler.end(Layers.BUSINESS, "processItem", t);
+            }
+            profiler.end(Layers.PRESENTATION, "request", t);
+
+            final Node processItem = single(profiler.getStatistics().getRoots().iterator().next().getChildren());
+            Assert.assertEquals(processItem.getPath().getLeafTimerName(), "processItem");
+            Assert.assertEquals(processItem.getTimerStatistics().getNumberOfCalls(), 10000);
+            final Map<String, Node> children = byName(processItem);
+            Assert.assertEquals(children.keySet().toString(), "[dao.get, cache.get]");
+            Assert.assertEquals(children.get("dao.get").getTimerStatistics().getNumberOfCalls(), 10000);
+            Assert.assertEquals(children.get("dao.get").getTimerStatistics().getTotalNanos(), 500000000L);
+            Assert.assertEquals(children.get("cache.get").getTimerStatistics().getNumberOfCalls(), 10000);
+            Assert.assertEquals(children.get("cache.get").getTimerStatistics().getTotalNanos(), 200000000L);
+        } finally {
+            profiler.clear();
+        }
+    }
+
+    @Test
+    public void distinctFastCallsAreMerged() {
+        final CallTreeProfiler profiler = createProfiler();
+        try {
+            long t = 0;
+            profiler.begin(Layers.PRESENTATION, "request", t);
+            for (int i = 0; i < 100; i++) {
+                profiler.begin(Layers.INTEGRATION, "item" + i, t);
+                profiler.begin(Layers.inherit(), "inner", t);
+                t += 10000;
+                profiler.end(Layers.inherit(), "inner", t);
+                profiler.end(Layers.INTEGRATION, "item" + i, t);
+            }
+            profiler.begin(Layers.INTEGRATION, "slow", t);
+            t += 2 * THRESHOLD_NANOS;
+            profiler.end(Layers.INTEGRATION, "slow", t);
+            profiler.end(Layers.PRESENTATION, "request", t);
+
+            final Statistics statistics = profiler.getStatistics();
+            final Node request = single(statistics.getRoots());
+            Assert.assertEquals(request.getTimerStatistics().getTotalNanos(), t);
+            final Map<String, Node> children = byName(request);
+            Assert.assertEquals(children.size(), 2);
+            Assert.assertTrue(children.containsKey("slow"));
+            final Node fastCalls = children.get(ProfilerFactory.FAST_CALLS_TIMER_NAME);
+            Assert.assertEquals(fastCalls.getTimerStatistics().getNumberOfCalls(), 100);
+            Assert.assertEquals(fastCalls.getTimerStatistics().getTotalNanos(), 100 * 10000L);
+            Assert.assertTrue(fastCalls.getChildren().isEmpty(), "the subtrees of merged calls are dropped");
+            Assert.assertEquals(((CallTreeProfilerImpl) profiler).getNumberOfRetainedNodes(), 3);
+        } finally {
+            profiler.clear();
+        }
+    }
+
+    @Test
+    public void longLoopOfDistinctFastCallsStaysBounded() {
+        final CallTreeProfiler profiler = createProfiler();
+        try {
+            long t = 0;
+            long maxNodes = 0;
+            profiler.begin(Layers.PRESENTATION, "request", t);
+            for (int i = 0; i < 100000; i++) {
+                profiler.begin(Layers.INTEGRATION, "item" + i, t);
+                t += 10000;
+                profiler.end(Layers.INTEGRATION, "item" + i, t);
+                maxNodes = Math.max(maxNodes, ((CallTreeProfilerImpl) profiler).getNumberOfRetainedNodes());
+            }
+            Assert.assertTrue(maxNodes <= 100, "nodes held while recording: " + maxNodes);
+            profiler.end(Layers.PRESENTATION, "request", t);
+
+            final Node request = single(profiler.getStatistics().getRoots());
+            final Node fastCalls = single(request.getChildren());
+            Assert.assertEquals(fastCalls.getPath().getLeafTimerName(), ProfilerFactory.FAST_CALLS_TIMER_NAME);
+            Assert.assertEquals(fastCalls.getTimerStatistics().getNumberOfCalls(), 100000);
+            Assert.assertEquals(fastCalls.getTimerStatistics().getTotalNanos(), 100000 * 10000L);
+        } finally {
+            profiler.clear();
+        }
+    }
+
+    private static Node single(final Iterable<Node> nodes) {
+        final Map<String, Node> r = new LinkedHashMap<String, Node>();
+        for (final Node n : nodes) {
+            r.put(n.getPath().getLeafTimerName(), n);
+        }
+        Assert.assertEquals(r.size(), 1);
+        return r.values().iterator().next();
+    }
+
+    private static Map<String, Node> byName(final Node parent) {
+        final Map<String, Node> r = new LinkedHashMap<String, Node>();
+        for (final Node n : parent.getChildren()) {
+            r.put(n.getPath().getLeafTimerName(), n);
+        }
+        return r;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
+import com.freiheit.fuava.ctprofiler.core.TimeKeeper;
+
+/**
+ * Coarse ceilings for the duration of one warmed up measurement, meant to catch severe regressions
+ * of the recording hot path, not to benchmark it - see the benchmarks module for that.
+ */
+public class LatencyTest {
+    private static final int WARMUP_ITERATIONS = 50000;
+    private static final int ITERATIONS = 100000;
+    private static final int ROUNDS = 5;
+
+    private static final long MAX_NANOS_ENABLED = 5000;
+    private static final long MAX_NANOS_DISABLED = 1000;
+
+    @Test
+    public void profilerBeginEnd() {
+        final CallTreeProfiler profiler = ProfilerFactory.createProfiler();
+        profiler.begin("request", System.nanoTime());
+        try {
+            assertFasterThan("CallTreeProfilerImpl.begin/end", MAX_NANOS_ENABLED, new AllocationTest.Measured() {
+                @Override
+                void run() {
+                    profiler.begin("call", System.nanoTime());
+                    profiler.end("call", System.nanoTime());
+                }
+            });
+        } finally {
+            profiler.end("request", System.nanoTime());
+            profiler.clear();
+        }
+    }
+
+    @Test
+    public void timeKeeperBeginEnd() {
+        final CallTreeProfiler profiler = ProfilerFactory.createProfiler();
+        final TimeKeeper timeKeeper = ProfilerFactory.createTimeKeeper(profiler);
+        timeKeeper.begin("request");
+        try {
+            assertFasterThan("TimeKeeperImpl.begin/end", MAX_NANOS_ENABLED, new AllocationTest.Measured() {
+                @Override
+                void run() {
+                    timeKeeper.begin("call");
+                    timeKeeper.end("call");
+                }
+            });
+        } finally {
+            timeKeeper.end("request");
+            profiler.clear();
+        }
+    }
+
+    @Test
+    public void disabledProfilerBeginEnd() {
+        final CallTreeProfiler profiler = ProfilerFactory.getDisabledProfiler();
+        assertFasterThan("DisabledCallTreeProfiler.begin/end", MAX_NANOS_DISABLED, new AllocationTest.Measured() {
+            @Override
+            void run() {
+                profiler.begin("call", System.nanoTime());
+                profiler.end("call", System.nanoTime());
+            }
+        });
+    }
+
+    @Test
+    public void disabledTimeKeeperBeginEnd() {
+        final TimeKeeper timeKeeper = ProfilerFactory.getDisabledTimeKeeper();
+        assertFasterThan("DisabledTimeKeeper.begin/end", MAX_NANOS_DISABLED, new AllocationTest.Measured() {
+            @Override
+            void run() {
+                timeKeeper.begin("call");
+                timeKeeper.end("call");
+            }
+        });
+    }
+
+    private static void assertFasterThan(final String description, final long maxNanos, final AllocationTest.Measured measured) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            measured.run();
+        }
+        long fastestRound = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            final long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                measured.run();
+            }
+            fastestRound = Math.min(fastestRound, System.nanoTime() - start);
+        }
+        final long nanosPerIteration = fastestRound / ITERATIONS;
+        Assert.assertTrue(nanosPerIteration <= maxNanos,
+                description + " took " + nanosPerIteration + "ns per measurement, expected at most " + maxNanos + "ns");
+    }
+}
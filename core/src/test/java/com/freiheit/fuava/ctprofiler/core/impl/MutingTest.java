@@ -0,0 +1,70 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.impl;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
+
+/**
+ * Muting the current thread with {@link ProfilerFactory#setCurrentThreadMuted(CallTreeProfiler, boolean)}
+ * before its first measurement, as the ProfilingFilter does for requests which are not sampled.
+ */
+public class MutingTest {
+
+    @Test
+    public void mutedFreshThreadRecordsNothing() throws InterruptedException {
+        final CallTreeProfiler profiler = ProfilerFactory.createProfiler();
+        final AtomicReference<Integer> roots = new AtomicReference<Integer>();
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                roots.set(Integer.valueOf(recordMuted(profiler)));
+            }
+        };
+        thread.start();
+        thread.join();
+        Assert.assertEquals(roots.get(), Integer.valueOf(0));
+    }
+
+    @Test
+    public void mutedThreadWithPooledStateRecordsNothing() {
+        // leaves a state of another enabled period in the pool
+        final CallTreeProfiler other = ProfilerFactory.createProfiler();
+        other.begin("request", System.nanoTime());
+        other.end("request", System.nanoTime());
+        other.clear();
+
+        Assert.assertEquals(recordMuted(ProfilerFactory.createProfiler()), 0);
+    }
+
+    private static int recordMuted(final CallTreeProfiler profiler) {
+        ProfilerFactory.setCurrentThreadMuted(profiler, true);
+        try {
+            profiler.begin("request", System.nanoTime());
+            profiler.begin("call", System.nanoTime());
+            profiler.end("call", System.nanoTime());
+            profiler.end("request", System.nanoTime());
+            return profiler.getStatistics().getRoots().size();
+        } finally {
+            profiler.clear();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.core.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.freiheit.fuava.ctprofiler.core.CallTreeProfiler;
+import com.freiheit.fuava.ctprofiler.core.Layers;
+import com.freiheit.fuava.ctprofiler.core.Node;
+import com.freiheit.fuava.ctprofiler.core.Statistics;
+import com.freiheit.fuava.ctprofiler.core.TimerStatistics;
+import com.freiheit.fuava.ctprofiler.core.aggregation.AggregatedStatistics;
+import com.freiheit.fuava.ctprofiler.core.impl.ProfilerFactory;
+
+/**
+ * Encodes aggregates and decodes them again.
+ */
+public class ProfileFormatTest {
+
+    @Test
+    public void roundTrip() throws IOException {
+        final AggregatedStatistics search = new AggregatedStatistics("search", 100);
+        search.add(recordRequest("search", 2));
+        search.add(recordRequest("search", 3));
+        final AggregatedStatistics checkout = new AggregatedStatistics("checkout", 100);
+        checkout.add(recordRequest("checkout", 1));
+        final Map<String, Statistics> aggregates = new LinkedHashMap<String, Statistics>();
+        aggregates.put("search", search);
+        aggregates.put("checkout", checkout);
+
+        final byte[] bytes = ProfileFormat.encode(1000, 61000, aggregates);
+        final StoredWindow window = ProfileFormat.decode(ByteBuffer.wrap(bytes));
+
+        Assert.assertEquals(window.getStartMillis(), 1000);
+        Assert.assertEquals(window.getEndMillis(), 61000);
+        Assert.assertEquals(window.getAggregates().keySet(), aggregates.keySet());
+        for (final Map.Entry<String, Statistics> e : aggregates.entrySet()) {
+            final StoredStatistics stored = window.getAggregates().get(e.getKey());
+            final AggregatedStatistics original = (AggregatedStatistics) e.getValue();
+            Assert.assertEquals(stored.getNumberOfMerges(), original.getNumberOfMerges());
+            Assert.assertEquals(stored.getEstimatedOverheadNanos(), original.getEstimatedOverheadNanos());
+            Assert.assertEquals(stored.getSelfNanosByLayer(), original.getSelfNanosByLayer());
+            Assert.assertEquals(stored.getTotalNanos(), original.getTotalNanos());
+            assertSameNodes(stored.getRoots(), original.getRoots());
+        }
+    }
+
+    @Test
+    public void encodeWhileMerging() throws IOException, InterruptedException {
+        final AggregatedStatistics search = new AggregatedStatistics("search", 100000);
+        final Map<String, Statistics> aggregates = new LinkedHashMap<String, Statistics>();
+        aggregates.put("search", search);
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 2000; i++) {
+                    // new paths in each merge
+                    search.add(recordRequest("search" + (i % 50), i % 7));
+                }
+            }
+        };
+        writer.start();
+        while (writer.isAlive()) {
+            final StoredWindow window = ProfileFormat.decode(ByteBuffer.wrap(ProfileFormat.encode(0, 1, aggregates)));
+            Assert.assertNotNull(window.getAggregates().get("search"));
+        }
+        writer.join();
+        final StoredWindow window = ProfileFormat.decode(ByteBuffer.wrap(ProfileFormat.encode(0, 1, aggregates)));
+        assertSameNodes(window.getAggregates().get("search").getRoots(), search.getRoots());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void truncatedWindow() throws IOException {
+        final Map<String, Statistics> aggregates = new LinkedHashMap<String, Statistics>();
+        aggregates.put("search", recordRequest("search", 1));
+        final byte[] bytes = ProfileFormat.encode(0, 1, aggregates);
+        ProfileFormat.decode(ByteBuffer.wrap(bytes, 0, bytes.length - 1));
+    }
+
+    @Test
+    public void corruptLengthsAndCounts() throws IOException {
+        final Map<String, Statistics> aggregates = new LinkedHashMap<String, Statistics>();
+        aggregates.put("search", recordRequest("search", 1));
+        final byte[] bytes = ProfileFormat.encode(0, 1, aggregates);
+        // the number of names follows magic number, version, start and end, the length of the first name follows it
+        final int namesOffset = 4 + 4 + 8 + 8;
+        for (final int offset : new int[] {namesOffset, namesOffset + 4}) {
+            for (final int value : new int[] {-1, Integer.MAX_VALUE, bytes.length}) {
+                final ByteBuffer corrupt = ByteBuffer.wrap(bytes.clone());
+                corrupt.putInt(offset, value);
+                try {
+                    ProfileFormat.decode(corrupt);
+                    Assert.fail("decoded a window with " + value + " at " + offset);
+                } catch (final IOException e) {
+                    Assert.assertEquals(e.getMessage(), "Corrupt profile file");
+                }
+            }
+        }
+    }
+
+    private static Statistics recordRequest(final String name, final int numberOfQueries) {
+        final CallTreeProfiler profiler = ProfilerFactory.createProfiler();
+        profiler.begin(Layers.PRESENTATION, name, 0);
+        profiler.begin(Layers.BUSINESS, "load", 100);
+        long t = 200;
+        for (int i = 0; i < numberOfQueries; i++) {
+            profiler.begin(Layers.INTEGRATION, "query", t);
+            profiler.end(Layers.INTEGRATION, "query", t + 300);
+            t += 400;
+        }
+        profiler.begin(Layers.inherit(), "cache.get", t);
+        profiler.end(Layers.inherit(), "cache.get", t + 50);
+        profiler.end(Layers.BUSINESS, "load", t + 100);
+        profiler.end(Layers.PRESENTATION, name, t + 200);
+        final Statistics statistics = profiler.getStatistics();
+        profiler.clear();
+        return statistics;
+    }
+
+    private static void assertSameNodes(final Collection<Node> actual, final Collection<Node> expected) {
+        Assert.assertEquals(actual.size(), expected.size());
+        final Iterator<Node> e = expected.iterator();
+        for (final Node a : actual) {
+            final Node x = e.next();
+            Assert.assertEquals(a.getPath().getLeafTimerName(), x.getPath().getLeafTimerName());
+            Assert.assertEquals(a.getLayer(), x.getLayer());
+            Assert.assertEquals(a.getPathId(), x.getPathId());
+            final TimerStatistics as = a.getTimerStatistics();
+            final TimerStatistics xs = x.getTimerStatistics();
+            Assert.assertEquals(as.getNumberOfCalls(), xs.getNumberOfCalls());
+            Assert.assertEquals(as.getTotalNanos(), xs.getTotalNanos());
+            Assert.assertEquals(as.getNumberOfNestedMeasurements(), xs.getNumberOfNestedMeasurements());
+            Assert.assertEquals(as.getCompensatedTotalNanos(), xs.getCompensatedTotalNanos());
+            Assert.assertEquals(as.getCpuNanos(), xs.getCpuNanos());
+            Assert.assertEquals(as.getAllocatedBytes(), xs.getAllocatedBytes());
+            Assert.assertEquals(as.getBlockedMillis(), xs.getBlockedMillis());
+            Assert.assertEquals(as.getWaitedMillis(), xs.getWaitedMillis());
+            Assert.assertEquals(as.getGcPauseNanos(), xs.getGcPauseNanos());
+            assertSameNodes(a.getChildren(), x.getChildren());
+        }
+    }
+}
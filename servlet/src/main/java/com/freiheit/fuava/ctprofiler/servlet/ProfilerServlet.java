@@ -0,0 +1,323 @@
+/**
+ * Copyright 2013 freiheit.com technologies gmbh
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.freiheit.fuava.ctprofiler.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.freiheit.fuava.ctprofiler.core.NodeComparators;
+import com.freiheit.fuava.ctprofiler.core.aggregation.AggregatedStatistics;
+import com.freiheit.fuava.ctprofiler.core.aggregation.SlowestStatistics;
+import com.freiheit.fuava.ctprofiler.core.aggregation.StatisticsAggregator;
+import com.freiheit.fuava.ctprofiler.core.rendering.FoldedStacksRenderer;
+import com.freiheit.fuava.ctprofiler.core.rendering.JsonRenderer;
+import com.freiheit.fuava.ctprofiler.core.rendering.PrometheusRenderer;
+import com.freiheit.fuava.ctprofiler.core.rendering.StatisticsRenderer;
+import com.freiheit.fuava.ctprofiler.core.rendering.TxtRenderer;
+
+/**
+ * Serves live views of the requests profiled by the {@link ProfilingFilter} of the same web application.
+ *
+ * <p>The view is selected with the request parameter {@value #PARAM_VIEW}:</p>
+ * <ul>
+ *   <li>{@value #VIEW_AGGREGATES}: the aggregated call trees per endpoint of the current window, slowest calls first.
+ *       Restricted to one endpoint with {@value #PARAM_ENDPOINT}, as JSON with {@value #PARAM_FORMAT}=json.</li>
+ *   <li>{@value #VIEW_SLOWEST}: the call trees of the slowest recently finished requests, {@value #PARAM_LIMIT} of them.</li>
+ *   <li>{@value #VIEW_SLOWEST_PER_ENDPOINT}: the call trees of the slowest requests of each endpoint retained in the current
+ *       window of the aggregator, restricted to one endpoint with {@value #PARAM_ENDPOINT}.</li>
+ *   <li>{@value #VIEW_FOLDED}: the aggregated call trees in folded stack format, to be fed to a flame graph tool.</li>
+ *   <li>{@value #VIEW_PROMETHEUS}: calls and times of each path of the aggregated call trees in the Prometheus
+ *       text format, to be scraped by a Prometheus server.</li>
+ *   <li>{@value #VIEW_SAMPLING}: the sampling rate of the filter, which is changed by posting the parameter {@value #PARAM_RATE}.</li>
+ * </ul>
+ *
+ * <p>All views are written to the response while they are rendered. Aggregates are read without blocking the
+ * request threads which are merged into them.</p>
+ *
+ * <p>The servlet exposes the inner workings of the application, so make sure to restrict access to it.</p>
+ */
+public class ProfilerServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    public static final String PARAM_VIEW = "view";
+    public static final String PARAM_ENDPOINT = "endpoint";
+    public static final String PARAM_FORMAT = "format";
+    public static final String PARAM_LIMIT = "limit";
+    public static final String PARAM_RATE = "rate";
+
+    public static final String VIEW_AGGREGATES = "aggregates";
+    public static final String VIEW_SLOWEST = "slowest";
+    public static final String VIEW_SLOWEST_PER_ENDPOINT = "slowestPerEndpoint";
+    public static final String VIEW_FOLDED = "folded";
+    public static final String VIEW_PROMETHEUS = "prometheus";
+    public static final String VIEW_SAMPLING = "sampling";
+
+    private static final int DEFAULT_LIMIT = 10;
+
+    private static final Comparator<ProfilingFilter.RecentRequest> SLOWEST_FIRST = new Comparator<ProfilingFilter.RecentRequest>() {
+        @Override
+        public int compare(final ProfilingFilter.RecentRequest o1, final ProfilingFilter.RecentRequest o2) {
+            final long n1 = o1.getStatistics().getTotalNanos();
+            final long n2 = o2.getStatistics().getTotalNanos();
+            return n1 < n2 ? 1 : (n1 == n2 ? 0 : -1);
+        }
+    };
+
+    @Override
+    protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+        final ProfilingFilter filter = getFilter();
+        if (filter == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No ProfilingFilter initialized in this web application");
+            return;
+        }
+        final String view = req.getParameter(PARAM_VIEW);
+        if (VIEW_AGGREGATES.equals(view)) {
+            if ("json".equals(req.getParameter(PARAM_FORMAT))) {
+                renderAggregatesAsJson(filter, req.getParameter(PARAM_ENDPOINT), resp);
+            } else {
+                renderAggregatesAsText(filter, req.getParameter(PARAM_ENDPOINT), resp);
+            }
+        } else if (VIEW_SLOWEST.equals(view)) {
+            renderSlowest(filter, parseLimit(req.getParameter(PARAM_LIMIT)), resp);
+        } else if (VIEW_SLOWEST_PER_ENDPOINT.equals(view)) {
+            renderSlowestPerEndpoint(filter, req.getParameter(PARAM_ENDPOINT), resp);
+        } else if (VIEW_FOLDED.equals(view)) {
+            renderFolded(filter, req.getParameter(PARAM_ENDPOINT), resp);
+        } else if (VIEW_PROMETHEUS.equals(view)) {
+            renderPrometheus(filter, resp);
+        } else if (VIEW_SAMPLING.equals(view)) {
+            renderSampling(filter, resp);
+        } else {
+            renderIndex(resp);
+        }
+    }
+
+    @Override
+    protected void doPost(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+        final ProfilingFilter filter = getFilter();
+        if (filter == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No ProfilingFilter initialized in this web application");
+            return;
+        }
+        if (!VIEW_SAMPLING.equals(req.getParameter(PARAM_VIEW))) {
+            resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+        final double rate = parseRate(req.getParameter(PARAM_RATE));
+        if (Double.isNaN(rate)) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid sampling rate " + req.getParameter(PARAM_RATE));
+            return;
+        }
+        filter.setSamplingRate(rate);
+        renderSampling(filter, resp);
+    }
+
+    private ProfilingFilter getFilter() {
+        final Object filter = getServletContext().getAttribute(ProfilingFilter.CONTEXT_ATTRIBUTE);
+        return filter instanceof ProfilingFilter ? (ProfilingFilter) filter : null;
+    }
+
+    private void renderIndex(final HttpServletResponse resp) throws IOException {
+        final PrintWriter out = startText(resp);
+        out.append("CallTreeProfiler views, select with the parameter '").append(PARAM_VIEW).append("':\n\n");
+        out.append(VIEW_AGGREGATES).append("  - aggregated call trees per endpoint (").append(PARAM_ENDPOINT).append(", ").append(PARAM_FORMAT).append("=json)\n");
+        out.append(VIEW_SLOWEST).append("     - the slowest recent requests (").append(PARAM_LIMIT).append(")\n");
+        out.append(VIEW_SLOWEST_PER_ENDPOINT).append(" - the slowest requests of each endpoint in the current window (").append(PARAM_ENDPOINT).append(")\n");
+        out.append(VIEW_FOLDED).append("      - aggregated call trees in folded stack format for flame graphs (").append(PARAM_ENDPOINT).append(")\n");
+        out.append(VIEW_PROMETHEUS).append("  - per path metrics in the Prometheus text format\n");
+        out.append(VIEW_SAMPLING).append("    - the sampling rate, post '").append(PARAM_RATE).append("' to change it\n");
+        out.flush();
+    }
+
+    private void renderAggregatesAsText(final ProfilingFilter filter, final String endpoint, final HttpServletResponse resp) throws IOException {
+        final PrintWriter out = startText(resp);
+        final StatisticsAggregator aggregator = filter.getAggregator();
+        if (aggregator == null) {
+            out.append("Aggregation is not enabled, set the init parameter ").append(ProfilingFilter.PARAM_AGGREGATION_ENABLED).append(" of the filter\n");
+            out.flush();
+            return;
+        }
+        final StatisticsAggregator.Window window = aggregator.getCurrentWindow();
+        out.append("Window started ").append(Long.toString((System.currentTimeMillis() - window.getStartMillis()) / 1000)).append("s ago\n\n");
+        for (final Map.Entry<String, AggregatedStatistics> e : getSortedAggregates(window)) {
+            if (endpoint == null || endpoint.equals(e.getKey())) {
+                final AggregatedStatistics statistics = e.getValue();
+                out.append(e.getKey()).append(": ").append(Long.toString(statistics.getNumberOfMerges())).append(" requests\n");
+                StatisticsRenderer.render(new TxtRenderer("", out), statistics, NodeComparators.duration());
+                out.append('\n');
+                // let the client see the result of each endpoint while the next one is rendered
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+
+    private void renderAggregatesAsJson(final ProfilingFilter filter, final String endpoint, final HttpServletResponse resp) throws IOException {
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        final PrintWriter out = resp.getWriter();
+        final StatisticsAggregator aggregator = filter.getAggregator();
+        if (aggregator == null) {
+            out.append("{}");
+            out.flush();
+            return;
+        }
+        final StatisticsAggregator.Window window = aggregator.getCurrentWindow();
+        out.append("{\"windowStartMillis\":").append(Long.toString(window.getStartMillis())).append(",\"aggregates\":[");
+        boolean first = true;
+        for (final Map.Entry<String, AggregatedStatistics> e : getSortedAggregates(window)) {
+            if (endpoint == null || endpoint.equals(e.getKey())) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                new JsonRenderer(out).render(e.getValue(), NodeComparators.duration());
+            }
+        }
+        out.append("]}");
+        out.flush();
+    }
+
+    private void renderSlowest(final ProfilingFilter filter, final int limit, final HttpServletResponse resp) throws IOException {
+        final PrintWriter out = startText(resp);
+        final List<ProfilingFilter.RecentRequest> requests = filter.getRecentRequests();
+        Collections.sort(requests, SLOWEST_FIRST);
+        out.append("The slowest ").append(Integer.toString(Math.min(limit, requests.size()))).append(" of the last ")
+        .append(Integer.toString(requests.size())).append(" requests\n\n");
+        final long now = System.currentTimeMillis();
+        for (final ProfilingFilter.RecentRequest request : requests.subList(0, Math.min(limit, requests.size()))) {
+            out.append(request.getRequestId()).append(", finished ").append(Long.toString((now - request.getEndMillis()) / 1000)).append("s ago\n");
+            StatisticsRenderer.render(new TxtRenderer("", out), request.getStatistics());
+            out.append('\n');
+            out.flush();
+        }
+        out.flush();
+    }
+
+    private void renderSlowestPerEndpoint(final ProfilingFilter filter, final String endpoint, final HttpServletResponse resp) throws IOException {
+        final PrintWriter out = startText(resp);
+        final StatisticsAggregator aggregator = filter.getAggregator();
+        if (aggregator == null) {
+            out.append("Aggregation is not enabled, set the init parameter ").append(ProfilingFilter.PARAM_AGGREGATION_ENABLED).append(" of the filter\n");
+            out.flush();
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final List<Map.Entry<String, SlowestStatistics>> l = new ArrayList<Map.Entry<String, SlowestStatistics>>(aggregator.getCurrentWindow().getSlowest().entrySet());
+        Collections.sort(l, new Comparator<Map.Entry<String, SlowestStatistics>>() {
+            @Override
+            public int compare(final Map.Entry<String, SlowestStatistics> o1, final Map.Entry<String, SlowestStatistics> o2) {
+                return o1.getKey().compareTo(o2.getKey());
+            }
+        });
+        for (final Map.Entry<String, SlowestStatistics> e : l) {
+            if (endpoint == null || endpoint.equals(e.getKey())) {
+                for (final SlowestStatistics.Entry entry : e.getValue().getEntries()) {
+                    out.append(e.getKey()).append(", finished ").append(Long.toString((now - entry.getEndMillis()) / 1000)).append("s ago\n");
+                    StatisticsRenderer.render(new TxtRenderer("", out), entry.getStatistics());
+                    out.append('\n');
+                    out.flush();
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private void renderFolded(final ProfilingFilter filter, final String endpoint, final HttpServletResponse resp) throws IOException {
+        final PrintWriter out = startText(resp);
+        final StatisticsAggregator aggregator = filter.getAggregator();
+        if (aggregator != null) {
+            final FoldedStacksRenderer renderer = new FoldedStacksRenderer(out);
+            for (final Map.Entry<String, AggregatedStatistics> e : getSortedAggregates(aggregator.getCurrentWindow())) {
+                if (endpoint == null || endpoint.equals(e.getKey())) {
+                    // the root nodes recorded by the filter already are the endpoints
+                    renderer.render(e.getValue());
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private void renderPrometheus(final ProfilingFilter filter, final HttpServletResponse resp) throws IOException {
+        resp.setContentType(PrometheusRenderer.CONTENT_TYPE);
+        final Map<String, AggregatedStatistics> aggregates = new LinkedHashMap<String, AggregatedStatistics>();
+        final StatisticsAggregator aggregator = filter.getAggregator();
+        if (aggregator != null) {
+            // sorted, so the same series are dropped on each scrape if there are too many
+            for (final Map.Entry<String, AggregatedStatistics> e : getSortedAggregates(aggregator.getCurrentWindow())) {
+                aggregates.put(e.getKey(), e.getValue());
+            }
+        }
+        new PrometheusRenderer(resp.getOutputStream()).render(aggregates);
+    }
+
+    private void renderSampling(final ProfilingFilter filter, final HttpServletResponse resp) throws IOException {
+        final PrintWriter out = startText(resp);
+        out.append("samplingRate=").append(Double.toString(filter.getSamplingRate())).append('\n');
+        out.flush();
+    }
+
+    private static PrintWriter startText(final HttpServletResponse resp) throws IOException {
+        resp.setContentType("text/plain");
+        resp.setCharacterEncoding("UTF-8");
+        return resp.getWriter();
+    }
+
+    private static List<Map.Entry<String, AggregatedStatistics>> getSortedAggregates(final StatisticsAggregator.Window window) {
+        final List<Map.Entry<String, AggregatedStatistics>> l = new ArrayList<Map.Entry<String, AggregatedStatistics>>(window.getAggregates().entrySet());
+        Collections.sort(l, new Comparator<Map.Entry<String, AggregatedStatistics>>() {
+            @Override
+            public int compare(final Map.Entry<String, AggregatedStatistics> o1, final Map.Entry<String, AggregatedStatistics> o2) {
+                return o1.getKey().compareTo(o2.getKey());
+            }
+        });
+        return l;
+    }
+
+    private static double parseRate(final String v) {
+        if (v == null) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(v.trim());
+        } catch (final NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static int parseLimit(final String v) {
+        if (v == null || v.trim().isEmpty()) {
+            return DEFAULT_LIMIT;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(v.trim()));
+        } catch (final NumberFormatException e) {
+            return DEFAULT_LIMIT;
+        }
+    }
+}
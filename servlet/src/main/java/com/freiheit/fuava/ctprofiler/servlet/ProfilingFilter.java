@@ -16,13 +16,24 @@
  */
 package com.freiheit.fuava.ctprofiler.servlet;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
@@ -36,7 +47,10 @@ import com.freiheit.fuava.ctprofiler.core.Layers;
 import com.freiheit.fuava.ctprofiler.core.Node;
 import com.freiheit.fuava.ctprofiler.core.NodeComparators;
 import com.freiheit.fuava.ctprofiler.core.Statistics;
+import com.freiheit.fuava.ctprofiler.core.aggregation.AggregatedStatistics;
+import com.freiheit.fuava.ctprofiler.core.aggregation.StatisticsAggregator;
 import com.freiheit.fuava.ctprofiler.core.impl.ProfilerFactory;
+import com.freiheit.fuava.ctprofiler.core.persistence.ProfileStore;
 import com.freiheit.fuava.ctprofiler.core.rendering.StatisticsRenderer;
 import com.freiheit.fuava.ctprofiler.core.rendering.TxtRenderer;
 
@@ -53,6 +67,20 @@ public class ProfilingFilter implements Filter {
     public static final String PARAM_REQUEST_DURATION_THRESHOLD_NANOS = "requestDurationThresholdNanos";
     public static final String PARAM_CALL_INDENTATION = "callIndentation";
     public static final String PARAM_LEAF_NAME_PREFIX = "leafNamePrefix";
+    public static final String PARAM_AGGREGATION_ENABLED = "aggregationEnabled";
+    public static final String PARAM_AGGREGATION_MAX_ENDPOINTS = "aggregationMaxEndpoints";
+    public static final String PARAM_AGGREGATION_MAX_NODES = "aggregationMaxNodes";
+    public static final String PARAM_AGGREGATION_INTERVAL_MILLIS = "aggregationIntervalMillis";
+    public static final String PARAM_AGGREGATION_SLOWEST_PER_ENDPOINT = "aggregationSlowestPerEndpoint";
+    public static final String PARAM_AGGREGATION_STORE_DIRECTORY = "aggregationStoreDirectory";
+    public static final String PARAM_AGGREGATION_STORE_MAX_FILES = "aggregationStoreMaxFiles";
+    public static final String PARAM_SAMPLING_RATE = "samplingRate";
+    public static final String PARAM_RECENT_REQUESTS = "recentRequests";
+
+    /**
+     * The name of the ServletContext attribute holding the initialized filter, see {@link ProfilerServlet}.
+     */
+    public static final String CONTEXT_ATTRIBUTE = ProfilingFilter.class.getName();
 
 
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ProfilingFilter.class);
@@ -68,6 +96,58 @@ public class ProfilingFilter implements Filter {
     private String leafNamePrefix   = "+ ";
     private Layer layer = Layers.PRESENTATION;
 
+    private boolean aggregationEnabled = false;
+    private int aggregationMaxEndpoints = 200;
+    private int aggregationMaxNodes = 10000;
+    private int aggregationSlowestPerEndpoint = 5;
+    private long aggregationIntervalMillis = TimeUnit.MINUTES.toMillis(5);
+    private String aggregationStoreDirectory;
+    private int aggregationStoreMaxFiles = 288;
+    private volatile StatisticsAggregator aggregator;
+    private volatile ProfileStore store;
+    private ScheduledExecutorService aggregationRotator;
+    private String filterName = ProfilingFilter.class.getSimpleName();
+    private ServletContext servletContext;
+
+    private volatile double samplingRate = 1.0;
+    private final AtomicLong numberOfRequests = new AtomicLong();
+    private int recentRequests = 100;
+    private volatile AtomicReferenceArray<RecentRequest> recentRequestsRing;
+    private final AtomicLong recentRequestsIndex = new AtomicLong();
+
+    /**
+     * A request remembered by the filter.
+     */
+    public static final class RecentRequest {
+        private final String requestId;
+        private final long endMillis;
+        private final Statistics statistics;
+
+        RecentRequest(final String requestId, final long endMillis, final Statistics statistics) {
+            this.requestId = requestId;
+            this.endMillis = endMillis;
+            this.statistics = statistics;
+        }
+
+        /**
+         * The HTTP method and path of the request.
+         */
+        public String getRequestId() {
+            return requestId;
+        }
+
+        /**
+         * The time (as in {@link System#currentTimeMillis()}) when the request was finished.
+         */
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public Statistics getStatistics() {
+            return statistics;
+        }
+    }
+
     public enum Ordering {
         /**
          * Sequential, earlier calls of the same level will be printed first - but all
@@ -129,14 +209,198 @@ public class ProfilingFilter implements Filter {
         this.leafStatisticsThresholdNanos = leafStatisticsThresholdNanos;
     }
 
+    /**
+     * Fold the call tree of each request into an aggregate per request id (method and path),
+     * and periodically log the aggregates. The windows are rotated by a daemon thread of the filter,
+     * so they are logged and stored even while no requests arrive.
+     */
+    public void setAggregationEnabled(final boolean aggregationEnabled) {
+        this.aggregationEnabled = aggregationEnabled;
+    }
+
+    /**
+     * The maximum number of distinct request ids to aggregate per window, further
+     * request ids are aggregated into {@link StatisticsAggregator#OVERFLOW_KEY}.
+     */
+    public void setAggregationMaxEndpoints(final int aggregationMaxEndpoints) {
+        this.aggregationMaxEndpoints = aggregationMaxEndpoints;
+    }
+
+    /**
+     * The maximum number of nodes of each aggregated call tree.
+     */
+    public void setAggregationMaxNodes(final int aggregationMaxNodes) {
+        this.aggregationMaxNodes = aggregationMaxNodes;
+    }
+
+    /**
+     * The number of the slowest call trees to retain per request id and window, see
+     * {@link StatisticsAggregator.Window#getSlowest()}. 0 to retain none.
+     */
+    public void setAggregationSlowestPerEndpoint(final int aggregationSlowestPerEndpoint) {
+        this.aggregationSlowestPerEndpoint = aggregationSlowestPerEndpoint;
+    }
+
+    /**
+     * The length of the window after which the aggregates are logged and started anew.
+     */
+    public void setAggregationIntervalMillis(final long aggregationIntervalMillis) {
+        this.aggregationIntervalMillis = aggregationIntervalMillis;
+    }
+
+    /**
+     * The directory to store the aggregates of each window in, see {@link ProfileStore}. Null to not store them.
+     */
+    public void setAggregationStoreDirectory(final String aggregationStoreDirectory) {
+        this.aggregationStoreDirectory = aggregationStoreDirectory;
+    }
+
+    /**
+     * The number of stored windows to keep, older files are deleted.
+     */
+    public void setAggregationStoreMaxFiles(final int aggregationStoreMaxFiles) {
+        this.aggregationStoreMaxFiles = aggregationStoreMaxFiles;
+    }
+
+    /**
+     * The store for the aggregates of each window.
+     *
+     * @return the store, or null if aggregation is not enabled or no store directory is configured
+     */
+    public ProfileStore getStore() {
+        return store;
+    }
+
+    /**
+     * The fraction of requests to profile, between 0 and 1. Requests which are not sampled are not
+     * measured at all, every measurement of the request thread is ignored.
+     */
+    public void setSamplingRate(final double samplingRate) {
+        this.samplingRate = Math.max(0, Math.min(1, samplingRate));
+    }
+
+    public double getSamplingRate() {
+        return samplingRate;
+    }
+
+    /**
+     * The number of recently finished requests to remember, see {@link #getRecentRequests()}.
+     */
+    public void setRecentRequests(final int recentRequests) {
+        this.recentRequests = recentRequests;
+    }
+
+    /**
+     * The call trees of the most recently finished requests, in no particular order.
+     */
+    public List<RecentRequest> getRecentRequests() {
+        final AtomicReferenceArray<RecentRequest> ring = recentRequestsRing;
+        if (ring == null) {
+            return Collections.emptyList();
+        }
+        final List<RecentRequest> r = new ArrayList<RecentRequest>(ring.length());
+        for (int i = 0; i < ring.length(); i++) {
+            final RecentRequest recentRequest = ring.get(i);
+            if (recentRequest != null) {
+                r.add(recentRequest);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * The aggregator used for folding the request call trees. It is attached to the
+     * MBean of the profiler, named like this filter.
+     *
+     * @return the aggregator, or null if aggregation is not enabled
+     */
+    public StatisticsAggregator getAggregator() {
+        StatisticsAggregator a = aggregator;
+        if (a == null && aggregationEnabled) {
+            synchronized (this) {
+                a = aggregator;
+                if (a == null) {
+                    a = new StatisticsAggregator(aggregationMaxEndpoints, aggregationMaxNodes, aggregationSlowestPerEndpoint);
+                    if (aggregationStoreDirectory != null) {
+                        store = new ProfileStore(new File(aggregationStoreDirectory), filterName, aggregationStoreMaxFiles);
+                    }
+                    ProfilerFactory.attachAggregator(callTreeProfiler, filterName, a);
+                    aggregator = a;
+                    startAggregationRotator(a);
+                }
+            }
+        }
+        return a;
+    }
+
+    private void startAggregationRotator(final StatisticsAggregator a) {
+        aggregationRotator = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "ctprofiler-aggregation-" + filterName);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        aggregationRotator.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    logAggregates(a.rotate());
+                } catch (final RuntimeException e) {
+                    // keep rotating, a failure must not end the periodic dumps
+                    LOG.warn("Failed to log the aggregates of " + filterName, e);
+                }
+            }
+        }, aggregationIntervalMillis, aggregationIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
     @Override
     public void destroy() {
+        if (servletContext != null && servletContext.getAttribute(CONTEXT_ATTRIBUTE) == this) {
+            servletContext.removeAttribute(CONTEXT_ATTRIBUTE);
+        }
+        final StatisticsAggregator a;
+        synchronized (this) {
+            a = aggregator;
+            if (aggregationRotator != null) {
+                aggregationRotator.shutdownNow();
+                aggregationRotator = null;
+            }
+        }
+        if (a != null) {
+            ProfilerFactory.detachAggregator(callTreeProfiler, filterName);
+            logAggregates(a.rotate());
+        }
+        final ProfileStore s = store;
+        if (s != null) {
+            try {
+                if (!s.close(TimeUnit.SECONDS.toMillis(10))) {
+                    LOG.warn("Timed out storing the aggregates of " + filterName);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // only if the library belongs to this web application, a library shared by the container serves others as well
+        if (ProfilerFactory.class.getClassLoader() == Thread.currentThread().getContextClassLoader()) {
+            ProfilerFactory.shutdown();
+        }
     }
 
     @Override
     public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain arg2) throws IOException, ServletException {
         final String requestId = buildProfilingRequestId(request);
         callTreeProfiler.clear();
+        if (!isSampled()) {
+            ProfilerFactory.setCurrentThreadMuted(callTreeProfiler, true);
+            try {
+                arg2.doFilter(request, response);
+            } finally {
+                callTreeProfiler.clear();
+            }
+            return;
+        }
         callTreeProfiler.begin(layer, requestId, System.nanoTime());
         try {
             arg2.doFilter(request, response);
@@ -158,8 +422,11 @@ public class ProfilingFilter implements Filter {
 
                     } else {
                         buffer.append("too fast for CallTreeProfiler logging: " + totalNanos + "nanos "  + requestId);
+                        TxtRenderer.renderLayerSummary(statistics, buffer.append(", "));
                     }
                     LOG.info(buffer.toString());
+                    aggregate(requestId, statistics);
+                    remember(requestId, statistics);
                 } catch (final IOException io) {
                     // ignore - cannot help, if this happens
                 }
@@ -170,6 +437,71 @@ public class ProfilingFilter implements Filter {
     }
 
 
+    /**
+     * Decide whether to profile the next request, spreading the sampled requests evenly.
+     */
+    private boolean isSampled() {
+        final double rate = samplingRate;
+        if (rate >= 1) {
+            return true;
+        }
+        if (rate <= 0) {
+            return false;
+        }
+        final long n = numberOfRequests.incrementAndGet();
+        return (long) (n * rate) != (long) ((n - 1) * rate);
+    }
+
+    private void remember(final String requestId, final Statistics statistics) {
+        AtomicReferenceArray<RecentRequest> ring = recentRequestsRing;
+        if (ring == null) {
+            if (recentRequests <= 0) {
+                return;
+            }
+            synchronized (this) {
+                ring = recentRequestsRing;
+                if (ring == null) {
+                    ring = new AtomicReferenceArray<RecentRequest>(recentRequests);
+                    recentRequestsRing = ring;
+                }
+            }
+        }
+        final int index = (int) (recentRequestsIndex.getAndIncrement() % ring.length());
+        ring.set(index, new RecentRequest(requestId, System.currentTimeMillis(), statistics));
+    }
+
+    private void aggregate(final String requestId, final Statistics statistics) {
+        final StatisticsAggregator a = getAggregator();
+        if (a == null) {
+            return;
+        }
+        a.add(requestId, statistics);
+    }
+
+    private void logAggregates(final StatisticsAggregator.Window window) {
+        final ProfileStore s = store;
+        if (s != null && !s.store(window)) {
+            LOG.warn("Dropped the aggregates of " + filterName + ", still storing the previous windows");
+        }
+        for (final Map.Entry<String, AggregatedStatistics> e : window.getAggregates().entrySet()) {
+            final AggregatedStatistics statistics = e.getValue();
+            try {
+                final StringBuilder buffer = new StringBuilder("\n");
+                buffer.append("CallTreeProfiler aggregate of ").append(statistics.getNumberOfMerges())
+                .append(" requests for ").append(e.getKey())
+                .append(" (").append((window.getEndMillis() - window.getStartMillis()) / 1000).append("s)\n");
+                final TxtRenderer renderer = new TxtRenderer("", buffer);
+                renderer.setLeafNamePrefix(leafNamePrefix);
+                renderer.setCallIndentation(callIndentation);
+                renderer.setTotalNanosThreshold(callDurationThresholdNanos);
+                StatisticsRenderer.render(renderer, statistics, NodeComparators.duration());
+                LOG.info(buffer.toString());
+            } catch (final IOException io) {
+                // ignore - cannot help, if this happens
+            }
+        }
+    }
+
     private String buildProfilingRequestId(final ServletRequest request) {
         if (request instanceof HttpServletRequest) {
             final HttpServletRequest hsr = (HttpServletRequest)request;
@@ -201,6 +533,22 @@ public class ProfilingFilter implements Filter {
             return defaultvalue;
         }
     }
+    private boolean parseOrDefault(final String v, final boolean defaultvalue) {
+        if (v == null || v.trim().isEmpty()) {
+            return defaultvalue;
+        }
+        return Boolean.parseBoolean(v.trim());
+    }
+    private double parseOrDefault(final String v, final double defaultvalue) {
+        if (v == null || v.trim().isEmpty()) {
+            return defaultvalue;
+        }
+        try {
+            return Double.parseDouble(v.trim());
+        } catch (final NumberFormatException e) {
+            return defaultvalue;
+        }
+    }
     private String parseOrDefault(final String v, final String defaultvalue) {
         if (v == null || v.trim().isEmpty()) {
             return defaultvalue;
@@ -214,6 +562,7 @@ public class ProfilingFilter implements Filter {
 
     @Override
     public void init(final FilterConfig config) throws ServletException {
+        filterName = parseOrDefault(config.getFilterName(), filterName);
         leafStatisticsMaxItems = (int)parseOrDefault(config.getInitParameter(PARAM_LEAF_STATISTICS_MAX_ITEMS), leafStatisticsMaxItems);
         requestDurationThresholdNanos = parseOrDefault(config.getInitParameter(PARAM_REQUEST_DURATION_THRESHOLD_NANOS), requestDurationThresholdNanos);
         callDurationThresholdNanos = parseOrDefault(config.getInitParameter(PARAM_CALL_DURATION_THRESHOLD_NANOS), callDurationThresholdNanos);
@@ -222,6 +571,21 @@ public class ProfilingFilter implements Filter {
         leafNamePrefix = parseOrDefault(config.getInitParameter(PARAM_LEAF_NAME_PREFIX), leafNamePrefix);
         leafStatisticsThresholdNanos = parseOrDefault(config.getInitParameter(PARAM_LEAF_STATISTICS_THRESHOLD_NANOS), leafStatisticsThresholdNanos);
         layer = Layers.forName(parseOrDefault(config.getInitParameter(PARAM_LAYER), layer.getName()));
+        aggregationEnabled = parseOrDefault(config.getInitParameter(PARAM_AGGREGATION_ENABLED), aggregationEnabled);
+        aggregationMaxEndpoints = (int)parseOrDefault(config.getInitParameter(PARAM_AGGREGATION_MAX_ENDPOINTS), aggregationMaxEndpoints);
+        aggregationMaxNodes = (int)parseOrDefault(config.getInitParameter(PARAM_AGGREGATION_MAX_NODES), aggregationMaxNodes);
+        aggregationSlowestPerEndpoint = (int)parseOrDefault(config.getInitParameter(PARAM_AGGREGATION_SLOWEST_PER_ENDPOINT), aggregationSlowestPerEndpoint);
+        aggregationIntervalMillis = parseOrDefault(config.getInitParameter(PARAM_AGGREGATION_INTERVAL_MILLIS), aggregationIntervalMillis);
+        aggregationStoreDirectory = parseOrDefault(config.getInitParameter(PARAM_AGGREGATION_STORE_DIRECTORY), aggregationStoreDirectory);
+        aggregationStoreMaxFiles = (int)parseOrDefault(config.getInitParameter(PARAM_AGGREGATION_STORE_MAX_FILES), aggregationStoreMaxFiles);
+        setSamplingRate(parseOrDefault(config.getInitParameter(PARAM_SAMPLING_RATE), samplingRate));
+        recentRequests = (int)parseOrDefault(config.getInitParameter(PARAM_RECENT_REQUESTS), recentRequests);
+        servletContext = config.getServletContext();
+        if (servletContext != null) {
+            servletContext.setAttribute(CONTEXT_ATTRIBUTE, this);
+        }
+        // start the windows now, not with the first request
+        getAggregator();
     }
 
     private Ordering parseOrdering(final String initParameter, final Ordering defaultValue) {